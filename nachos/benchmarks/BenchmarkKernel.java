@@ -0,0 +1,140 @@
+package nachos.benchmarks;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * A kernel that runs benchmark workloads instead of a shell. Run with the
+ * <tt>nachos.conf</tt> in this directory, the kernel times each workload
+ * itself and prints a table in the format of <tt>baseline.txt</tt>:
+ *
+ * <pre>
+ * cd nachos/test
+ * java -Djava.security.manager=allow nachos.machine.Machine -[] ../benchmarks/nachos.conf
+ * </pre>
+ */
+public class BenchmarkKernel extends VMKernel {
+	/**
+	 * Allocate a new benchmark kernel.
+	 */
+	public BenchmarkKernel() {
+		super();
+	}
+
+	/**
+	 * Initialize this kernel.
+	 */
+	public void initialize(String[] args) {
+		super.initialize(args);
+
+		processesDone = new Semaphore(0);
+	}
+
+	/**
+	 * The benchmarks have no self-tests.
+	 */
+	public void selfTest() {
+	}
+
+	/**
+	 * Time the workloads and halt.
+	 */
+	public void run() {
+		measure("yieldPingPong", 2 * rounds, new Runnable() {
+			public void run() {
+				Workloads.yieldPingPong(rounds);
+			}
+		});
+		measure("semaphorePingPong", 2 * rounds, new Runnable() {
+			public void run() {
+				Workloads.semaphorePingPong(rounds);
+			}
+		});
+		measure("lockHandoff", 2 * rounds, new Runnable() {
+			public void run() {
+				Workloads.lockHandoff(rounds);
+			}
+		});
+		measure("conditionHandoff", 2 * rounds, new Runnable() {
+			public void run() {
+				Workloads.conditionHandoff(rounds);
+			}
+		});
+		measure("interruptTicks", rounds, new Runnable() {
+			public void run() {
+				Workloads.interruptTicks(rounds);
+			}
+		});
+
+		final long[] instructions = new long[1];
+		measure("processorMatmult", 1, new Runnable() {
+			public void run() {
+				instructions[0] = Workloads.runProgram("matmult.coff");
+			}
+		});
+		System.out.println("  (" + instructions[0]
+				+ " user instructions per run)");
+
+		final UserProcess process = Workloads.loadProcess("matmult.coff");
+		final byte[] buffer = new byte[copySize];
+		measure("copyVirtualMemory", copySize, new Runnable() {
+			public void run() {
+				Workloads.copyVirtualMemory(process, 0, buffer);
+			}
+		});
+		System.out.println("  (per byte copied out and back)");
+
+		serving = false;
+		terminate();
+	}
+
+	private static void measure(String name, int operations, Runnable workload) {
+		for (int i = 0; i < warmups; i++)
+			workload.run();
+
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < measurements; i++) {
+			long start = System.nanoTime();
+			workload.run();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		System.out.println(String.format("%-20s %12.1f ns/op", name,
+				(double) best / operations));
+	}
+
+	/**
+	 * Wait until every user process has exited. Must be called by the main
+	 * thread.
+	 */
+	static void waitForProcesses() {
+		processesDone.P();
+	}
+
+	/**
+	 * Called when the last user process exits. Rather than halting, wake the
+	 * main thread, which may have more to run.
+	 */
+	public void terminate() {
+		if (serving) {
+			processesDone.V();
+			return;
+		}
+
+		super.terminate();
+	}
+
+	private static Semaphore processesDone;
+
+	private boolean serving = true;
+
+	private static final int rounds = 1000;
+
+	private static final int copySize = 4 * Processor.pageSize;
+
+	private static final int warmups = 5;
+
+	private static final int measurements = 10;
+}
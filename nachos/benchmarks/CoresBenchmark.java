@@ -0,0 +1,219 @@
+package nachos.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures what <tt>Processor.parallelCores</tt> buys on this host. The shell
+ * starts several copies of a program at once and joins them all, on a
+ * processor with each number of cores asked for, first with the cores of
+ * each epoch run in turn and then on host threads. Each run is a fresh
+ * Nachos in its own JVM, so the wall times include JVM startup, which is the
+ * same in both modes.
+ *
+ * <pre>
+ * cd nachos/test
+ * java nachos.benchmarks.CoresBenchmark [-c cores] [-n copies] [-p program]
+ *     [-m numPhysPages] [-r repeats] [-t testDirectory]
+ * </pre>
+ *
+ * <p>
+ * Lists are comma-separated; by default 4 copies of <tt>matmult</tt> run on
+ * 1, 2 and 4 cores with 128 pages, and each figure is the best of 3 runs.
+ * Both modes must give the same simulated results, so a run on host threads
+ * whose statistics differ from the run in turn is reported as
+ * <tt>DIFFERENT</tt>. Running on host threads only pays on a host with more
+ * than one processor; on a single processor it costs the handoffs.
+ */
+public class CoresBenchmark {
+	public static void main(String[] args) throws Exception {
+		String[] cores = { "1", "2", "4" };
+		int copies = 4;
+		String program = "matmult";
+		int numPhysPages = 128;
+		int repeats = 3;
+		String testDirectory = ".";
+
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (i + 1 == args.length)
+				usage("switch without argument: " + arg);
+			String value = args[++i];
+
+			if (arg.equals("-c"))
+				cores = value.split(",");
+			else if (arg.equals("-n"))
+				copies = Integer.parseInt(value);
+			else if (arg.equals("-p"))
+				program = value;
+			else if (arg.equals("-m"))
+				numPhysPages = Integer.parseInt(value);
+			else if (arg.equals("-r"))
+				repeats = Integer.parseInt(value);
+			else if (arg.equals("-t"))
+				testDirectory = value;
+			else
+				usage("unknown switch: " + arg);
+		}
+
+		File testDir = new File(testDirectory).getAbsoluteFile();
+		File config = writeConfig(testDir, numPhysPages);
+		File input = writeInput(program, copies);
+
+		System.out.println("host processors: "
+				+ Runtime.getRuntime().availableProcessors() + ", " + copies
+				+ " x " + program + ", " + numPhysPages + " pages");
+		System.out.println(String.format("%5s %12s %12s %12s %10s", "cores",
+				"total ticks", "in turn ms", "parallel ms", "speedup"));
+
+		for (int c = 0; c < cores.length; c++) {
+			int numCores = Integer.parseInt(cores[c]);
+
+			Run sequential = best(config, input, numCores, false, repeats);
+			if (numCores == 1) {
+				System.out.println(String.format("%5d %12s %12d %12s %10s",
+						numCores, sequential.ticks, sequential.wallMillis, "-",
+						"-"));
+				continue;
+			}
+
+			Run parallel = best(config, input, numCores, true, repeats);
+			String speedup = !parallel.stats.equals(sequential.stats) ? "DIFFERENT"
+					: String.format("%.2fx", (double) sequential.wallMillis
+							/ parallel.wallMillis);
+			System.out.println(String.format("%5d %12s %12d %12d %10s",
+					numCores, sequential.ticks, sequential.wallMillis,
+					parallel.wallMillis, speedup));
+		}
+	}
+
+	private static void usage(String message) {
+		System.err.println(message);
+		System.err.println("usage: java nachos.benchmarks.CoresBenchmark "
+				+ "[-c cores] [-n copies] [-p program] [-m numPhysPages] "
+				+ "[-r repeats] [-t testDirectory]");
+		System.exit(1);
+	}
+
+	private static File writeConfig(File testDir, int numPhysPages)
+			throws IOException {
+		File config = File.createTempFile("nachos-cores", ".conf");
+		config.deleteOnExit();
+		PrintWriter out = new PrintWriter(new FileWriter(config));
+		out.println("Machine.stubFileSystem = true");
+		out.println("Machine.processor = true");
+		out.println("Machine.console = true");
+		out.println("Machine.disk = false");
+		out.println("Machine.bank = false");
+		out.println("Machine.networkLink = false");
+		out.println("Processor.usingTLB = true");
+		out.println("Processor.numPhysPages = " + numPhysPages);
+		out.println("ElevatorBank.allowElevatorGUI = false");
+		out.println("NachosSecurityManager.fullySecure = false");
+		out.println("ThreadedKernel.scheduler = nachos.threads.RoundRobinScheduler");
+		out.println("FileSystem.testDirectory = " + testDir.getPath());
+		out.println("Kernel.shellProgram = sh.coff");
+		out.println("Kernel.processClassName = nachos.vm.VMProcess");
+		out.println("Kernel.kernel = nachos.vm.VMKernel");
+		out.close();
+		return config;
+	}
+
+	/**
+	 * Write the shell input: start every copy in the background, join them
+	 * in order, and halt.
+	 */
+	private static File writeInput(String program, int copies)
+			throws IOException {
+		File input = File.createTempFile("nachos-cores", ".in");
+		input.deleteOnExit();
+		PrintWriter out = new PrintWriter(new FileWriter(input));
+		for (int i = 0; i < copies; i++)
+			out.println(program + " &");
+		for (int i = 0; i < copies; i++)
+			out.println("join " + (i + 1));
+		out.println("halt");
+		out.close();
+		return input;
+	}
+
+	private static Run best(File config, File input, int numCores,
+			boolean parallel, int repeats) throws Exception {
+		Run best = null;
+		for (int i = 0; i < repeats; i++) {
+			Run run = runOnce(config, input, numCores, parallel);
+			if (best != null && !run.stats.equals(best.stats))
+				throw new IllegalStateException("runs of the same "
+						+ "configuration gave different results");
+			if (best == null || run.wallMillis < best.wallMillis)
+				best = run;
+		}
+		return best;
+	}
+
+	private static Run runOnce(File config, File input, int numCores,
+			boolean parallel) throws Exception {
+		ProcessBuilder builder = new ProcessBuilder(javaCommand(),
+				"-Djava.security.manager=allow", "-cp",
+				System.getProperty("java.class.path"),
+				"nachos.machine.Machine", "-[]", config.getPath(), "-s", "7",
+				"-c", "Processor.numCores=" + numCores, "-c",
+				"Processor.parallelCores=" + parallel);
+		builder.redirectErrorStream(true);
+		builder.redirectInput(ProcessBuilder.Redirect.from(input));
+
+		long start = System.nanoTime();
+		Process child = builder.start();
+
+		StringBuffer output = new StringBuffer();
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				child.getInputStream()));
+		String line;
+		while ((line = in.readLine()) != null)
+			output.append(line).append('\n');
+
+		if (!child.waitFor(timeout, TimeUnit.SECONDS))
+			child.destroyForcibly().waitFor();
+		long wallMillis = (System.nanoTime() - start) / 1000000;
+
+		String text = output.toString();
+		int halt = text.indexOf("Machine halting!");
+		Matcher matcher = ticksPattern.matcher(text);
+		if (halt == -1 || !matcher.find())
+			throw new IllegalStateException("run on " + numCores
+					+ " cores did not halt:\n" + text);
+
+		Run run = new Run();
+		run.ticks = matcher.group(1);
+		run.wallMillis = wallMillis;
+		// the simulated statistics, without the host's wall-clock figures
+		run.stats = text.substring(halt).replaceAll("Parallel cores:.*\n", "")
+				.replaceAll("(?m)^Syscalls:[\\s\\S]*", "");
+		return run;
+	}
+
+	private static String javaCommand() {
+		return new File(new File(System.getProperty("java.home"), "bin"),
+				"java").getPath();
+	}
+
+	private static class Run {
+		String ticks;
+
+		String stats;
+
+		long wallMillis;
+	}
+
+	private static final int timeout = 600;
+
+	private static final Pattern ticksPattern = Pattern
+			.compile("Ticks: total (\\d+)");
+}
@@ -0,0 +1,124 @@
+package nachos.benchmarks;
+
+import nachos.machine.*;
+
+/**
+ * Compares the <tt>VarHandle</tt> byte conversions in <tt>Lib</tt> against
+ * the shift-and-mask loops they replaced, over a buffer the size of the
+ * default physical memory. Each figure is the best of 10 runs after 5
+ * warmups, as in <tt>BenchmarkKernel</tt>:
+ *
+ * <pre>
+ * java nachos.benchmarks.LibBytesBenchmark
+ * </pre>
+ *
+ * <p>
+ * Offsets step by 3 so that most accesses are unaligned, as they may be for
+ * the kernel's own conversions (the processor only issues aligned ones).
+ */
+public class LibBytesBenchmark {
+	public static void main(String[] args) {
+		memory = new byte[memorySize];
+		for (int i = 0; i < memorySize; i++)
+			memory[i] = (byte) (i * 31);
+
+		page = new byte[Processor.pageSize];
+
+		measure("readIntShifts", new Runnable() {
+			public void run() {
+				int sum = 0;
+				for (int i = 0; i + 4 <= memorySize; i += 3)
+					sum += shiftBytesToInt(memory, i);
+				sink += sum;
+			}
+		});
+		measure("readIntVarHandle", new Runnable() {
+			public void run() {
+				int sum = 0;
+				for (int i = 0; i + 4 <= memorySize; i += 3)
+					sum += Lib.bytesToInt(memory, i);
+				sink += sum;
+			}
+		});
+		measure("writeIntShifts", new Runnable() {
+			public void run() {
+				for (int i = 0; i + 4 <= memorySize; i += 3)
+					shiftBytesFromInt(memory, i, i);
+				sink += memory[memorySize - 1];
+			}
+		});
+		measure("writeIntVarHandle", new Runnable() {
+			public void run() {
+				for (int i = 0; i + 4 <= memorySize; i += 3)
+					Lib.bytesFromInt(memory, i, i);
+				sink += memory[memorySize - 1];
+			}
+		});
+		measure("zeroPageBytes", new Runnable() {
+			public void run() {
+				boolean zero = true;
+				for (int i = 0; i < page.length; i++) {
+					if (page[i] != 0) {
+						zero = false;
+						break;
+					}
+				}
+				sink += zero ? 1 : 0;
+			}
+		});
+		measure("zeroPageWords", new Runnable() {
+			public void run() {
+				sink += Lib.bytesFilled(page, 0, page.length, (byte) 0) ? 1 : 0;
+			}
+		});
+
+		// keep the results live, so the loops cannot be optimized away
+		if (sink == 42)
+			System.out.println();
+	}
+
+	private static void measure(String name, Runnable workload) {
+		for (int i = 0; i < warmups; i++) {
+			for (int j = 0; j < repeats; j++)
+				workload.run();
+		}
+
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < measurements; i++) {
+			long start = System.nanoTime();
+			for (int j = 0; j < repeats; j++)
+				workload.run();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		System.out.println(String.format("%-20s %12.3f us/op", name,
+				(double) best / repeats / 1000));
+	}
+
+	private static int shiftBytesToInt(byte[] array, int offset) {
+		return (int) ((((int) array[offset + 0] & 0xFF) << 0)
+				| (((int) array[offset + 1] & 0xFF) << 8)
+				| (((int) array[offset + 2] & 0xFF) << 16) | (((int) array[offset + 3] & 0xFF) << 24));
+	}
+
+	private static void shiftBytesFromInt(byte[] array, int offset, int value) {
+		array[offset + 0] = (byte) ((value >> 0) & 0xFF);
+		array[offset + 1] = (byte) ((value >> 8) & 0xFF);
+		array[offset + 2] = (byte) ((value >> 16) & 0xFF);
+		array[offset + 3] = (byte) ((value >> 24) & 0xFF);
+	}
+
+	private static final int memorySize = 64 * Processor.pageSize;
+
+	private static final int repeats = 1000;
+
+	private static final int warmups = 5;
+
+	private static final int measurements = 10;
+
+	private static byte[] memory;
+
+	private static byte[] page;
+
+	private static int sink = 0;
+}
@@ -0,0 +1,271 @@
+package nachos.benchmarks;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import nachos.machine.Batch;
+
+/**
+ * Sweeps a user program over physical memory sizes, schedulers and random
+ * seeds, running every combination as a contained simulation in this JVM
+ * (see <tt>nachos.machine.Batch</tt>), and prints a table
+ * summarizing each memory size and scheduler over its seeds.
+ *
+ * <pre>
+ * cd nachos/proj3
+ * java nachos.benchmarks.Sweep [-[] config] [-x program] [-m numPhysPages]
+ *     [-S schedulers] [-s seeds] [-j parallelism] [-T targetTicks]
+ *     [-l limitSeconds] [-o report]
+ * </pre>
+ *
+ * <p>
+ * Lists are comma-separated, and seeds may also be given as a range,
+ * <tt>first-last</tt>. Schedulers without a package are taken to be in
+ * <tt>nachos.threads</tt>. Every run starts from <i>config</i>, by default
+ * <tt>nachos.conf</tt>, and by default runs its <tt>Kernel.shellProgram</tt>
+ * with its memory size, its scheduler and seed 0, one at a time; with
+ * <tt>-j</tt>, that many run at once, each isolated from the others as
+ * <tt>Batch</tt> describes. A run still going after <i>limitSeconds</i>, by
+ * default 300, is stopped and counted as failed, as is one whose output shows
+ * a user process killed by an exception or a failed assertion. A
+ * combination meets the target if every one of its runs halted within
+ * <i>targetTicks</i> ticks.
+ * Each run's statistics are written to <i>report</i><tt>.csv</tt>, by
+ * default <tt>sweep.csv</tt>.
+ */
+public class Sweep {
+	public static void main(String[] args) throws IOException {
+		String configFile = "nachos.conf";
+		String program = null;
+		String[] pages = null;
+		String[] schedulers = null;
+		String[] seeds = { "0" };
+		int parallelism = 1;
+		long target = 0;
+		int limit = 300;
+		String report = "sweep";
+
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (i + 1 == args.length)
+				usage("switch without argument: " + arg);
+			String value = args[++i];
+
+			if (arg.equals("-[]"))
+				configFile = value;
+			else if (arg.equals("-x"))
+				program = value;
+			else if (arg.equals("-m"))
+				pages = value.split(",");
+			else if (arg.equals("-S"))
+				schedulers = value.split(",");
+			else if (arg.equals("-s"))
+				seeds = seedList(value);
+			else if (arg.equals("-j"))
+				parallelism = Integer.parseInt(value);
+			else if (arg.equals("-T"))
+				target = Long.parseLong(value);
+			else if (arg.equals("-l"))
+				limit = Integer.parseInt(value);
+			else if (arg.equals("-o"))
+				report = value;
+			else
+				usage("unknown switch: " + arg);
+		}
+
+		Map<String, String> base = readConfig(configFile);
+		if (pages == null)
+			pages = new String[] { base.get("Processor.numPhysPages") };
+		if (schedulers == null)
+			schedulers = new String[] { base.get("ThreadedKernel.scheduler") };
+
+		List<Map<String, String>> configs = new ArrayList<Map<String, String>>();
+		List<String[]> runArgs = new ArrayList<String[]>();
+		for (int m = 0; m < pages.length; m++) {
+			for (int k = 0; k < schedulers.length; k++) {
+				for (int s = 0; s < seeds.length; s++) {
+					Map<String, String> config = new LinkedHashMap<String, String>(
+							base);
+					config.put("Processor.numPhysPages", pages[m]);
+					config.put("ThreadedKernel.scheduler",
+							schedulerClass(schedulers[k]));
+					configs.add(config);
+
+					runArgs.add(program == null ? new String[] { "-s", seeds[s] }
+							: new String[] { "-s", seeds[s], "-x", program });
+				}
+			}
+		}
+
+		System.out.println("sweeping " + configs.size() + " runs, "
+				+ parallelism + " at a time");
+		long start = System.nanoTime();
+		List<Batch.Result> results = Batch.run(configs, runArgs, parallelism,
+				limit * 1000L);
+		long elapsed = System.nanoTime() - start;
+
+		writeCsv(new File(report + ".csv"), results);
+		printSummary(results, pages, schedulers, seeds.length, target);
+		System.out.println(String.format(
+				"%d runs in %.1f s; each run's statistics written to %s.csv",
+				results.size(), elapsed / 1e9, report));
+	}
+
+	private static void usage(String message) {
+		System.err.println(message);
+		System.err.println("usage: java nachos.benchmarks.Sweep [-[] config] "
+				+ "[-x program] [-m numPhysPages] [-S schedulers] [-s seeds] "
+				+ "[-j parallelism] [-T targetTicks] [-l limitSeconds] "
+				+ "[-o report]");
+		System.exit(1);
+	}
+
+	private static String[] seedList(String value) {
+		int dash = value.indexOf('-', 1);
+		if (dash == -1)
+			return value.split(",");
+
+		long first = Long.parseLong(value.substring(0, dash));
+		long last = Long.parseLong(value.substring(dash + 1));
+		String[] seeds = new String[(int) (last - first + 1)];
+		for (int i = 0; i < seeds.length; i++)
+			seeds[i] = "" + (first + i);
+		return seeds;
+	}
+
+	private static String schedulerClass(String scheduler) {
+		return scheduler.indexOf('.') == -1 ? "nachos.threads." + scheduler
+				: scheduler;
+	}
+
+	private static String schedulerName(String scheduler) {
+		return scheduler.substring(scheduler.lastIndexOf('.') + 1);
+	}
+
+	/**
+	 * Read a configuration file into a map. The syntax is a subset of what
+	 * <tt>Config</tt> accepts: a key, <tt>=</tt> and a value, which may be
+	 * quoted, on each line, and comments starting with <tt>#</tt>.
+	 */
+	private static Map<String, String> readConfig(String fileName)
+			throws IOException {
+		Properties properties = new Properties();
+		FileReader in = new FileReader(fileName);
+		properties.load(in);
+		in.close();
+
+		Map<String, String> config = new LinkedHashMap<String, String>();
+		for (Iterator<String> i = properties.stringPropertyNames().iterator(); i
+				.hasNext();) {
+			String key = i.next();
+			String value = properties.getProperty(key).trim();
+			if (value.length() >= 2 && value.startsWith("\"")
+					&& value.endsWith("\""))
+				value = value.substring(1, value.length() - 1);
+			config.put(key, value);
+		}
+		return config;
+	}
+
+	private static boolean halted(Batch.Result result) {
+		return !result.failed()
+				&& result.output.indexOf("Machine halting!") != -1
+				&& result.output.indexOf("Exception Exit") == -1
+				&& result.output.indexOf("AssertionFailureError") == -1;
+	}
+
+	private static String status(Batch.Result result) {
+		return result.timedOut ? "timeout" : halted(result) ? "ok" : "failed";
+	}
+
+	private static long stat(Batch.Result result, String name) {
+		Long value = result.stats.get(name);
+		return value == null ? 0 : value.longValue();
+	}
+
+	private static void printSummary(List<Batch.Result> results,
+			String[] pages, String[] schedulers, int numSeeds, long target) {
+		System.out.println();
+		System.out.println(String.format("%6s %-22s %5s %6s %10s %10s %10s %8s %8s %9s%s",
+				"pages", "scheduler", "runs", "failed", "min ticks",
+				"mean ticks", "max ticks", "faults", "misses", "wall ms",
+				target > 0 ? "  target" : ""));
+
+		int run = 0;
+		for (int m = 0; m < pages.length; m++) {
+			for (int k = 0; k < schedulers.length; k++) {
+				int failed = 0, halted = 0;
+				long min = Long.MAX_VALUE, max = 0;
+				double ticks = 0, faults = 0, misses = 0, wall = 0;
+
+				for (int s = 0; s < numSeeds; s++, run++) {
+					Batch.Result result = results.get(run);
+					wall += result.wallTime / 1e6;
+					if (!halted(result)) {
+						failed++;
+						continue;
+					}
+
+					halted++;
+					long total = stat(result, "totalTicks");
+					min = Math.min(min, total);
+					max = Math.max(max, total);
+					ticks += total;
+					faults += stat(result, "numPageFaults");
+					misses += stat(result, "numTLBMisses");
+				}
+
+				String line;
+				if (halted == 0) {
+					line = String.format("%6s %-22s %5d %6d %10s %10s %10s %8s %8s %9.1f",
+							pages[m], schedulerName(schedulers[k]), numSeeds,
+							failed, "-", "-", "-", "-", "-", wall / numSeeds);
+				}
+				else {
+					line = String.format("%6s %-22s %5d %6d %10d %10.0f %10d %8.1f %8.1f %9.1f",
+							pages[m], schedulerName(schedulers[k]), numSeeds,
+							failed, min, ticks / halted, max, faults / halted,
+							misses / halted, wall / numSeeds);
+				}
+				if (target > 0)
+					line += (failed == 0 && max <= target) ? "  met" : "  missed";
+				System.out.println(line);
+			}
+		}
+		System.out.println();
+	}
+
+	private static void writeCsv(File file, List<Batch.Result> results)
+			throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		out.println("numPhysPages,scheduler,seed,status,totalTicks,kernelTicks,"
+				+ "userTicks,pageFaults,tlbMisses,wallMillis");
+		for (int i = 0; i < results.size(); i++) {
+			Batch.Result result = results.get(i);
+			String line = result.config.get("Processor.numPhysPages") + ","
+					+ schedulerName(result.config.get("ThreadedKernel.scheduler"))
+					+ "," + result.args[1] + "," + status(result);
+			if (halted(result)) {
+				line += "," + stat(result, "totalTicks") + ","
+						+ stat(result, "kernelTicks") + ","
+						+ stat(result, "userTicks") + ","
+						+ stat(result, "numPageFaults") + ","
+						+ stat(result, "numTLBMisses");
+			}
+			else {
+				line += ",,,,,";
+			}
+			out.println(line + "," + result.wallTime / 1000000);
+		}
+		out.close();
+	}
+}
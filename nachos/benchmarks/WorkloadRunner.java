@@ -0,0 +1,258 @@
+package nachos.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the COFF test programs one at a time, each on a freshly booted machine
+ * in its own JVM, under each kernel and physical memory size asked for, and
+ * reports what <tt>Stats</tt> printed for each run along with its wall time.
+ *
+ * <pre>
+ * cd nachos/test
+ * java nachos.benchmarks.WorkloadRunner [-k kernels] [-m numPhysPages]
+ *     [-p programs] [-t testDirectory] [-T timeoutSeconds] [-o report]
+ * </pre>
+ *
+ * <p>
+ * Lists are comma-separated. Kernels are <tt>VMKernel</tt> (the default)
+ * and <tt>UserKernel</tt>; programs must run without arguments. A run that
+ * does not halt cleanly is reported as <tt>failed</tt>, or as
+ * <tt>timeout</tt> if it is still running after the timeout. The report is
+ * written to <i>report</i><tt>.csv</tt> and <i>report</i><tt>.json</tt>, by
+ * default <tt>workloads.csv</tt> and <tt>workloads.json</tt>. The child JVMs
+ * use this JVM's class path, and read no console input.
+ */
+public class WorkloadRunner {
+	public static void main(String[] args) throws Exception {
+		String[] kernels = { "VMKernel" };
+		String[] pages = { "16", "64" };
+		String[] programs = { "matmult.coff", "sort.coff", "write1.coff",
+				"write10.coff" };
+		String testDirectory = ".";
+		int timeout = 300;
+		String report = "workloads";
+
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (i + 1 == args.length)
+				usage("switch without argument: " + arg);
+			String value = args[++i];
+
+			if (arg.equals("-k"))
+				kernels = value.split(",");
+			else if (arg.equals("-m"))
+				pages = value.split(",");
+			else if (arg.equals("-p"))
+				programs = value.split(",");
+			else if (arg.equals("-t"))
+				testDirectory = value;
+			else if (arg.equals("-T"))
+				timeout = Integer.parseInt(value);
+			else if (arg.equals("-o"))
+				report = value;
+			else
+				usage("unknown switch: " + arg);
+		}
+
+		File testDir = new File(testDirectory).getAbsoluteFile();
+		ArrayList<Map<String, Object>> runs = new ArrayList<Map<String, Object>>();
+
+		for (int k = 0; k < kernels.length; k++) {
+			File config = writeConfig(kernels[k], testDir);
+			for (int m = 0; m < pages.length; m++) {
+				for (int p = 0; p < programs.length; p++) {
+					Map<String, Object> run = runOnce(config, kernels[k],
+							Integer.parseInt(pages[m]), programs[p], timeout);
+					System.out.println(run);
+					runs.add(run);
+				}
+			}
+		}
+
+		writeCsv(new File(report + ".csv"), runs);
+		writeJson(new File(report + ".json"), runs);
+		System.out.println("report written to " + report + ".csv and "
+				+ report + ".json");
+	}
+
+	private static void usage(String message) {
+		System.err.println(message);
+		System.err.println("usage: java nachos.benchmarks.WorkloadRunner "
+				+ "[-k kernels] [-m numPhysPages] [-p programs] "
+				+ "[-t testDirectory] [-T timeoutSeconds] [-o report]");
+		System.exit(1);
+	}
+
+	private static File writeConfig(String kernel, File testDir)
+			throws IOException {
+		String kernelClass, processClass;
+		boolean usingTLB;
+		if (kernel.equals("UserKernel")) {
+			kernelClass = "nachos.userprog.UserKernel";
+			processClass = "nachos.userprog.UserProcess";
+			usingTLB = false;
+		}
+		else if (kernel.equals("VMKernel")) {
+			kernelClass = "nachos.vm.VMKernel";
+			processClass = "nachos.vm.VMProcess";
+			usingTLB = true;
+		}
+		else {
+			usage("unknown kernel: " + kernel);
+			return null;
+		}
+
+		File config = File.createTempFile("nachos-" + kernel, ".conf");
+		config.deleteOnExit();
+		PrintWriter out = new PrintWriter(new FileWriter(config));
+		out.println("Machine.stubFileSystem = true");
+		out.println("Machine.processor = true");
+		out.println("Machine.console = true");
+		out.println("Machine.disk = false");
+		out.println("Machine.bank = false");
+		out.println("Machine.networkLink = false");
+		out.println("Processor.usingTLB = " + usingTLB);
+		out.println("ElevatorBank.allowElevatorGUI = false");
+		out.println("NachosSecurityManager.fullySecure = false");
+		out.println("ThreadedKernel.scheduler = nachos.threads.RoundRobinScheduler");
+		out.println("FileSystem.testDirectory = " + testDir.getPath());
+		out.println("Kernel.processClassName = " + processClass);
+		out.println("Kernel.kernel = " + kernelClass);
+		out.close();
+		return config;
+	}
+
+	private static Map<String, Object> runOnce(File config, String kernel,
+			int numPhysPages, String program, int timeout) throws Exception {
+		Map<String, Object> run = new LinkedHashMap<String, Object>();
+		run.put("kernel", kernel);
+		run.put("program", program);
+		run.put("numPhysPages", numPhysPages);
+
+		ProcessBuilder builder = new ProcessBuilder(javaCommand(),
+				"-Djava.security.manager=allow", "-cp",
+				System.getProperty("java.class.path"),
+				"nachos.machine.Machine", "-[]", config.getPath(), "-x",
+				program, "-m", "" + numPhysPages);
+		builder.redirectErrorStream(true);
+		builder.redirectInput(ProcessBuilder.Redirect.from(new File(
+				nullDevice())));
+
+		long start = System.nanoTime();
+		Process child = builder.start();
+
+		// drain the output as it comes, so a chatty child cannot block
+		final Process drained = child;
+		final StringBuffer output = new StringBuffer();
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				try {
+					BufferedReader in = new BufferedReader(
+							new InputStreamReader(drained.getInputStream()));
+					String line;
+					while ((line = in.readLine()) != null)
+						output.append(line).append('\n');
+				}
+				catch (IOException e) {
+				}
+			}
+		});
+		reader.start();
+
+		boolean finished = child.waitFor(timeout, TimeUnit.SECONDS);
+		if (!finished)
+			child.destroyForcibly().waitFor();
+		reader.join();
+		long wallMillis = (System.nanoTime() - start) / 1000000;
+
+		String text = output.toString();
+		boolean halted = parse(text, ticksPattern, run, new String[] {
+				"totalTicks", "kernelTicks", "userTicks" });
+		parse(text, pagingPattern, run, new String[] { "pageFaults",
+				"tlbMisses" });
+		parse(text, swapPattern, run, new String[] { "coffReads",
+				"swapReads", "swapWrites" });
+
+		run.put("status", !finished ? "timeout" : !halted ? "failed" : "ok");
+		run.put("wallMillis", wallMillis);
+		return run;
+	}
+
+	private static boolean parse(String text, Pattern pattern,
+			Map<String, Object> run, String[] names) {
+		Matcher matcher = pattern.matcher(text);
+		boolean found = matcher.find();
+		for (int i = 0; i < names.length; i++)
+			run.put(names[i], found ? Long.valueOf(matcher.group(i + 1)) : null);
+		return found;
+	}
+
+	private static void writeCsv(File file, ArrayList<Map<String, Object>> runs)
+			throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		out.println(String.join(",", columns));
+		for (int i = 0; i < runs.size(); i++) {
+			String line = "";
+			for (int c = 0; c < columns.length; c++) {
+				Object value = runs.get(i).get(columns[c]);
+				line += (c > 0 ? "," : "") + (value == null ? "" : value);
+			}
+			out.println(line);
+		}
+		out.close();
+	}
+
+	private static void writeJson(File file, ArrayList<Map<String, Object>> runs)
+			throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		out.println("[");
+		for (int i = 0; i < runs.size(); i++) {
+			String line = "  {";
+			for (int c = 0; c < columns.length; c++) {
+				Object value = runs.get(i).get(columns[c]);
+				line += (c > 0 ? ", " : "") + "\"" + columns[c] + "\": ";
+				if (value instanceof String)
+					line += "\"" + value + "\"";
+				else
+					line += value;
+			}
+			out.println(line + "}" + (i + 1 < runs.size() ? "," : ""));
+		}
+		out.println("]");
+		out.close();
+	}
+
+	private static String javaCommand() {
+		return new File(new File(System.getProperty("java.home"), "bin"),
+				"java").getPath();
+	}
+
+	private static String nullDevice() {
+		return File.separatorChar == '\\' ? "NUL" : "/dev/null";
+	}
+
+	private static final String[] columns = { "kernel", "program",
+			"numPhysPages", "status", "totalTicks", "kernelTicks", "userTicks",
+			"wallMillis", "pageFaults", "tlbMisses", "coffReads", "swapReads",
+			"swapWrites" };
+
+	private static final Pattern ticksPattern = Pattern
+			.compile("Ticks: total (\\d+), kernel (\\d+), user (\\d+)");
+
+	private static final Pattern pagingPattern = Pattern
+			.compile("Paging: page faults (\\d+), TLB misses (\\d+)");
+
+	private static final Pattern swapPattern = Pattern
+			.compile("Swap: COFF reads (\\d+), swap reads (\\d+), swap writes (\\d+)");
+}
@@ -0,0 +1,203 @@
+package nachos.benchmarks;
+
+import java.lang.reflect.Method;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * The kernel workloads measured by the benchmarks. Each must be run by a
+ * Nachos thread, normally the kernel's main thread in
+ * <tt>BenchmarkKernel</tt>, and returns only once every thread it forked has
+ * finished.
+ */
+public final class Workloads {
+	/**
+	 * Prevent instantiation.
+	 */
+	private Workloads() {
+	}
+
+	/**
+	 * Two threads yield to each other <i>n</i> times each, for 2<i>n</i>
+	 * context switches.
+	 */
+	public static void yieldPingPong(final int n) {
+		KThread other = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < n; i++)
+					KThread.yield();
+			}
+		}).setName("yield");
+		other.fork();
+
+		for (int i = 0; i < n; i++)
+			KThread.yield();
+
+		other.join();
+	}
+
+	/**
+	 * Two threads pass control back and forth <i>n</i> times through a pair
+	 * of semaphores.
+	 */
+	public static void semaphorePingPong(final int n) {
+		final Semaphore ping = new Semaphore(0);
+		final Semaphore pong = new Semaphore(0);
+
+		KThread other = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < n; i++) {
+					ping.P();
+					pong.V();
+				}
+			}
+		}).setName("pong");
+		other.fork();
+
+		for (int i = 0; i < n; i++) {
+			ping.V();
+			pong.P();
+		}
+
+		other.join();
+	}
+
+	/**
+	 * Two threads take turns holding a lock <i>n</i> times each, each
+	 * yielding while it holds the lock so that the other must block on it.
+	 */
+	public static void lockHandoff(final int n) {
+		final Lock lock = new Lock();
+
+		Runnable contend = new Runnable() {
+			public void run() {
+				for (int i = 0; i < n; i++) {
+					lock.acquire();
+					KThread.yield();
+					lock.release();
+				}
+			}
+		};
+
+		KThread other = new KThread(contend).setName("lock");
+		other.fork();
+
+		contend.run();
+
+		other.join();
+	}
+
+	/**
+	 * Two threads take <i>n</i> turns each, handing the turn over with a
+	 * condition variable.
+	 */
+	public static void conditionHandoff(final int n) {
+		final Lock lock = new Lock();
+		final Condition turnTaken = new Condition(lock);
+		final int[] turn = new int[1];
+
+		class TakeTurns implements Runnable {
+			TakeTurns(int me) {
+				this.me = me;
+			}
+
+			public void run() {
+				lock.acquire();
+				for (int i = 0; i < n; i++) {
+					while (turn[0] != me)
+						turnTaken.sleep();
+					turn[0] = 1 - me;
+					turnTaken.wake();
+				}
+				lock.release();
+			}
+
+			private int me;
+		}
+
+		KThread other = new KThread(new TakeTurns(1)).setName("condition");
+		other.fork();
+
+		new TakeTurns(0).run();
+
+		other.join();
+	}
+
+	/**
+	 * Enable and disable interrupts <i>n</i> times. Each enable advances the
+	 * clock by a kernel tick and delivers any interrupt that is due, so this
+	 * also covers the timer interrupts scheduled along the way.
+	 */
+	public static void interruptTicks(int n) {
+		Interrupt interrupt = Machine.interrupt();
+		boolean intStatus = interrupt.disable();
+
+		for (int i = 0; i < n; i++) {
+			interrupt.enable();
+			interrupt.disable();
+		}
+
+		interrupt.restore(intStatus);
+	}
+
+	/**
+	 * Run a user program to completion.
+	 *
+	 * @param name the program's executable.
+	 * @return the number of user instructions it executed.
+	 */
+	public static long runProgram(String name) {
+		long userTicks = Machine.stats().userTicks;
+
+		UserProcess process = UserProcess.newUserProcess();
+		Lib.assertTrue(process.execute(name, new String[] {}),
+				"could not execute " + name);
+		BenchmarkKernel.waitForProcesses();
+
+		return (Machine.stats().userTicks - userTicks) / Stats.UserTick;
+	}
+
+	/**
+	 * Load a user program into a new process without running it, so that
+	 * its virtual memory can be copied to and from.
+	 *
+	 * @param name the program's executable.
+	 * @return the loaded process.
+	 */
+	public static UserProcess loadProcess(String name) {
+		UserProcess process = UserProcess.newUserProcess();
+
+		// execute() would also start the program running
+		try {
+			Method load = UserProcess.class.getDeclaredMethod("load",
+					String.class, String[].class);
+			load.setAccessible(true);
+			Lib.assertTrue(((Boolean) load.invoke(process, name,
+					new String[] {})).booleanValue(), "could not load " + name);
+		}
+		catch (Exception e) {
+			Lib.assertNotReached("could not load " + name + ": " + e);
+		}
+
+		return process;
+	}
+
+	/**
+	 * Copy <i>buffer</i> out of a process's virtual memory and back again,
+	 * leaving the memory as it was.
+	 *
+	 * @param process a process from <tt>loadProcess()</tt>.
+	 * @param vaddr the first virtual address to copy.
+	 * @param buffer the buffer to copy through.
+	 * @return the number of bytes copied each way.
+	 */
+	public static int copyVirtualMemory(UserProcess process, int vaddr,
+			byte[] buffer) {
+		int read = process.readVirtualMemory(vaddr, buffer);
+		int written = process.writeVirtualMemory(vaddr, buffer, 0, read);
+		Lib.assertTrue(read == buffer.length && written == read);
+		return read;
+	}
+}
@@ -0,0 +1,419 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many Nachos simulations in one JVM, one after another or several at
+ * once, so that a parameter sweep pays for JVM startup and JIT warm-up only
+ * once.
+ *
+ * <p>
+ * The machine and the kernels keep their state in static fields, so each
+ * simulation gets its own class loader, and with it its own copy of every
+ * Nachos class. Each runs contained (see <tt>Machine.runContained()</tt>):
+ * no security manager is installed, so only trusted kernels should be run
+ * this way, and exiting stops the simulation's threads rather than the JVM.
+ * Each simulation is also isolated from the others: it gets a private copy of
+ * the test directory, so that simulations running at once do not share a
+ * swap file, and the host files it writes, such as its profile and trace,
+ * carry its run name (see <tt>Machine.runFile()</tt>).
+ * What a simulation prints is captured in its <tt>Result</tt>. A simulation
+ * that runs past its time limit is stopped, but one with no time limit that
+ * never exits holds on to its thread forever.
+ *
+ * <pre>
+ * java nachos.machine.Batch [-j parallelism] [-x program] config ...
+ * </pre>
+ *
+ * <p>
+ * runs Nachos once with each configuration file, from the current
+ * directory, and prints each run's output in turn.
+ */
+public final class Batch {
+	/**
+	 * Prevent instantiation.
+	 */
+	private Batch() {
+	}
+
+	/**
+	 * Run one simulation for each configuration, with no other arguments.
+	 *
+	 * @param configs the configurations, each a map from configuration key to
+	 * value, as would be read from <tt>nachos.conf</tt>.
+	 * @param parallelism how many simulations to run at once.
+	 * @return the results, in the same order as the configurations.
+	 */
+	public static List<Result> run(List<Map<String, String>> configs,
+			int parallelism) {
+		List<String[]> args = new ArrayList<String[]>();
+		for (int i = 0; i < configs.size(); i++)
+			args.add(new String[0]);
+
+		return run(configs, args, parallelism);
+	}
+
+	/**
+	 * Run one simulation for each configuration and argument list.
+	 *
+	 * @param configs the configurations, each a map from configuration key to
+	 * value, or <tt>null</tt> to use the configuration file named by the
+	 * arguments, or <tt>nachos.conf</tt>.
+	 * @param args the command line arguments of each simulation, as for
+	 * <tt>Machine.main()</tt>.
+	 * @param parallelism how many simulations to run at once.
+	 * @return the results, in the same order as the configurations.
+	 */
+	public static List<Result> run(List<Map<String, String>> configs,
+			List<String[]> args, int parallelism) {
+		return run(configs, args, parallelism, 0);
+	}
+
+	/**
+	 * Run one simulation for each configuration and argument list, stopping
+	 * any that runs for too long.
+	 *
+	 * @param configs the configurations, each a map from configuration key to
+	 * value, or <tt>null</tt> to use the configuration file named by the
+	 * arguments, or <tt>nachos.conf</tt>.
+	 * @param args the command line arguments of each simulation, as for
+	 * <tt>Machine.main()</tt>.
+	 * @param parallelism how many simulations to run at once.
+	 * @param timeLimit how long each simulation may run, in milliseconds, or
+	 * 0 for no limit.
+	 * @return the results, in the same order as the configurations.
+	 */
+	public static List<Result> run(final List<Map<String, String>> configs,
+			final List<String[]> args, int parallelism, final long timeLimit) {
+		Lib.assertTrue(configs.size() == args.size());
+		Lib.assertTrue(parallelism > 0);
+
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		List<Future<Result>> futures = new ArrayList<Future<Result>>();
+		for (int i = 0; i < configs.size(); i++) {
+			final int run = i;
+			futures.add(executor.submit(new Callable<Result>() {
+				public Result call() {
+					return runOne(configs.get(run), args.get(run), timeLimit);
+				}
+			}));
+		}
+		executor.shutdown();
+
+		List<Result> results = new ArrayList<Result>();
+		for (int i = 0; i < futures.size(); i++) {
+			while (true) {
+				try {
+					results.add(futures.get(i).get());
+					break;
+				}
+				catch (InterruptedException e) {
+				}
+				catch (ExecutionException e) {
+					Lib.assertNotReached("batch run failed: " + e.getCause());
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Run one simulation on the current thread.
+	 *
+	 * @param config the configuration, or <tt>null</tt> to use the
+	 * configuration file named by the arguments.
+	 * @param args the command line arguments.
+	 * @return the result.
+	 */
+	public static Result runOne(Map<String, String> config, String[] args) {
+		return runOne(config, args, 0);
+	}
+
+	/**
+	 * Run one simulation on the current thread, stopping it if it runs for
+	 * too long.
+	 *
+	 * @param config the configuration, or <tt>null</tt> to use the
+	 * configuration file named by the arguments.
+	 * @param args the command line arguments.
+	 * @param timeLimit how long the simulation may run, in milliseconds, or 0
+	 * for no limit.
+	 * @return the result.
+	 */
+	public static Result runOne(Map<String, String> config, String[] args,
+			long timeLimit) {
+		final Result result = new Result(config, args,
+				"run" + runCount.incrementAndGet());
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+		installCapture();
+		captured.set(output);
+
+		long start = System.nanoTime();
+		URLClassLoader loader = null;
+		try {
+			loader = newLoader();
+			Class<?> machine = loader.loadClass(Machine.class.getName());
+
+			final Method stop = machine.getMethod("stopContained");
+			TimerTask watchdog = new TimerTask() {
+				public void run() {
+					try {
+						if (((Boolean) stop.invoke(null)).booleanValue())
+							result.timedOut = true;
+					}
+					catch (Exception e) {
+						Lib.assertNotReached("could not stop a simulation: " + e);
+					}
+				}
+			};
+			if (timeLimit > 0)
+				watchdogs.schedule(watchdog, timeLimit);
+
+			result.exitStatus = ((Integer) machine.getMethod("runContained",
+					Map.class, String[].class, String.class).invoke(null,
+					config, args, result.runName)).intValue();
+			watchdog.cancel();
+			result.stats = readStats(machine.getMethod("stats").invoke(null));
+		}
+		catch (InvocationTargetException e) {
+			result.failure = e.getCause();
+		}
+		catch (Exception e) {
+			result.failure = e;
+		}
+		finally {
+			result.wallTime = System.nanoTime() - start;
+			captured.remove();
+			if (loader != null) {
+				try {
+					loader.close();
+				}
+				catch (IOException e) {
+				}
+			}
+		}
+
+		synchronized (output) {
+			result.output = output.toString();
+		}
+		return result;
+	}
+
+	/**
+	 * The outcome of one simulation.
+	 */
+	public static final class Result {
+		Result(Map<String, String> config, String[] args, String runName) {
+			this.config = config;
+			this.args = args;
+			this.runName = runName;
+		}
+
+		/**
+		 * Test whether the simulation failed: it did not run, was stopped, did
+		 * not exit with status 0, or a user process in it was killed by an
+		 * unhandled exception.
+		 *
+		 * @return <tt>true</tt> if the simulation failed.
+		 */
+		public boolean failed() {
+			if (failure != null || timedOut || exitStatus != 0 || stats == null)
+				return true;
+
+			Long faults = stats.get("numProcessFaults");
+			return faults != null && faults.longValue() > 0;
+		}
+
+		/** The configuration the simulation ran with. */
+		public final Map<String, String> config;
+
+		/** The command line arguments the simulation ran with. */
+		public final String[] args;
+
+		/**
+		 * The name that sets this simulation apart from others on the host,
+		 * as in its host file names.
+		 */
+		public final String runName;
+
+		/**
+		 * The exit status, or -1 if the simulation failed to run or was
+		 * stopped.
+		 */
+		public int exitStatus = -1;
+
+		/** <tt>true</tt> if the simulation was stopped for running too long. */
+		public volatile boolean timedOut = false;
+
+		/**
+		 * The simulation's <tt>Stats</tt> counters (its public <tt>int</tt> and
+		 * <tt>long</tt> fields) when it exited, by field name, or
+		 * <tt>null</tt> if it failed to run.
+		 */
+		public Map<String, Long> stats = null;
+
+		/** Everything the simulation printed. */
+		public String output;
+
+		/** The host time the simulation took, in nanoseconds. */
+		public long wallTime;
+
+		/** Why the simulation failed to run, or <tt>null</tt>. */
+		public Throwable failure = null;
+	}
+
+	/**
+	 * Create a class loader that loads every Nachos class afresh, from the
+	 * class path this class was loaded from.
+	 */
+	private static URLClassLoader newLoader() throws IOException {
+		String[] path = System.getProperty("java.class.path").split(
+				File.pathSeparator);
+		URL[] urls = new URL[path.length];
+		for (int i = 0; i < path.length; i++)
+			urls[i] = new File(path[i]).toURI().toURL();
+
+		return new URLClassLoader(urls, ClassLoader.getPlatformClassLoader());
+	}
+
+	private static Map<String, Long> readStats(Object stats)
+			throws IllegalAccessException {
+		Map<String, Long> counters = new LinkedHashMap<String, Long>();
+		Field[] fields = stats.getClass().getFields();
+		for (int i = 0; i < fields.length; i++) {
+			Class<?> type = fields[i].getType();
+			if ((type == long.class || type == int.class)
+					&& !Modifier.isStatic(fields[i].getModifiers()))
+				counters.put(fields[i].getName(), fields[i].getLong(stats));
+		}
+		return counters;
+	}
+
+	/**
+	 * Replace <tt>System.out</tt> and <tt>System.err</tt>, once, with streams
+	 * that write to the output buffer of the simulation the writing thread
+	 * belongs to. Threads started by a simulation inherit its buffer.
+	 */
+	private static synchronized void installCapture() {
+		if (captureInstalled)
+			return;
+
+		System.setOut(new PrintStream(new Capture(System.out), true));
+		System.setErr(new PrintStream(new Capture(System.err), true));
+		captureInstalled = true;
+	}
+
+	private static class Capture extends OutputStream {
+		Capture(PrintStream host) {
+			this.host = host;
+		}
+
+		public void write(int b) {
+			ByteArrayOutputStream output = captured.get();
+			if (output == null) {
+				host.write(b);
+				return;
+			}
+
+			synchronized (output) {
+				output.write(b);
+			}
+		}
+
+		public void write(byte[] b, int offset, int length) {
+			ByteArrayOutputStream output = captured.get();
+			if (output == null) {
+				host.write(b, offset, length);
+				return;
+			}
+
+			synchronized (output) {
+				output.write(b, offset, length);
+			}
+		}
+
+		public void flush() {
+			host.flush();
+		}
+
+		private PrintStream host;
+	}
+
+	/**
+	 * Run Nachos once with each configuration file named on the command line,
+	 * and print the output of each run in turn.
+	 *
+	 * @param args the command line arguments.
+	 */
+	public static void main(String[] args) {
+		int parallelism = 1;
+		String program = null;
+		List<Map<String, String>> configs = new ArrayList<Map<String, String>>();
+		List<String[]> runArgs = new ArrayList<String[]>();
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-j") && i + 1 < args.length) {
+				parallelism = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("-x") && i + 1 < args.length) {
+				program = args[++i];
+			}
+			else {
+				configs.add(null);
+				runArgs.add(program == null ? new String[] { "-[]", args[i] }
+						: new String[] { "-[]", args[i], "-x", program });
+			}
+		}
+
+		if (configs.isEmpty()) {
+			System.err.println("usage: java nachos.machine.Batch "
+					+ "[-j parallelism] [-x program] config ...");
+			System.exit(1);
+		}
+
+		List<Result> results = run(configs, runArgs, parallelism);
+		for (int i = 0; i < results.size(); i++) {
+			Result result = results.get(i);
+			System.out.print("=== " + result.args[1] + "\n" + result.output);
+			if (result.failure != null)
+				result.failure.printStackTrace();
+			System.out.println(String.format(
+					"=== exit status %d, %.1f ms%s", result.exitStatus,
+					result.wallTime / 1000000.0, result.failed() ? ", FAILED"
+							: ""));
+		}
+	}
+
+	private static boolean captureInstalled = false;
+
+	private static final AtomicInteger runCount = new AtomicInteger();
+
+	private static final Timer watchdogs = new Timer("batch watchdog", true);
+
+	private static final InheritableThreadLocal<ByteArrayOutputStream> captured = new InheritableThreadLocal<ByteArrayOutputStream>();
+}
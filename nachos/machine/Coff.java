@@ -3,6 +3,9 @@
 package nachos.machine;
 
 import java.io.EOFException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * A COFF (common object file format) loader.
@@ -60,6 +63,7 @@ public class Coff {
 			int numSections = Lib.bytesToUnsignedShort(headers, 2);
 			int optionalHeaderLength = Lib.bytesToUnsignedShort(headers, 16);
 			int flags = Lib.bytesToUnsignedShort(headers, 18);
+			symbolTableOffset = Lib.bytesToInt(headers, 8);
 			entryPoint = Lib.bytesToInt(headers, headerLength + 16);
 
 			if (magic != 0x0162) {
@@ -127,6 +131,106 @@ public class Coff {
 		return entryPoint;
 	}
 
+	/**
+	 * A procedure named in the executable's symbol table.
+	 */
+	public static class Symbol {
+		Symbol(String name, int address) {
+			this.name = name;
+			this.address = address;
+		}
+
+		/** The name of the procedure. */
+		public final String name;
+
+		/** The address of the first instruction of the procedure. */
+		public final int address;
+	}
+
+	/**
+	 * Read the procedures from the executable's ECOFF symbol table. Both
+	 * local and external procedure symbols are returned. The symbol table is
+	 * only read when this is called, since reading it takes simulated time.
+	 * 
+	 * @return the procedures sorted by address, or an empty array if the
+	 * executable has no symbol table.
+	 */
+	public Symbol[] readSymbols() {
+		Lib.assertTrue(file != null);
+
+		if (symbolTableOffset == 0)
+			return new Symbol[0];
+
+		byte[] header = new byte[symbolicHeaderLength];
+		Lib.strictReadFile(file, symbolTableOffset, header, 0, header.length);
+		if (Lib.bytesToUnsignedShort(header, 0) != 0x7009) {
+			Lib.debug(dbgCoff, "\tbad symbolic header magic");
+			return new Symbol[0];
+		}
+
+		ArrayList<Symbol> symbols = new ArrayList<Symbol>();
+
+		// local symbols, grouped by source file; names are relative to the file
+		int numFiles = symbolicField(header, 17);
+		byte[] files = readTable(symbolicField(header, 18), numFiles * 72);
+		byte[] localSymbols = readTable(symbolicField(header, 8),
+				symbolicField(header, 7) * 12);
+		byte[] localStrings = readTable(symbolicField(header, 14),
+				symbolicField(header, 13));
+		for (int f = 0; f < numFiles; f++) {
+			int issBase = Lib.bytesToInt(files, f * 72 + 8);
+			int isymBase = Lib.bytesToInt(files, f * 72 + 16);
+			int csym = Lib.bytesToInt(files, f * 72 + 20);
+			for (int i = isymBase; i < isymBase + csym; i++)
+				addProcedure(symbols, localSymbols, i * 12, localStrings, issBase);
+		}
+
+		// external symbols carry two extra bytes of file index in front
+		int numExternals = symbolicField(header, 21);
+		byte[] externals = readTable(symbolicField(header, 22), numExternals * 16);
+		byte[] externalStrings = readTable(symbolicField(header, 16),
+				symbolicField(header, 15));
+		for (int i = 0; i < numExternals; i++)
+			addProcedure(symbols, externals, i * 16 + 4, externalStrings, 0);
+
+		Symbol[] sorted = symbols.toArray(new Symbol[symbols.size()]);
+		Arrays.sort(sorted, new Comparator<Symbol>() {
+			public int compare(Symbol a, Symbol b) {
+				return Integer.compareUnsigned(a.address, b.address);
+			}
+		});
+		return sorted;
+	}
+
+	private static int symbolicField(byte[] header, int index) {
+		return Lib.bytesToInt(header, 4 + index * 4);
+	}
+
+	private byte[] readTable(int offset, int length) {
+		byte[] table = new byte[length];
+		if (length > 0)
+			Lib.strictReadFile(file, offset, table, 0, length);
+		return table;
+	}
+
+	private static void addProcedure(ArrayList<Symbol> symbols, byte[] table,
+			int offset, byte[] strings, int issBase) {
+		int iss = Lib.bytesToInt(table, offset);
+		int value = Lib.bytesToInt(table, offset + 4);
+		int st = Lib.extract(Lib.bytesToInt(table, offset + 8), 0, 6);
+
+		// stProc and stStaticProc
+		if (st != 6 && st != 14)
+			return;
+
+		int start = issBase + iss;
+		int end = start;
+		while (end < strings.length && strings[end] != 0)
+			end++;
+
+		symbols.add(new Symbol(new String(strings, start, end - start), value));
+	}
+
 	/**
 	 * Close the executable file and release any resources allocated by this
 	 * loader.
@@ -145,6 +249,11 @@ public class Coff {
 	/** The sections in this COFF executable. */
 	protected CoffSection sections[];
 
+	/** The file offset of the ECOFF symbolic header, or 0 if there is none. */
+	private int symbolTableOffset = 0;
+
+	private static final int symbolicHeaderLength = 96;
+
 	private static final int headerLength = 20;
 
 	private static final int aoutHeaderLength = 28;
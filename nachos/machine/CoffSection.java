@@ -5,7 +5,6 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.EOFException;
-import java.util.Arrays;
 
 /**
  * A <tt>CoffSection</tt> manages a single section within a COFF executable.
@@ -178,7 +177,7 @@ public class CoffSection {
 		Lib.assertTrue(ppn >= 0 && ppn < Machine.processor().getNumPhysPages());
 
 		int pageSize = Processor.pageSize;
-		byte[] memory = Machine.processor().getMemory();
+		PhysicalMemory memory = Machine.processor().getPhysicalMemory();
 		int paddr = ppn * pageSize;
 		int faddr = contentOffset + spn * pageSize;
 		int initlen;
@@ -190,10 +189,18 @@ public class CoffSection {
 		else
 			initlen = pageSize;
 
-		if (initlen > 0)
-			Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+		if (initlen > 0) {
+			if (memory.hasArray()) {
+				Lib.strictReadFile(file, faddr, memory.getArray(), paddr, initlen);
+			}
+			else {
+				byte[] buf = new byte[initlen];
+				Lib.strictReadFile(file, faddr, buf, 0, initlen);
+				memory.write(paddr, buf, 0, initlen);
+			}
+		}
 
-		Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
+		memory.fill(paddr + initlen, pageSize - initlen, (byte) 0);
 	}
 
 	/** The COFF object to which this section belongs. */
@@ -3,19 +3,26 @@
 package nachos.machine;
 
 import java.util.HashMap;
-import java.io.File;
+import java.util.Map;
+import java.io.BufferedReader;
 import java.io.FileReader;
-import java.io.Reader;
-import java.io.StreamTokenizer;
 
 /**
- * Provides routines to access the Nachos configuration.
+ * Provides routines to access the Nachos configuration. Numbers and booleans
+ * are parsed the first time they are read, and the parsed value is kept for
+ * later reads. The machine's own settings are also available, parsed and
+ * checked once at boot, from <tt>Machine.config()</tt>.
  */
 public final class Config {
 	/**
 	 * Load configuration information from the specified file. Must be called
 	 * before the Nachos security manager is installed.
 	 * 
+	 * <p>
+	 * Each line of the file holds a key, <tt>=</tt>, and a value, separated
+	 * by whitespace. The value may be quoted, and everything after it, or
+	 * after a <tt>#</tt>, is ignored.
+	 * 
 	 * @param fileName the name of the file containing the configuration to use.
 	 */
 	public static void load(String fileName) {
@@ -29,71 +36,119 @@ public final class Config {
 		try {
 			config = new HashMap<String, String>();
 
-			File file = new File(configFile);
-			Reader reader = new FileReader(file);
-			StreamTokenizer s = new StreamTokenizer(reader);
+			BufferedReader reader = new BufferedReader(new FileReader(
+					configFile));
+			String text;
+			for (int line = 1; (text = reader.readLine()) != null; line++)
+				parseLine(text, line);
+			reader.close();
+		}
+		catch (Throwable e) {
+			System.err.println("Error loading " + configFile);
+			exit();
+		}
+	}
 
-			s.resetSyntax();
-			s.whitespaceChars(0x00, 0x20);
-			s.wordChars(0x21, 0xFF);
-			s.eolIsSignificant(true);
-			s.commentChar('#');
-			s.quoteChar('"');
+	/**
+	 * Load configuration information from a map of keys to values, instead of
+	 * from a file. Must be called before the Nachos security manager is
+	 * installed.
+	 * 
+	 * @param values the configuration to use.
+	 */
+	public static void load(Map<String, String> values) {
+		System.out.print(" config");
 
-			int line = 1;
+		Lib.assertTrue(!loaded);
+		loaded = true;
 
-			s.nextToken();
+		configFile = "the configuration map";
+		config = new HashMap<String, String>(values);
+	}
 
-			while (true) {
-				if (s.ttype == StreamTokenizer.TT_EOF)
-					break;
+	/**
+	 * Replace the values of some keys, or add keys, after the configuration
+	 * has been loaded, as for the command line's <tt>-c</tt> switch. Must be
+	 * called before any key is read.
+	 * 
+	 * @param values the keys to override, and their new values.
+	 */
+	public static void override(Map<String, String> values) {
+		Lib.assertTrue(loaded && parsed.isEmpty());
 
-				if (s.ttype == StreamTokenizer.TT_EOL) {
-					line++;
-					s.nextToken();
-					continue;
-				}
+		config.putAll(values);
+	}
 
-				if (s.ttype != StreamTokenizer.TT_WORD)
+	/**
+	 * Parse one line of a configuration file: a key, <tt>=</tt>, and a
+	 * value, possibly quoted, followed by anything, or a comment, or nothing.
+	 */
+	private static void parseLine(String text, int line) {
+		String key = null, value = null;
+		boolean sawEquals = false;
+
+		int i = 0;
+		while (value == null) {
+			while (i < text.length() && text.charAt(i) <= 0x20)
+				i++;
+			if (i == text.length() || text.charAt(i) == '#') {
+				if (key != null)
 					loadError(line);
+				return;
+			}
 
-				String key = s.sval;
-
-				if (s.nextToken() != StreamTokenizer.TT_WORD
-						|| !s.sval.equals("="))
-					loadError(line);
+			boolean quoted = text.charAt(i) == '"';
+			int start = quoted ? ++i : i;
+			if (quoted) {
+				while (i < text.length() && text.charAt(i) != '"')
+					i++;
+			}
+			else {
+				while (i < text.length() && text.charAt(i) > 0x20
+						&& text.charAt(i) != '"' && text.charAt(i) != '#')
+					i++;
+			}
+			String token = text.substring(start, i);
+			if (quoted && i < text.length())
+				i++;
 
-				if (s.nextToken() != StreamTokenizer.TT_WORD && s.ttype != '"')
+			if (key == null) {
+				if (quoted)
 					loadError(line);
-
-				String value = s.sval;
-
-				// ignore everything after first string
-				while (s.nextToken() != StreamTokenizer.TT_EOL
-						&& s.ttype != StreamTokenizer.TT_EOF)
-					;
-
-				if (config.get(key) != null)
+				key = token;
+			}
+			else if (!sawEquals) {
+				if (quoted || !token.equals("="))
 					loadError(line);
-
-				config.put(key, value);
-				line++;
+				sawEquals = true;
+			}
+			else {
+				value = token;
 			}
 		}
-		catch (Throwable e) {
-			System.err.println("Error loading " + configFile);
-			System.exit(1);
-		}
+
+		// ignore everything after the value
+		if (config.get(key) != null)
+			loadError(line);
+
+		config.put(key, value);
 	}
 
 	private static void loadError(int line) {
 		System.err.println("Error in " + configFile + " line " + line);
-		System.exit(1);
+		exit();
 	}
 
 	private static void configError(String message) {
 		System.err.println("");
 		System.err.println("Error in " + configFile + ": " + message);
+		exit();
+	}
+
+	private static void exit() {
+		// a contained machine must not take the rest of the JVM down with it
+		Lib.assertTrue(!Machine.isContained(), "bad configuration");
+
 		System.exit(1);
 	}
 
@@ -127,12 +182,18 @@ public final class Config {
 	}
 
 	private static Integer requestInteger(String key) {
+		Object cached = parsed.get(key);
+		if (cached instanceof Integer)
+			return (Integer) cached;
+
 		try {
 			String value = getString(key);
 			if (value == null)
 				return null;
 
-			return Integer.valueOf(value);
+			Integer result = Integer.valueOf(value);
+			parsed.put(key, result);
+			return result;
 		}
 		catch (NumberFormatException e) {
 			configError(key + " should be an integer");
@@ -176,12 +237,18 @@ public final class Config {
 	}
 
 	private static Double requestDouble(String key) {
+		Object cached = parsed.get(key);
+		if (cached instanceof Double)
+			return (Double) cached;
+
 		try {
 			String value = getString(key);
 			if (value == null)
 				return null;
 
-			return Double.valueOf(value);
+			Double result = Double.valueOf(value);
+			parsed.put(key, result);
+			return result;
 		}
 		catch (NumberFormatException e) {
 			configError(key + " should be a double");
@@ -225,15 +292,21 @@ public final class Config {
 	}
 
 	private static Boolean requestBoolean(String key) {
+		Object cached = parsed.get(key);
+		if (cached instanceof Boolean)
+			return (Boolean) cached;
+
 		String value = getString(key);
 
 		if (value == null)
 			return null;
 
 		if (value.equals("1") || value.toLowerCase().equals("true")) {
+			parsed.put(key, Boolean.TRUE);
 			return Boolean.TRUE;
 		}
 		else if (value.equals("0") || value.toLowerCase().equals("false")) {
+			parsed.put(key, Boolean.FALSE);
 			return Boolean.FALSE;
 		}
 		else {
@@ -282,4 +355,6 @@ public final class Config {
 	private static String configFile;
 
 	private static HashMap<String, String> config;
+
+	private static HashMap<String, Object> parsed = new HashMap<String, Object>();
 }
@@ -0,0 +1,303 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.security.PrivilegedExceptionAction;
+import java.security.PrivilegedActionException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A binary trace of machine and kernel events, kept in a ring buffer of the
+ * last <tt>EventTrace.events</tt> events (0, the default, disables tracing).
+ * Each event is a kind, the tick and core it happened on, and two integer
+ * arguments, so recording one costs a few stores and no allocation. Callers
+ * test <tt>EventTrace.enabled</tt> first, which is all tracing costs when it
+ * is disabled:
+ *
+ * <pre>
+ * if (EventTrace.enabled)
+ * 	EventTrace.record(EventTrace.eventSyscallBegin, syscall, a0);
+ * </pre>
+ *
+ * <p>
+ * When the machine halts, the buffer is written to the host file named by
+ * <tt>EventTrace.file</tt> in the Chrome trace-event JSON format, which
+ * <tt>chrome://tracing</tt> and Perfetto display as a timeline: one track for
+ * each Nachos thread, showing when it ran and its system calls and
+ * exceptions, and one track for each core, showing interrupts. One tick is
+ * shown as one microsecond.
+ *
+ * <p>
+ * Events are recorded by kernel code, which only ever runs one thread at a
+ * time, so the buffer is not synchronized.
+ */
+public final class EventTrace {
+	/**
+	 * Prevent instantiation.
+	 */
+	private EventTrace() {
+	}
+
+	/**
+	 * Start tracing if the configuration asks for it. Called by the machine
+	 * before it creates any devices.
+	 *
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 */
+	static void start(Privilege privilege) {
+		int events = Machine.config().traceEvents;
+		if (events == 0)
+			return;
+
+		EventTrace.privilege = privilege;
+		fileName = Machine.config().traceFile;
+
+		capacity = Integer.highestOneBit(events);
+		if (capacity < events)
+			capacity <<= 1;
+		ticks = new long[capacity];
+		words = new int[capacity * wordsPerEvent];
+
+		enabled = true;
+	}
+
+	/**
+	 * Record an event at the current tick. Only call this if
+	 * <tt>enabled</tt> is <tt>true</tt>.
+	 *
+	 * @param kind one of the <tt>event*</tt> constants.
+	 * @param a the event's first argument.
+	 * @param b the event's second argument.
+	 */
+	public static void record(int kind, int a, int b) {
+		int i = (int) (numEvents++ & (capacity - 1));
+
+		ticks[i] = privilege.stats.totalTicks;
+		i *= wordsPerEvent;
+		words[i] = kind
+				| (privilege.processor == null ? 0 : privilege.processor
+						.getCurrentCore() << 8);
+		words[i + 1] = a;
+		words[i + 2] = b;
+	}
+
+	/**
+	 * Return a number standing for a name, for use as an event argument. The
+	 * same name always gets the same number.
+	 *
+	 * @param name the name.
+	 * @return the name's number.
+	 */
+	public static int intern(String name) {
+		Integer number = nameNumbers.get(name);
+		if (number == null) {
+			number = names.size();
+			names.add(name);
+			nameNumbers.put(name, number);
+		}
+		return number;
+	}
+
+	/**
+	 * Name a thread in the trace. Only call this if <tt>enabled</tt> is
+	 * <tt>true</tt>. Names are kept apart from the ring buffer, so they
+	 * survive however many events follow.
+	 *
+	 * @param id the thread's ID, as used in <tt>eventThreadSwitch</tt>.
+	 * @param name the thread's name.
+	 */
+	public static void nameThread(int id, String name) {
+		threadNames.put(id, name);
+	}
+
+	/**
+	 * Write the trace, if tracing is enabled. Called when the machine halts.
+	 */
+	static void finish() {
+		if (!enabled)
+			return;
+
+		enabled = false;
+
+		try {
+			privilege.doPrivileged(new PrivilegedExceptionAction<Object>() {
+				public Object run() throws IOException {
+					Writer out = new BufferedWriter(new FileWriter(fileName));
+					writeChromeTrace(out);
+					out.close();
+					return null;
+				}
+			});
+			System.out.println("Trace: " + Math.min(numEvents, capacity)
+					+ " of " + numEvents + " events written to " + fileName);
+		}
+		catch (PrivilegedActionException e) {
+			System.out.println("Trace: could not write " + fileName + ": "
+					+ e.getException());
+		}
+	}
+
+	private static void writeChromeTrace(Writer out) throws IOException {
+		out.write("{\"traceEvents\": [\n");
+		out.write("{\"name\": \"process_name\", \"ph\": \"M\", \"pid\": "
+				+ pidThreads + ", \"args\": {\"name\": \"threads\"}},\n");
+		out.write("{\"name\": \"process_name\", \"ph\": \"M\", \"pid\": "
+				+ pidCores + ", \"args\": {\"name\": \"cores\"}}");
+		for (Iterator<Map.Entry<Integer, String>> i = threadNames.entrySet()
+				.iterator(); i.hasNext();) {
+			Map.Entry<Integer, String> entry = i.next();
+			out.write(",\n{\"name\": \"thread_name\", \"ph\": \"M\", \"pid\": "
+					+ pidThreads + ", \"tid\": " + entry.getKey()
+					+ ", \"args\": {\"name\": " + quote(entry.getValue()
+					+ " (#" + entry.getKey() + ")") + "}}");
+		}
+
+		long first = Math.max(0, numEvents - capacity);
+
+		// the thread running when the oldest surviving event was recorded is
+		// unknown until the first switch
+		int thread = -1;
+
+		for (long n = first; n < numEvents; n++) {
+			int i = (int) (n & (capacity - 1));
+			long tick = ticks[i];
+			int kind = words[i * wordsPerEvent] & 0xFF;
+			int core = words[i * wordsPerEvent] >>> 8;
+			int a = words[i * wordsPerEvent + 1];
+			int b = words[i * wordsPerEvent + 2];
+
+			// events on a thread's track are dropped until the thread is known
+			if (thread == -1 && kind != eventThreadSwitch
+					&& kind != eventInterrupt)
+				continue;
+
+			switch (kind) {
+			case eventThreadSwitch:
+				if (thread != -1)
+					writeEvent(out, "run", "E", pidThreads, a, tick, null);
+				writeEvent(out, "run", "B", pidThreads, b, tick,
+						"\"core\": " + core);
+				thread = b;
+				break;
+			case eventInterrupt:
+				writeEvent(out, names.get(a), "i", pidCores, core, tick,
+						"\"s\": \"t\"");
+				break;
+			case eventSyscallBegin:
+				writeEvent(out, syscallName(a), "B", pidThreads, thread, tick,
+						"\"a0\": " + b);
+				break;
+			case eventSyscallEnd:
+				writeEvent(out, syscallName(a), "E", pidThreads, thread, tick,
+						"\"result\": " + b);
+				break;
+			case eventExceptionBegin:
+				writeEvent(out, Processor.exceptionNames[a].trim(), "B",
+						pidThreads, thread, tick, "\"badVAddr\": \"0x"
+								+ Lib.toHexString(b) + "\"");
+				break;
+			case eventExceptionEnd:
+				writeEvent(out, Processor.exceptionNames[a].trim(), "E",
+						pidThreads, thread, tick, null);
+				break;
+			default:
+				Lib.assertNotReached("bad trace event " + kind);
+			}
+		}
+
+		out.write("\n]}\n");
+	}
+
+	private static void writeEvent(Writer out, String name, String phase,
+			int pid, int tid, long tick, String args) throws IOException {
+		out.write(",\n{\"name\": " + quote(name) + ", \"ph\": \"" + phase
+				+ "\", \"pid\": " + pid + ", \"tid\": " + tid + ", \"ts\": "
+				+ tick);
+		if (args != null) {
+			if (phase.equals("i"))
+				out.write(", " + args);
+			else
+				out.write(", \"args\": {" + args + "}");
+		}
+		out.write("}");
+	}
+
+	private static String syscallName(int syscall) {
+		if (syscall >= 0 && syscall < Stats.syscallNames.length)
+			return Stats.syscallNames[syscall];
+		return "syscall " + syscall;
+	}
+
+	private static String quote(String s) {
+		StringBuffer quoted = new StringBuffer("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				quoted.append('\\').append(c);
+			else if (c < 0x20)
+				quoted.append("\\u00").append(Lib.toHexString(c, 2));
+			else
+				quoted.append(c);
+		}
+		return quoted.append('"').toString();
+	}
+
+	/**
+	 * <tt>true</tt> if events are being recorded. Test this before calling
+	 * <tt>record()</tt>.
+	 */
+	public static boolean enabled = false;
+
+	/** The kernel switched threads. Arguments: old and new thread IDs. */
+	public static final int eventThreadSwitch = 0;
+
+	/** An interrupt handler ran. Arguments: interned type, unused. */
+	public static final int eventInterrupt = 1;
+
+	/** A system call started. Arguments: syscall number, first argument. */
+	public static final int eventSyscallBegin = 2;
+
+	/** A system call returned. Arguments: syscall number, result. */
+	public static final int eventSyscallEnd = 3;
+
+	/**
+	 * The kernel started handling a user exception other than a system call.
+	 * Arguments: cause, bad virtual address.
+	 */
+	public static final int eventExceptionBegin = 4;
+
+	/** The kernel finished handling a user exception. Arguments: cause. */
+	public static final int eventExceptionEnd = 5;
+
+	private static final int wordsPerEvent = 3;
+
+	private static final int pidThreads = 0, pidCores = 1;
+
+	private static Privilege privilege;
+
+	private static String fileName;
+
+	private static int capacity;
+
+	private static long numEvents = 0;
+
+	private static long[] ticks;
+
+	private static int[] words;
+
+	private static ArrayList<String> names = new ArrayList<String>();
+
+	private static HashMap<String, Integer> nameNumbers = new HashMap<String, Integer>();
+
+	private static TreeMap<Integer, String> threadNames = new TreeMap<Integer, String>();
+}
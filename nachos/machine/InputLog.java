@@ -0,0 +1,232 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.PrivilegedExceptionAction;
+import java.security.PrivilegedActionException;
+import java.util.LinkedList;
+
+/**
+ * A log of the input that reaches the machine from outside the simulation:
+ * bytes typed at the console and packets arriving on the network link. Each
+ * input is logged with the device it arrived on and the tick at which the
+ * device's receive interrupt took it.
+ *
+ * <p>
+ * Set <tt>Machine.inputRecord</tt> to the name of a host file to record a
+ * run's input there. Set <tt>Machine.inputReplay</tt> to a recorded file to
+ * feed the same input back at the same ticks, without reading the real
+ * console or opening a real socket. A replayed log is read whole when it is
+ * opened. Given the same configuration and
+ * <tt>-s</tt> seed, a replayed run is then an exact repeat of the recorded
+ * one.
+ *
+ * <p>
+ * The file starts with the 4-byte magic <tt>NINP</tt> and a 4-byte version,
+ * followed by big-endian records:
+ *
+ * <pre>
+ * long tick, byte device, int length, byte[length] data
+ * </pre>
+ */
+public final class InputLog {
+	/**
+	 * Open the input log named by the configuration, if any.
+	 *
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 * @return the input log, or <tt>null</tt> if input is neither recorded nor
+	 * replayed.
+	 */
+	static InputLog open(Privilege privilege) {
+		String recordFile = Machine.config().inputRecord;
+		String replayFile = Machine.config().inputReplay;
+
+		if (recordFile == null && replayFile == null)
+			return null;
+
+		return new InputLog(privilege, recordFile, replayFile);
+	}
+
+	private InputLog(Privilege privilege, final String recordFile,
+			final String replayFile) {
+		this.privilege = privilege;
+
+		try {
+			privilege.doPrivileged(new PrivilegedExceptionAction<Object>() {
+				public Object run() throws IOException {
+					if (recordFile != null) {
+						out = new DataOutputStream(new BufferedOutputStream(
+								new FileOutputStream(recordFile)));
+					}
+					else {
+						in = new DataInputStream(new BufferedInputStream(
+								new FileInputStream(replayFile)));
+					}
+					return null;
+				}
+			});
+
+			if (out != null) {
+				out.writeInt(magic);
+				out.writeInt(version);
+				out.flush();
+			}
+			else {
+				Lib.assertTrue(in.readInt() == magic && in.readInt() == version,
+						replayFile + " is not an input log");
+				readAll();
+			}
+		}
+		catch (PrivilegedActionException e) {
+			Lib.assertNotReached("could not open input log: " + e.getException());
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("could not open input log: " + e);
+		}
+	}
+
+	/**
+	 * Test whether this log is being replayed, in which case devices must not
+	 * read their real inputs.
+	 *
+	 * @return <tt>true</tt> if input comes from this log.
+	 */
+	public boolean isReplaying() {
+		return recorded != null;
+	}
+
+	/**
+	 * Record input that arrived on the specified device at the current tick.
+	 *
+	 * @param device one of the <tt>device*</tt> constants.
+	 * @param data the input.
+	 */
+	public void record(int device, byte[] data) {
+		Lib.assertTrue(out != null);
+
+		try {
+			out.writeLong(privilege.stats.totalTicks);
+			out.writeByte(device);
+			out.writeInt(data.length);
+			out.write(data);
+			// inputs are rare, and a log cut short by a crash is still useful
+			out.flush();
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("could not record input: " + e);
+		}
+	}
+
+	/**
+	 * Return the input that arrived on the specified device at the current
+	 * tick in the recorded run.
+	 *
+	 * @param device one of the <tt>device*</tt> constants.
+	 * @return the input, or <tt>null</tt> if none arrived on the device at
+	 * this tick.
+	 */
+	public byte[] replay(int device) {
+		Lib.assertTrue(recorded != null);
+
+		long time = privilege.stats.totalTicks;
+		Record next = recorded[device].peek();
+		if (next == null || next.tick > time)
+			return null;
+
+		Lib.assertTrue(next.tick == time,
+				"replay diverged: input recorded at tick " + next.tick
+						+ " was not taken");
+
+		recorded[device].removeFirst();
+		return next.data;
+	}
+
+	/**
+	 * Return the tick at which the recorded run next took input from the
+	 * specified device, so that a device that does not poll can arrange to
+	 * take it at the same tick.
+	 *
+	 * @param device one of the <tt>device*</tt> constants.
+	 * @return the tick, or -1 if no more input was taken from the device.
+	 */
+	public long nextTick(int device) {
+		Lib.assertTrue(recorded != null);
+
+		Record next = recorded[device].peek();
+		return (next == null) ? -1 : next.tick;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readAll() throws IOException {
+		recorded = (LinkedList<Record>[]) new LinkedList<?>[numDevices];
+		for (int i = 0; i < numDevices; i++)
+			recorded[i] = new LinkedList<Record>();
+
+		while (true) {
+			long tick;
+			try {
+				tick = in.readLong();
+			}
+			catch (EOFException e) {
+				break;
+			}
+
+			int device = in.readByte();
+			byte[] data = new byte[in.readInt()];
+			in.readFully(data);
+
+			Lib.assertTrue(device >= 0 && device < numDevices,
+					"bad device in input log: " + device);
+			recorded[device].add(new Record(tick, data));
+		}
+
+		in.close();
+	}
+
+	private static class Record {
+		Record(long tick, byte[] data) {
+			this.tick = tick;
+			this.data = data;
+		}
+
+		long tick;
+
+		byte[] data;
+	}
+
+	/** A byte read from the console. */
+	public static final int deviceConsole = 0;
+
+	/** A packet received by the network link. */
+	public static final int deviceNetwork = 1;
+
+	/** The link address the network link was given. */
+	public static final int deviceLinkAddress = 2;
+
+	/** The first four bytes of every input log, "NINP". */
+	public static final int magic = 0x4E494E50;
+
+	/** The format version written after the magic. */
+	public static final int version = 1;
+
+	private Privilege privilege;
+
+	private DataOutputStream out = null;
+
+	private DataInputStream in = null;
+
+	/** The records of a replayed log, by device, in order. */
+	private LinkedList<Record>[] recorded = null;
+
+	private static final int numDevices = 3;
+}
@@ -4,6 +4,11 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.TreeSet;
 import java.util.Iterator;
 import java.util.SortedSet;
@@ -34,6 +39,11 @@ import java.util.SortedSet;
  * interrupt handler).
  * 
  * <p>
+ * Devices waiting on the host, like the console waiting for keystrokes, raise
+ * their interrupts from host threads when the input arrives; the interrupt
+ * occurs at the next tick.
+ * 
+ * <p>
  * This means that incorrectly synchronized code may work fine on this hardware
  * simulation (even with randomized time slices), but it wouldn't work on real
  * hardware. But even though Nachos can't always detect when your program would
@@ -119,18 +129,48 @@ public final class Interrupt {
 		return !enabled;
 	}
 
-	private void schedule(long when, String type, Runnable handler) {
-		Lib.assertTrue(when > 0);
+	private void schedule(long when, String type, Runnable handler, int core) {
+		Lib.assertTrue(when >= 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler,
+				core);
 
-		Lib.debug(dbgInt, "Scheduling the " + type
-				+ " interrupt handler at time = " + time);
+		if (Lib.test(dbgInt))
+			System.out.println("Scheduling the " + type
+					+ " interrupt handler at time = " + time);
 
 		pending.add(toOccur);
 	}
 
+	private void raise(String type, Runnable handler) {
+		synchronized (raised) {
+			raised.add(new RaisedInterrupt(type, handler));
+			raisedPending = true;
+		}
+	}
+
+	/**
+	 * Make the interrupts raised by host threads since the last tick pending,
+	 * due now.
+	 */
+	private void takeRaised() {
+		synchronized (raised) {
+			for (int i = 0; i < raised.size(); i++) {
+				RaisedInterrupt toOccur = raised.get(i);
+				if (Lib.test(dbgInt))
+					System.out.println("Raising the " + toOccur.type
+							+ " interrupt handler at time = "
+							+ privilege.stats.totalTicks);
+
+				pending.add(new PendingInterrupt(privilege.stats.totalTicks,
+						toOccur.type, toOccur.handler, anyCore));
+			}
+			raised.clear();
+			raisedPending = false;
+		}
+	}
+
 	private void tick(boolean inKernelMode) {
 		Stats stats = privilege.stats;
 
@@ -147,6 +187,8 @@ public final class Interrupt {
 			System.out.println("== Tick " + stats.totalTicks + " ==");
 
 		enabled = false;
+		if (raisedPending)
+			takeRaised();
 		checkIfDue();
 		enabled = true;
 	}
@@ -162,14 +204,27 @@ public final class Interrupt {
 		if (pending.isEmpty())
 			return;
 
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (pending.first().time > time)
 			return;
 
-		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+		if (Lib.test(dbgInt))
+			System.out.println("Invoking interrupt handlers at time = " + time);
+
+		while (true) {
+			// the first due interrupt that may be delivered on this core
+			PendingInterrupt next = null;
+			for (Iterator<PendingInterrupt> i = pending.iterator(); i.hasNext();) {
+				PendingInterrupt toOccur = i.next();
+				if (toOccur.time > time)
+					break;
+				if (deliverable(toOccur)) {
+					next = toOccur;
+					break;
+				}
+			}
+			if (next == null)
+				break;
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
 			pending.remove(next);
 
 			Lib.assertTrue(next.time <= time);
@@ -177,7 +232,10 @@ public final class Interrupt {
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			if (Lib.test(dbgInt))
+				System.out.println("  " + next.type);
+			if (EventTrace.enabled)
+				EventTrace.record(EventTrace.eventInterrupt, next.traceType, 0);
 
 			next.handler.run();
 		}
@@ -185,31 +243,109 @@ public final class Interrupt {
 		Lib.debug(dbgInt, "  (end of list)");
 	}
 
+	private boolean deliverable(PendingInterrupt toOccur) {
+		return toOccur.core == anyCore || privilege.processor == null
+				|| toOccur.core == privilege.processor.getCurrentCore();
+	}
+
+	private long ticksUntilNextInterrupt() {
+		if (raisedPending)
+			return 1;
+
+		long time = privilege.stats.totalTicks;
+
+		for (Iterator<PendingInterrupt> i = pending.iterator(); i.hasNext();) {
+			PendingInterrupt toOccur = i.next();
+			if (deliverable(toOccur))
+				return Math.max(toOccur.time - time, 1);
+		}
+
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * Write the pending interrupts to a checkpoint. Handlers are not saved;
+	 * they are matched up again by type when the checkpoint is restored.
+	 * 
+	 * @param out the stream to write to.
+	 */
+	void savePending(DataOutputStream out) throws IOException {
+		out.writeInt(pending.size());
+		for (Iterator<PendingInterrupt> i = pending.iterator(); i.hasNext();) {
+			PendingInterrupt toOccur = i.next();
+			out.writeLong(toOccur.time);
+			out.writeUTF(toOccur.type);
+			out.writeInt(toOccur.core);
+		}
+	}
+
+	/**
+	 * Replace the pending interrupts with those saved by
+	 * <tt>savePending()</tt>. Each saved interrupt takes the handler of a
+	 * currently pending interrupt of the same type, so the devices that
+	 * scheduled them must already be running.
+	 * 
+	 * <p>
+	 * A saved interrupt with no pending interrupt of its type belongs to a
+	 * device that is idle on this machine, such as the console with no
+	 * output in flight or a core timer not yet started, and is dropped:
+	 * nothing here is waiting for it, and the device schedules its own
+	 * interrupts again once it is used.
+	 * 
+	 * @param in the stream to read from.
+	 */
+	void restorePending(DataInputStream in) throws IOException {
+		HashMap<String, Runnable> handlers = new HashMap<String, Runnable>();
+		for (Iterator<PendingInterrupt> i = pending.iterator(); i.hasNext();) {
+			PendingInterrupt toOccur = i.next();
+			handlers.put(toOccur.type, toOccur.handler);
+		}
+
+		pending.clear();
+
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			long time = in.readLong();
+			String type = in.readUTF();
+			int core = in.readInt();
+
+			Runnable handler = handlers.get(type);
+			if (handler == null) {
+				Lib.debug(dbgInt, "Dropping restored " + type
+						+ " interrupt, device idle");
+				continue;
+			}
+
+			pending.add(new PendingInterrupt(time, type, handler, core));
+		}
+	}
+
 	private void print() {
 		System.out.println("Time: " + privilege.stats.totalTicks
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
+		for (Iterator<PendingInterrupt> i = pending.iterator(); i.hasNext();) {
+			PendingInterrupt toOccur = i.next();
 			System.out.println("  " + toOccur.type + ", scheduled at "
-					+ toOccur.time);
+					+ toOccur.time
+					+ (toOccur.core == anyCore ? "" : " on core " + toOccur.core));
 		}
 
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
+	private class PendingInterrupt implements Comparable<PendingInterrupt> {
+		PendingInterrupt(long time, String type, Runnable handler, int core) {
 			this.time = time;
 			this.type = type;
 			this.handler = handler;
+			this.core = core;
 			this.id = numPendingInterruptsCreated++;
+			this.traceType = EventTrace.enabled ? EventTrace.intern(type) : 0;
 		}
 
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
-
+		public int compareTo(PendingInterrupt toOccur) {
 			// can't return 0 for unequal objects, so check all fields
 			if (time < toOccur.time)
 				return -1;
@@ -229,9 +365,28 @@ public final class Interrupt {
 
 		Runnable handler;
 
+		int core;
+
+		/** The interned type, if events are being traced. */
+		int traceType;
+
 		private long id;
 	}
 
+	private static class RaisedInterrupt {
+		RaisedInterrupt(String type, Runnable handler) {
+			this.type = type;
+			this.handler = handler;
+		}
+
+		String type;
+
+		Runnable handler;
+	}
+
+	/** The core of an interrupt that may be delivered on any core. */
+	private static final int anyCore = -1;
+
 	private long numPendingInterruptsCreated = 0;
 
 	private Privilege privilege;
@@ -240,15 +395,32 @@ public final class Interrupt {
 
 	private TreeSet<PendingInterrupt> pending;
 
+	/** Interrupts raised by host threads, guarded by its own monitor. */
+	private final ArrayList<RaisedInterrupt> raised = new ArrayList<RaisedInterrupt>();
+
+	private volatile boolean raisedPending = false;
+
 	private static final char dbgInt = 'i';
 
 	private class InterruptPrivilege implements Privilege.InterruptPrivilege {
 		public void schedule(long when, String type, Runnable handler) {
-			Interrupt.this.schedule(when, type, handler);
+			Interrupt.this.schedule(when, type, handler, anyCore);
+		}
+
+		public void schedule(long when, String type, Runnable handler, int core) {
+			Interrupt.this.schedule(when, type, handler, core);
+		}
+
+		public void raise(String type, Runnable handler) {
+			Interrupt.this.raise(type, handler);
 		}
 
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public long ticksUntilNextInterrupt() {
+			return Interrupt.this.ticksUntilNextInterrupt();
+		}
 	}
 }
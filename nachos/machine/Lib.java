@@ -2,10 +2,13 @@
 
 package nachos.machine;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.nio.ByteOrder;
 import java.security.PrivilegedAction;
 import java.util.Random;
 
@@ -32,7 +35,50 @@ public final class Lib {
 	private Lib() {
 	}
 
-	private static Random random = null;
+	private static CheckpointRandom random = null;
+
+	/**
+	 * A <tt>Random</tt> whose state can be read and set. It produces exactly
+	 * the same numbers as <tt>java.util.Random</tt>, whose generator is part of
+	 * that class's specification.
+	 */
+	private static class CheckpointRandom extends Random {
+		CheckpointRandom(long seed) {
+			super(seed);
+		}
+
+		public synchronized void setSeed(long seed) {
+			super.setSeed(seed);
+			state = (seed ^ multiplier) & mask;
+		}
+
+		protected int next(int bits) {
+			state = (state * multiplier + addend) & mask;
+			return (int) (state >>> (48 - bits));
+		}
+
+		// set by setSeed() from the superclass constructor, so no initializer
+		long state;
+
+		private static final long multiplier = 0x5DEECE66DL;
+		private static final long addend = 0xBL;
+		private static final long mask = (1L << 48) - 1;
+
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Little-endian views of byte arrays. Accesses through these need not be
+	 * aligned, and compile to single loads and stores where the host allows.
+	 */
+	private static final VarHandle shortLE = MethodHandles.byteArrayViewVarHandle(
+			short[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private static final VarHandle intLE = MethodHandles.byteArrayViewVarHandle(
+			int[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private static final VarHandle longLE = MethodHandles.byteArrayViewVarHandle(
+			long[].class, ByteOrder.LITTLE_ENDIAN);
 
 	/**
 	 * Seed the random number generater. May only be called once.
@@ -41,7 +87,26 @@ public final class Lib {
 	 */
 	public static void seedRandom(long randomSeed) {
 		assertTrue(random == null);
-		random = new Random(randomSeed);
+		random = new CheckpointRandom(randomSeed);
+	}
+
+	/**
+	 * Return the state of the random number generator, so that it can be
+	 * saved in a checkpoint.
+	 * 
+	 * @return the random number generator's state.
+	 */
+	static long getRandomState() {
+		return random.state;
+	}
+
+	/**
+	 * Restore the state of the random number generator from a checkpoint.
+	 * 
+	 * @param state a value returned by <tt>getRandomState()</tt>.
+	 */
+	static void setRandomState(long state) {
+		random.state = state;
 	}
 
 	/**
@@ -233,8 +298,7 @@ public final class Lib {
 	 * @param value the value to convert.
 	 */
 	public static void bytesFromShort(byte[] array, int offset, short value) {
-		array[offset + 0] = (byte) ((value >> 0) & 0xFF);
-		array[offset + 1] = (byte) ((value >> 8) & 0xFF);
+		shortLE.set(array, offset, value);
 	}
 
 	/**
@@ -245,10 +309,7 @@ public final class Lib {
 	 * @param value the value to convert.
 	 */
 	public static void bytesFromInt(byte[] array, int offset, int value) {
-		array[offset + 0] = (byte) ((value >> 0) & 0xFF);
-		array[offset + 1] = (byte) ((value >> 8) & 0xFF);
-		array[offset + 2] = (byte) ((value >> 16) & 0xFF);
-		array[offset + 3] = (byte) ((value >> 24) & 0xFF);
+		intLE.set(array, offset, value);
 	}
 
 	/**
@@ -298,7 +359,7 @@ public final class Lib {
 	 * @return the corresponding short value.
 	 */
 	public static short bytesToShort(byte[] array, int offset) {
-		return (short) ((((short) array[offset + 0] & 0xFF) << 0) | (((short) array[offset + 1] & 0xFF) << 8));
+		return (short) shortLE.get(array, offset);
 	}
 
 	/**
@@ -321,9 +382,7 @@ public final class Lib {
 	 * @return the corresponding int value.
 	 */
 	public static int bytesToInt(byte[] array, int offset) {
-		return (int) ((((int) array[offset + 0] & 0xFF) << 0)
-				| (((int) array[offset + 1] & 0xFF) << 8)
-				| (((int) array[offset + 2] & 0xFF) << 16) | (((int) array[offset + 3] & 0xFF) << 24));
+		return (int) intLE.get(array, offset);
 	}
 
 	/**
@@ -350,6 +409,34 @@ public final class Lib {
 		}
 	}
 
+	/**
+	 * Test whether every byte in a range of an array has the specified value.
+	 * The range is compared eight bytes at a time where possible.
+	 * 
+	 * @param array the array to test.
+	 * @param offset the first byte to test.
+	 * @param length the number of bytes to test.
+	 * @param value the expected value of every byte.
+	 * @return <tt>true</tt> if every byte in the range equals <i>value</i>.
+	 */
+	public static boolean bytesFilled(byte[] array, int offset, int length,
+			byte value) {
+		assertTrue(offset >= 0 && length >= 0 && offset + length <= array.length);
+
+		long pattern = (value & 0xFFL) * 0x0101010101010101L;
+
+		int i = offset, end = offset + length;
+		for (; i + 8 <= end; i += 8) {
+			if ((long) longLE.get(array, i) != pattern)
+				return false;
+		}
+		for (; i < end; i++) {
+			if (array[i] != value)
+				return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Convert to a string from a possibly null-terminated array of bytes.
 	 * 
@@ -472,7 +559,7 @@ public final class Lib {
 	 */
 	public static Class tryLoadClass(String className) {
 		try {
-			return ClassLoader.getSystemClassLoader().loadClass(className);
+			return Lib.class.getClassLoader().loadClass(className);
 		}
 		catch (Throwable e) {
 			return null;
@@ -487,7 +574,9 @@ public final class Lib {
 	 */
 	public static Class loadClass(String className) {
 		try {
-			return ClassLoader.getSystemClassLoader().loadClass(className);
+			// the machine's own loader, which is not the system class loader
+			// when the machine is one of several in a batch
+			return Lib.class.getClassLoader().loadClass(className);
 		}
 		catch (Throwable e) {
 			Machine.terminate(e);
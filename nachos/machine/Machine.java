@@ -6,10 +6,31 @@ import nachos.security.*;
 import nachos.ag.*;
 
 import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.PrivilegedAction;
+import java.security.PrivilegedExceptionAction;
+import java.security.PrivilegedActionException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.IntConsumer;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
  * constructs all simulated hardware devices, and starts the grader.
+ *
+ * <p>
+ * For batches of short runs, <tt>Machine.fastBoot</tt> shortens the boot: the
+ * console, stub file system, network link and elevator bank are only created
+ * when the kernel first asks for them, the user classes are only checked again
+ * when their class files change, and the boot time is printed, with a warning
+ * if it is over <tt>Machine.bootTargetMillis</tt>.
  */
 public final class Machine {
 	/**
@@ -18,6 +39,8 @@ public final class Machine {
 	 * @param args the command line arguments.
 	 */
 	public static void main(final String[] args) {
+		bootStartTime = System.nanoTime();
+
 		// in newer versions of Java, using String.format will
 		// trigger java.util.Local to dynamically initialize
 		// its default value.  in so doing it requests write
@@ -36,7 +59,12 @@ public final class Machine {
 
 		processArgs();
 
-		Config.load(configFileName);
+		if (configMap != null)
+			Config.load(configMap);
+		else
+			Config.load(configFileName);
+		Config.override(overrides);
+		config = new MachineConfig();
 
 		// get the current directory (.)
 		baseDirectory = new File(new File("").getAbsolutePath());
@@ -54,6 +82,9 @@ public final class Machine {
 			testDirectory = new File(baseDirectory.getParentFile(), "test");
 		}
 
+		if (runName != null)
+			testDirectory = copyTestDirectory(testDirectory);
+
 		securityManager = new NachosSecurityManager(testDirectory);
 		privilege = securityManager.getPrivilege();
 
@@ -62,12 +93,30 @@ public final class Machine {
 		TCB.givePrivilege(privilege);
 		privilege.stats = stats;
 
-		securityManager.enable();
+		if (contained) {
+			securityManager.contain(new IntConsumer() {
+				public void accept(int exitStatus) {
+					exitContained(exitStatus);
+				}
+			});
+		}
+		else {
+			securityManager.enable();
+		}
+
+		fastBoot = config.fastBoot;
 		createDevices();
-		checkUserClasses();
+		if (fastBoot)
+			checkUserClassesCached();
+		else
+			checkUserClasses();
 
 		autoGrader = (AutoGrader) Lib.constructObject(autoGraderClassName);
 
+		bootTime = System.nanoTime() - bootStartTime;
+		if (fastBoot)
+			reportBootTime();
+
 		new TCB().start(new Runnable() {
 			public void run() {
 				autoGrader.start(privilege);
@@ -75,6 +124,223 @@ public final class Machine {
 		});
 	}
 
+	/**
+	 * Run Nachos contained, so that it can share the JVM with other
+	 * simulations, each loaded by its own class loader so that each has its
+	 * own static state. The security manager is not installed, and when
+	 * Nachos exits, its threads are stopped and this method returns instead
+	 * of the JVM exiting. The calling thread becomes the first Nachos thread,
+	 * as in <tt>main()</tt>. See <tt>Batch</tt>.
+	 * 
+	 * @param args the command line arguments.
+	 * @return the exit status.
+	 */
+	public static int runContained(String[] args) {
+		return runContained(null, args);
+	}
+
+	/**
+	 * Run Nachos contained, with a configuration given as a map rather than
+	 * read from a file. See <tt>runContained(String[])</tt>.
+	 * 
+	 * @param config the configuration, as a map from key to value, or
+	 * <tt>null</tt> to read the configuration file named by the arguments.
+	 * @param args the command line arguments.
+	 * @return the exit status.
+	 */
+	public static int runContained(Map<String, String> config, String[] args) {
+		return runContained(config, args, null);
+	}
+
+	/**
+	 * Run Nachos contained, isolated from other simulations running at the
+	 * same time. The run gets a private copy of the test directory, so that
+	 * the files its kernel creates there, such as the swap file, are its own,
+	 * and the host files it writes are named for the run. See
+	 * <tt>runFile()</tt>.
+	 * 
+	 * @param config the configuration, as a map from key to value, or
+	 * <tt>null</tt> to read the configuration file named by the arguments.
+	 * @param args the command line arguments.
+	 * @param runName a name for this run, unique among the runs sharing the
+	 * host, or <tt>null</tt> if the run need not be isolated.
+	 * @return the exit status.
+	 */
+	public static int runContained(Map<String, String> config, String[] args,
+			String runName) {
+		configMap = config;
+		contained = true;
+		exited = new CountDownLatch(1);
+		Machine.runName = runName;
+
+		try {
+			main(args);
+		}
+		catch (ThreadDeath e) {
+			// stopped by exitContained(), on this thread or another
+		}
+
+		// the first Nachos thread may have finished long before Nachos exits
+		while (true) {
+			try {
+				exited.await();
+				break;
+			}
+			catch (InterruptedException e) {
+			}
+		}
+
+		if (runName != null && testDirectory != null)
+			deleteTestDirectory(testDirectory);
+
+		return exitStatus;
+	}
+
+	/**
+	 * Return the name of a host file that this run writes. If the run is
+	 * isolated, the run name is put before the file's extension, so that
+	 * <tt>nachos.folded</tt> becomes <tt>nachos.run3.folded</tt>;
+	 * otherwise the name is returned unchanged.
+	 * 
+	 * @param fileName the name of the host file, or <tt>null</tt>.
+	 * @return the name for this run to use.
+	 */
+	public static String runFile(String fileName) {
+		if (fileName == null || runName == null)
+			return fileName;
+
+		File file = new File(fileName);
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0)
+			name = name.substring(0, dot) + "." + runName + name.substring(dot);
+		else
+			name = name + "." + runName;
+
+		return new File(file.getParentFile(), name).getPath();
+	}
+
+	/**
+	 * Copy the regular files of a test directory into a new temporary
+	 * directory, for an isolated run.
+	 * 
+	 * @param directory the test directory.
+	 * @return the copy.
+	 */
+	private static File copyTestDirectory(File directory) {
+		try {
+			File copy = Files.createTempDirectory("nachos-" + runName).toFile();
+
+			File[] files = directory.listFiles();
+			if (files != null) {
+				for (int i = 0; i < files.length; i++) {
+					if (files[i].isFile())
+						Files.copy(files[i].toPath(),
+								new File(copy, files[i].getName()).toPath());
+				}
+			}
+
+			return copy;
+		}
+		catch (IOException e) {
+			throw new RuntimeException("cannot copy test directory "
+					+ directory + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Delete the copy of the test directory made for an isolated run.
+	 * 
+	 * @param directory the copy.
+	 */
+	private static void deleteTestDirectory(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (int i = 0; i < files.length; i++)
+				files[i].delete();
+		}
+		directory.delete();
+	}
+
+	/**
+	 * Test whether Nachos is contained, as by <tt>runContained()</tt>.
+	 * 
+	 * @return <tt>true</tt> if Nachos must not exit the JVM.
+	 */
+	public static boolean isContained() {
+		return contained;
+	}
+
+	/**
+	 * Stop a contained Nachos from another thread, as when it has run for too
+	 * long. Its threads die when they next wait or context switch, and
+	 * <tt>runContained()</tt> returns -1.
+	 * 
+	 * @return <tt>true</tt> if Nachos was stopped, or <tt>false</tt> if it had
+	 * already exited.
+	 */
+	public static boolean stopContained() {
+		Lib.assertTrue(contained);
+
+		synchronized (exited) {
+			if (exited.getCount() == 0)
+				return false;
+
+			exitStatus = -1;
+			exited.countDown();
+		}
+
+		if (processor != null)
+			processor.stopHostThreads();
+
+		TCB.requestStop();
+		return true;
+	}
+
+	/**
+	 * Exit a contained Nachos: record the exit status, and stop every thread
+	 * Nachos started, including this one.
+	 */
+	private static void exitContained(int exitStatus) {
+		synchronized (exited) {
+			if (exited.getCount() != 0) {
+				Machine.exitStatus = exitStatus;
+				exited.countDown();
+			}
+		}
+
+		if (processor != null)
+			processor.stopHostThreads();
+
+		TCB.stopAll();
+	}
+
+	/**
+	 * Return how long the machine took to boot: the host time from entering
+	 * <tt>main()</tt> to starting the autograder, which then loads the
+	 * kernel.
+	 * 
+	 * @return the boot time, in nanoseconds.
+	 */
+	public static long getBootTime() {
+		return bootTime;
+	}
+
+	/**
+	 * Print the boot time, and warn if it is over
+	 * <tt>Machine.bootTargetMillis</tt>.
+	 */
+	private static void reportBootTime() {
+		double millis = bootTime / 1000000.0;
+		System.out.print(String.format(" boot(%.1fms)", millis));
+
+		int target = config.bootTargetMillis;
+		if (target > 0 && millis > target)
+			System.out.print(String.format(
+					"\nwarning: boot took %.1f ms, over the %d ms target\n",
+					millis, target));
+	}
+
 	/**
 	 * Yield to non-Nachos threads. Use in non-preemptive JVM's to give
 	 * non-Nachos threads a chance to run.
@@ -91,7 +357,8 @@ public final class Machine {
 	}
 
 	/**
-	 * Terminate Nachos as the result of an unhandled exception or error.
+	 * Terminate Nachos as the result of an unhandled exception or error, with
+	 * exit status 1.
 	 * 
 	 * @param e the exception or error.
 	 */
@@ -100,7 +367,7 @@ public final class Machine {
 			throw (ThreadDeath) e;
 
 		e.printStackTrace();
-		terminate();
+		privilege.exit(1);
 	}
 
 	/**
@@ -109,9 +376,40 @@ public final class Machine {
 	public static void halt() {
 		System.out.print("Machine halting!\n\n");
 		stats.print();
+		writeSyscallStats();
+		EventTrace.finish();
+		if (processor != null) {
+			processor.reportParallel();
+			processor.reportProfile();
+		}
 		terminate();
 	}
 
+	/**
+	 * Write the system call statistics as JSON to the host file named by
+	 * <tt>Machine.syscallStatsFile</tt>, if it is set.
+	 */
+	private static void writeSyscallStats() {
+		final String fileName = config.syscallStatsFile;
+		if (fileName == null)
+			return;
+
+		try {
+			privilege.doPrivileged(new PrivilegedExceptionAction<Object>() {
+				public Object run() throws IOException {
+					FileWriter out = new FileWriter(fileName);
+					out.write(stats.syscallsToJson());
+					out.close();
+					return null;
+				}
+			});
+		}
+		catch (PrivilegedActionException e) {
+			System.out.println("could not write " + fileName + ": "
+					+ e.getException());
+		}
+	}
+
 	/**
 	 * Return an array containing all command line arguments.
 	 * 
@@ -137,10 +435,19 @@ public final class Machine {
 					System.out.print(help);
 					System.exit(1);
 				}
+				else if (arg.equals("-c")) {
+					Lib.assertTrue(i < args.length, "switch without argument");
+					String setting = args[i++];
+					int equals = setting.indexOf('=');
+					Lib.assertTrue(equals > 0, "bad value for -c switch");
+					overrides.put(setting.substring(0, equals),
+							setting.substring(equals + 1));
+				}
 				else if (arg.equals("-m")) {
 					Lib.assertTrue(i < args.length, "switch without argument");
 					try {
-						numPhysPages = Integer.parseInt(args[i++]);
+						overrides.put("Processor.numPhysPages", ""
+								+ Integer.parseInt(args[i++]));
 					}
 					catch (NumberFormatException e) {
 						Lib.assertNotReached("bad value for -m switch");
@@ -157,7 +464,7 @@ public final class Machine {
 				}
 				else if (arg.equals("-x")) {
 					Lib.assertTrue(i < args.length, "switch without argument");
-					shellProgramName = args[i++];
+					overrides.put("Kernel.shellProgram", args[i++]);
 				}
 				else if (arg.equals("-z")) {
 					System.out.print(copyright);
@@ -179,28 +486,161 @@ public final class Machine {
 	}
 
 	private static void createDevices() {
+		EventTrace.start(privilege);
+
 		interrupt = new Interrupt(privilege);
 		timer = new Timer(privilege);
 
-		if (Config.getBoolean("Machine.bank"))
-			bank = new ElevatorBank(privilege);
+		// in fast-boot mode, the optional devices are created when the kernel
+		// first asks for them
+		if (config.bank) {
+			if (fastBoot)
+				bankDeferred = true;
+			else
+				bank = new ElevatorBank(privilege);
+		}
+
+		if (config.processor)
+			processor = new Processor(privilege, config.numPhysPages);
+
+		inputLog = InputLog.open(privilege);
 
-		if (Config.getBoolean("Machine.processor")) {
-			if (numPhysPages == -1)
-				numPhysPages = Config.getInteger("Processor.numPhysPages");
-			processor = new Processor(privilege, numPhysPages);
+		if (config.console) {
+			if (fastBoot)
+				consoleDeferred = true;
+			else
+				console = new StandardConsole(privilege);
 		}
 
-		if (Config.getBoolean("Machine.console"))
-			console = new StandardConsole(privilege);
+		if (config.stubFileSystem) {
+			if (fastBoot)
+				stubFileSystemDeferred = true;
+			else
+				stubFileSystem = new StubFileSystem(privilege, testDirectory);
+		}
 
-		if (Config.getBoolean("Machine.stubFileSystem"))
-			stubFileSystem = new StubFileSystem(privilege, testDirectory);
+		if (config.networkLink) {
+			if (fastBoot)
+				networkLinkDeferred = true;
+			else
+				networkLink = new NetworkLink(privilege);
+		}
+	}
 
-		if (Config.getBoolean("Machine.networkLink"))
-			networkLink = new NetworkLink(privilege);
+	/**
+	 * Check the user classes, unless an earlier boot checked them and none of
+	 * their class files has changed since. The class files' sizes and
+	 * modification times are kept in the host file named by
+	 * <tt>Machine.userCheckCache</tt>.
+	 */
+	private static void checkUserClassesCached() {
+		final String fileName = config.userCheckCache;
+
+		String fingerprint = null;
+		try {
+			fingerprint = (String) privilege
+					.doPrivileged(new PrivilegedExceptionAction<Object>() {
+						public Object run() throws Exception {
+							return userClassesFingerprint();
+						}
+					});
+		}
+		catch (PrivilegedActionException e) {
+		}
+
+		if (fingerprint != null
+				&& fingerprint.equals(privilege
+						.doPrivileged(new PrivilegedAction<Object>() {
+							public Object run() {
+								return readFile(fileName);
+							}
+						}))) {
+			System.out.print(" user-check(cached)");
+			return;
+		}
+
+		checkUserClasses();
+
+		if (fingerprint == null)
+			return;
+
+		final String contents = fingerprint;
+		try {
+			privilege.doPrivileged(new PrivilegedExceptionAction<Object>() {
+				public Object run() throws IOException {
+					// runs sharing the host share the cache, so replace it
+					// whole rather than let another run read half of it
+					File file = new File(fileName).getAbsoluteFile();
+					File temp = File.createTempFile(file.getName(), ".tmp",
+							file.getParentFile());
+					FileWriter out = new FileWriter(temp);
+					out.write(contents);
+					out.close();
+					Files.move(temp.toPath(), file.toPath(),
+							StandardCopyOption.REPLACE_EXISTING,
+							StandardCopyOption.ATOMIC_MOVE);
+					return null;
+				}
+			});
+		}
+		catch (PrivilegedActionException e) {
+			// the classes are simply checked again next time
+		}
 	}
 
+	/**
+	 * Describe the class files of the classes that
+	 * <tt>checkUserClasses()</tt> checks, and of this class, which does the
+	 * checking.
+	 * 
+	 * @return the name, size and modification time of each class file, or
+	 * <tt>null</tt> if a class was not loaded from a directory or a jar.
+	 */
+	private static String userClassesFingerprint() throws Exception {
+		StringBuffer fingerprint = new StringBuffer();
+
+		for (int i = 0; i < checkedClassNames.length; i++) {
+			URL url = Machine.class.getClassLoader().getResource(
+					checkedClassNames[i].replace('.', '/') + ".class");
+			if (url == null)
+				return null;
+
+			if (url.getProtocol().equals("jar"))
+				url = ((JarURLConnection) url.openConnection()).getJarFileURL();
+			if (!url.getProtocol().equals("file"))
+				return null;
+
+			File file = new File(url.toURI());
+			fingerprint.append(checkedClassNames[i] + " " + file.length() + " "
+					+ file.lastModified() + "\n");
+		}
+
+		return fingerprint.toString();
+	}
+
+	private static String readFile(String fileName) {
+		try {
+			FileReader in = new FileReader(fileName);
+			StringBuffer contents = new StringBuffer();
+			char[] buffer = new char[1024];
+			int count;
+			while ((count = in.read(buffer)) != -1)
+				contents.append(buffer, 0, count);
+			in.close();
+			return contents.toString();
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static final String[] checkedClassNames = {
+			"nachos.machine.Machine", "nachos.threads.Alarm",
+			"nachos.threads.ThreadedKernel", "nachos.threads.KThread",
+			"nachos.threads.Semaphore", "nachos.threads.Lock",
+			"nachos.threads.Condition", "nachos.threads.Condition2",
+			"nachos.threads.Rider", "nachos.threads.ElevatorController" };
+
 	private static void checkUserClasses() {
 		System.out.print(" user-check");
 
@@ -305,6 +745,15 @@ public final class Machine {
 	private Machine() {
 	}
 
+	/**
+	 * Return the machine's settings, read from the configuration at boot.
+	 * 
+	 * @return the machine's settings.
+	 */
+	public static MachineConfig config() {
+		return config;
+	}
+
 	/**
 	 * Return the hardware interrupt manager.
 	 * 
@@ -330,6 +779,15 @@ public final class Machine {
 	 * present.
 	 */
 	public static ElevatorBank bank() {
+		if (bankDeferred) {
+			bankDeferred = false;
+			privilege.doPrivileged(new Runnable() {
+				public void run() {
+					bank = new ElevatorBank(privilege);
+				}
+			});
+		}
+
 		return bank;
 	}
 
@@ -348,6 +806,15 @@ public final class Machine {
 	 * @return the hardware console, or <tt>null</tt> if it is not present.
 	 */
 	public static SerialConsole console() {
+		if (consoleDeferred) {
+			consoleDeferred = false;
+			privilege.doPrivileged(new Runnable() {
+				public void run() {
+					console = new StandardConsole(privilege);
+				}
+			});
+		}
+
 		return console;
 	}
 
@@ -357,18 +824,58 @@ public final class Machine {
 	 * @return the stub file system, or <tt>null</tt> if it is not present.
 	 */
 	public static FileSystem stubFileSystem() {
+		if (stubFileSystemDeferred) {
+			stubFileSystemDeferred = false;
+			privilege.doPrivileged(new Runnable() {
+				public void run() {
+					stubFileSystem = new StubFileSystem(privilege,
+							testDirectory);
+				}
+			});
+		}
+
 		return stubFileSystem;
 	}
 
+	/**
+	 * Return the log that device input is recorded to or replayed from.
+	 * 
+	 * @return the input log, or <tt>null</tt> if input is neither recorded nor
+	 * replayed.
+	 */
+	static InputLog inputLog() {
+		return inputLog;
+	}
+
 	/**
 	 * Return the network link.
 	 * 
 	 * @return the network link, or <tt>null</tt> if it is not present.
 	 */
 	public static NetworkLink networkLink() {
+		if (networkLinkDeferred) {
+			networkLinkDeferred = false;
+			privilege.doPrivileged(new Runnable() {
+				public void run() {
+					networkLink = new NetworkLink(privilege);
+				}
+			});
+		}
+
 		return networkLink;
 	}
 
+	/**
+	 * Return the statistics object that is printed when the machine halts.
+	 * Kernels may add to the counters that only they can observe, such as
+	 * swap traffic.
+	 * 
+	 * @return the machine statistics.
+	 */
+	public static Stats stats() {
+		return stats;
+	}
+
 	/**
 	 * Return the autograder.
 	 * 
@@ -392,6 +899,23 @@ public final class Machine {
 
 	private static NetworkLink networkLink = null;
 
+	private static boolean fastBoot = false;
+
+	private static boolean bankDeferred = false, consoleDeferred = false,
+			stubFileSystemDeferred = false, networkLinkDeferred = false;
+
+	private static long bootStartTime, bootTime;
+
+	private static boolean contained = false;
+
+	private static String runName = null;
+
+	private static CountDownLatch exited;
+
+	private static int exitStatus;
+
+	private static InputLog inputLog = null;
+
 	private static AutoGrader autoGrader = null;
 
 	private static String autoGraderClassName = "nachos.ag.AutoGrader";
@@ -404,15 +928,10 @@ public final class Machine {
 	 * @return the name of the shell program to run.
 	 */
 	public static String getShellProgramName() {
-		if (shellProgramName == null)
-			shellProgramName = Config.getString("Kernel.shellProgram");
-
-		Lib.assertTrue(shellProgramName != null);
-		return shellProgramName;
+		Lib.assertTrue(config.shellProgram != null);
+		return config.shellProgram;
 	}
 
-	private static String shellProgramName = null;
-
 	/**
 	 * Return the name of the process class that the kernel should use. In the
 	 * multi-programming project, returns <tt>nachos.userprog.UserProcess</tt>.
@@ -427,15 +946,10 @@ public final class Machine {
 	 * @see nachos.network.NetProcess
 	 */
 	public static String getProcessClassName() {
-		if (processClassName == null)
-			processClassName = Config.getString("Kernel.processClassName");
-
-		Lib.assertTrue(processClassName != null);
-		return processClassName;
+		Lib.assertTrue(config.processClassName != null);
+		return config.processClassName;
 	}
 
-	private static String processClassName = null;
-
 	private static NachosSecurityManager securityManager;
 
 	private static Privilege privilege;
@@ -444,7 +958,6 @@ public final class Machine {
 
 	private static Stats stats = new Stats();
 
-	private static int numPhysPages = -1;
 
 	private static long randomSeed = 0;
 
@@ -452,6 +965,12 @@ public final class Machine {
 
 	private static String configFileName = "nachos.conf";
 
+	private static Map<String, String> configMap = null;
+
+	private static Map<String, String> overrides = new LinkedHashMap<String, String>();
+
+	private static MachineConfig config;
+
 	private static final String help = "\n"
 			+ "Options:\n"
 			+ "\n"
@@ -461,6 +980,10 @@ public final class Machine {
 			+ "\t-h\n"
 			+ "\t\tPrint this help message.\n"
 			+ "\n"
+			+ "\t-c <key>=<value>\n"
+			+ "\t\tSet a configuration variable, overriding the config file.\n"
+			+ "\t\tMay be given more than once.\n"
+			+ "\n"
 			+ "\t-m <pages>\n"
 			+ "\t\tSpecify how many physical pages of memory to simulate.\n"
 			+ "\n"
@@ -504,6 +1027,7 @@ public final class Machine {
 
 	private static class MachinePrivilege implements Privilege.MachinePrivilege {
 		public void setConsole(SerialConsole console) {
+			consoleDeferred = false;
 			Machine.console = console;
 		}
 	}
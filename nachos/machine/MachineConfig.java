@@ -0,0 +1,189 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * The machine's settings from the configuration, parsed and checked once, at
+ * boot, with their defaults filled in. Returned by <tt>Machine.config()</tt>.
+ * Kernels read their own keys through <tt>Config</tt>.
+ */
+public final class MachineConfig {
+	/**
+	 * Read the machine's settings from the loaded configuration, checking
+	 * each one.
+	 */
+	MachineConfig() {
+		stubFileSystem = Config.getBoolean("Machine.stubFileSystem", false);
+		processor = Config.getBoolean("Machine.processor", false);
+		console = Config.getBoolean("Machine.console", false);
+		bank = Config.getBoolean("Machine.bank", false);
+		networkLink = Config.getBoolean("Machine.networkLink", false);
+
+		fastBoot = Config.getBoolean("Machine.fastBoot", false);
+		bootTargetMillis = Config.getInteger("Machine.bootTargetMillis", 0);
+		userCheckCache = Config.getString("Machine.userCheckCache",
+				"nachos.usercheck");
+		syscallStatsFile = Machine.runFile(Config.getString(
+				"Machine.syscallStatsFile", null));
+		inputRecord = Machine.runFile(Config.getString("Machine.inputRecord",
+				null));
+		inputReplay = Config.getString("Machine.inputReplay", null);
+		Lib.assertTrue(inputRecord == null || inputReplay == null,
+				"cannot both record and replay input");
+
+		kernel = Config.getString("Kernel.kernel");
+		Lib.assertTrue(kernel != null, "missing Kernel.kernel");
+		shellProgram = Config.getString("Kernel.shellProgram");
+		processClassName = Config.getString("Kernel.processClassName");
+
+		if (processor) {
+			numPhysPages = Config.getInteger("Processor.numPhysPages");
+			Lib.assertTrue(numPhysPages > 0,
+					"Processor.numPhysPages must be positive");
+		}
+		else {
+			numPhysPages = 0;
+		}
+		numCores = Config.getInteger("Processor.numCores", 1);
+		Lib.assertTrue(numCores >= 1, "Processor.numCores must be positive");
+		coreQuantum = Config.getInteger("Processor.coreQuantum", 200);
+		Lib.assertTrue(coreQuantum >= 10, "Processor.coreQuantum is too small");
+		parallelCores = Config.getBoolean("Processor.parallelCores", false);
+		epochLength = Config.getInteger("Processor.epochLength", 256);
+		Lib.assertTrue(epochLength > 0, "Processor.epochLength must be positive");
+		hostThreads = Config.getInteger("Processor.hostThreads", numCores - 1);
+		Lib.assertTrue(hostThreads >= 0,
+				"Processor.hostThreads must not be negative");
+		tlbSize = Config.getInteger("Processor.tlbSize", 4);
+		tlbWays = Config.getInteger("Processor.tlbWays", tlbSize);
+		// an instruction may touch two pages that map to the same set, and
+		// both must be in the TLB at once for it to complete
+		Lib.assertTrue(tlbWays >= 2 && tlbSize % tlbWays == 0,
+				"Processor.tlbWays must be at least 2 and divide Processor.tlbSize");
+		memoryBacking = Config.getString("Processor.memoryBacking", "heap");
+		Lib.assertTrue(memoryBacking.equals("heap")
+				|| memoryBacking.equals("direct")
+				|| memoryBacking.equals("mapped"),
+				"Processor.memoryBacking must be heap, direct, or mapped");
+		memoryFile = Machine.runFile(Config.getString("Processor.memoryFile"));
+		Lib.assertTrue(!memoryBacking.equals("mapped") || memoryFile != null,
+				"mapped memory needs Processor.memoryFile");
+		profile = Config.getBoolean("Processor.profile", false);
+		profileInterval = Config.getInteger("Processor.profileInterval", 1);
+		Lib.assertTrue(profileInterval > 0,
+				"Processor.profileInterval must be positive");
+		profileFile = Machine.runFile(Config.getString("Processor.profileFile",
+				"nachos.folded"));
+
+		traceEvents = Config.getInteger("EventTrace.events", 0);
+		Lib.assertTrue(traceEvents >= 0, "EventTrace.events must not be negative");
+		traceFile = Machine.runFile(Config.getString("EventTrace.file",
+				"nachos.trace.json"));
+
+		consoleWriteBurst = Config.getInteger("Console.writeBurst", 1);
+		Lib.assertTrue(consoleWriteBurst >= 1,
+				"Console.writeBurst must be positive");
+
+		if (networkLink) {
+			reliability = Config.getDouble("NetworkLink.reliability");
+			Lib.assertTrue(reliability > 0 && reliability <= 1.0,
+					"NetworkLink.reliability must be in (0, 1]");
+		}
+		else {
+			reliability = 1.0;
+		}
+	}
+
+	/** <tt>Machine.stubFileSystem</tt>: provide a stub file system. */
+	public final boolean stubFileSystem;
+
+	/** <tt>Machine.processor</tt>: provide a MIPS processor. */
+	public final boolean processor;
+
+	/** <tt>Machine.console</tt>: provide a console. */
+	public final boolean console;
+
+	/** <tt>Machine.bank</tt>: provide an elevator bank. */
+	public final boolean bank;
+
+	/** <tt>Machine.networkLink</tt>: provide a network link. */
+	public final boolean networkLink;
+
+	/** <tt>Machine.fastBoot</tt>: create devices lazily, cache the user check. */
+	public final boolean fastBoot;
+
+	/** <tt>Machine.bootTargetMillis</tt>: warn above this boot time, if set. */
+	public final int bootTargetMillis;
+
+	/** <tt>Machine.userCheckCache</tt>: where fast boot keeps the user check. */
+	public final String userCheckCache;
+
+	/** <tt>Machine.syscallStatsFile</tt>: where to write syscall statistics. */
+	public final String syscallStatsFile;
+
+	/** <tt>Machine.inputRecord</tt>: where to record device input. */
+	public final String inputRecord;
+
+	/** <tt>Machine.inputReplay</tt>: where to replay device input from. */
+	public final String inputReplay;
+
+	/** <tt>Kernel.kernel</tt>: the kernel class. */
+	public final String kernel;
+
+	/** <tt>Kernel.shellProgram</tt>, or <tt>-x</tt>: the first program. */
+	public final String shellProgram;
+
+	/** <tt>Kernel.processClassName</tt>: the user process class. */
+	public final String processClassName;
+
+	/** <tt>Processor.numPhysPages</tt>, or <tt>-m</tt>: pages of memory. */
+	public final int numPhysPages;
+
+	/** <tt>Processor.numCores</tt>: how many cores the processor has. */
+	public final int numCores;
+
+	/** <tt>Processor.coreQuantum</tt>: ticks between core interrupts. */
+	public final int coreQuantum;
+
+	/** <tt>Processor.parallelCores</tt>: run other cores on host threads. */
+	public final boolean parallelCores;
+
+	/** <tt>Processor.epochLength</tt>: most ticks in an epoch of the cores. */
+	public final int epochLength;
+
+	/** <tt>Processor.hostThreads</tt>: host threads for parallel cores. */
+	public final int hostThreads;
+
+	/** <tt>Processor.tlbSize</tt>: TLB entries per core. */
+	public final int tlbSize;
+
+	/** <tt>Processor.tlbWays</tt>: TLB associativity. */
+	public final int tlbWays;
+
+	/** <tt>Processor.memoryBacking</tt>: heap, direct or mapped. */
+	public final String memoryBacking;
+
+	/** <tt>Processor.memoryFile</tt>: the file mapped memory is kept in. */
+	public final String memoryFile;
+
+	/** <tt>Processor.profile</tt>: profile user programs. */
+	public final boolean profile;
+
+	/** <tt>Processor.profileInterval</tt>: instructions per profile sample. */
+	public final int profileInterval;
+
+	/** <tt>Processor.profileFile</tt>: where to write collapsed stacks. */
+	public final String profileFile;
+
+	/** <tt>EventTrace.events</tt>: size of the event trace, 0 for none. */
+	public final int traceEvents;
+
+	/** <tt>EventTrace.file</tt>: where to write the event trace. */
+	public final String traceFile;
+
+	/** <tt>Console.writeBurst</tt>: most bytes sent per send interrupt. */
+	public final int consoleWriteBurst;
+
+	/** <tt>NetworkLink.reliability</tt>: chance a packet is delivered. */
+	public final double reliability;
+}
@@ -0,0 +1,128 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Saves and restores the parts of the simulated machine that a kernel
+ * checkpoint cannot reach by itself: the clock and the other statistics,
+ * the state of the random number generator, and the pending interrupts.
+ *
+ * <p>
+ * Restoring all three puts the machine back at the same tick, with the same
+ * interrupts due at the same times and the same random numbers still to
+ * come, so a run resumed from a checkpoint stays deterministic for a given
+ * <tt>-s</tt> seed.
+ *
+ * <p>
+ * That is, every run restored from the same checkpoint is the same as every
+ * other. It is not the same as the run that took the checkpoint: which pages
+ * sit in which frames, what the TLB holds and what is in swap are not saved,
+ * so a restored process faults its pages back in and its statistics drift
+ * from those of the uninterrupted run.
+ */
+public final class MachineState {
+	/**
+	 * Prevent instantiation.
+	 */
+	private MachineState() {
+	}
+
+	/**
+	 * Write the machine state to a checkpoint.
+	 *
+	 * @param out the stream to write to.
+	 */
+	public static void save(DataOutputStream out) throws IOException {
+		Stats stats = Machine.stats();
+		Field[] fields = statsFields();
+		for (int i = 0; i < fields.length; i++) {
+			Field field = fields[i];
+			if (Modifier.isStatic(field.getModifiers()))
+				continue;
+
+			try {
+				if (field.getType() == long.class) {
+					out.writeLong(field.getLong(stats));
+				}
+				else if (field.getType() == int.class) {
+					out.writeInt(field.getInt(stats));
+				}
+				else if (field.getType() == long[].class) {
+					long[] values = (long[]) field.get(stats);
+					out.writeInt(values == null ? -1 : values.length);
+					for (int j = 0; values != null && j < values.length; j++)
+						out.writeLong(values[j]);
+				}
+				else {
+					Lib.assertNotReached("cannot save Stats." + field.getName());
+				}
+			}
+			catch (IllegalAccessException e) {
+				Lib.assertNotReached();
+			}
+		}
+
+		out.writeLong(Lib.getRandomState());
+
+		Machine.interrupt().savePending(out);
+	}
+
+	/**
+	 * Restore the machine state written by <tt>save()</tt>. The machine must
+	 * be configured as it was when the checkpoint was taken.
+	 *
+	 * @param in the stream to read from.
+	 */
+	public static void restore(DataInputStream in) throws IOException {
+		Stats stats = Machine.stats();
+		Field[] fields = statsFields();
+		for (int i = 0; i < fields.length; i++) {
+			Field field = fields[i];
+			if (Modifier.isStatic(field.getModifiers()))
+				continue;
+
+			try {
+				if (field.getType() == long.class) {
+					field.setLong(stats, in.readLong());
+				}
+				else if (field.getType() == int.class) {
+					field.setInt(stats, in.readInt());
+				}
+				else if (field.getType() == long[].class) {
+					long[] values = (long[]) field.get(stats);
+					int length = in.readInt();
+					Lib.assertTrue(length == (values == null ? -1 : values.length),
+							"Stats." + field.getName() + " does not match the checkpoint");
+					for (int j = 0; j < length; j++)
+						values[j] = in.readLong();
+				}
+			}
+			catch (IllegalAccessException e) {
+				Lib.assertNotReached();
+			}
+		}
+
+		Lib.setRandomState(in.readLong());
+
+		Machine.interrupt().restorePending(in);
+	}
+
+	private static Field[] statsFields() {
+		// getFields() promises no particular order
+		Field[] fields = Stats.class.getFields();
+		Arrays.sort(fields, new Comparator<Field>() {
+			public int compare(Field a, Field b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		return fields;
+	}
+}
@@ -74,6 +74,33 @@ public class NetworkLink {
 
 		this.privilege = privilege;
 
+		reliability = Machine.config().reliability;
+
+		receiveInterrupt = new Runnable() {
+			public void run() {
+				receiveInterrupt();
+			}
+		};
+
+		sendInterrupt = new Runnable() {
+			public void run() {
+				sendInterrupt();
+			}
+		};
+
+		log = Machine.inputLog();
+		if (log != null && log.isReplaying()) {
+			// packets come from the log; no socket is opened
+			byte[] address = log.replay(InputLog.deviceLinkAddress);
+			Lib.assertTrue(address != null, "input log has no link address");
+			linkAddress = address[0];
+
+			System.out.print("(" + linkAddress + ", replay)");
+
+			scheduleReceiveInterrupt();
+			return;
+		}
+
 		try {
 			localHost = InetAddress.getLocalHost();
 		}
@@ -83,9 +110,6 @@ public class NetworkLink {
 
 		Lib.assertTrue(localHost != null);
 
-		reliability = Config.getDouble("NetworkLink.reliability");
-		Lib.assertTrue(reliability > 0 && reliability <= 1.0);
-
 		socket = null;
 
 		for (linkAddress = 0; linkAddress < Packet.linkAddressLimit; linkAddress++) {
@@ -105,17 +129,9 @@ public class NetworkLink {
 
 		System.out.print("(" + linkAddress + ")");
 
-		receiveInterrupt = new Runnable() {
-			public void run() {
-				receiveInterrupt();
-			}
-		};
-
-		sendInterrupt = new Runnable() {
-			public void run() {
-				sendInterrupt();
-			}
-		};
+		if (log != null)
+			log.record(InputLog.deviceLinkAddress,
+					new byte[] { linkAddress });
 
 		scheduleReceiveInterrupt();
 
@@ -168,6 +184,13 @@ public class NetworkLink {
 	private synchronized void receiveInterrupt() {
 		Lib.assertTrue(incomingPacket == null);
 
+		if (log != null) {
+			if (log.isReplaying())
+				incomingBytes = log.replay(InputLog.deviceNetwork);
+			else if (incomingBytes != null)
+				log.record(InputLog.deviceNetwork, incomingBytes);
+		}
+
 		if (incomingBytes != null) {
 			if (Machine.autoGrader().canReceivePacket(privilege)) {
 				try {
@@ -274,6 +297,12 @@ public class NetworkLink {
 		Packet p = outgoingPacket;
 		outgoingPacket = null;
 
+		if (socket == null) {
+			// replaying; the packet goes nowhere
+			privilege.stats.numPacketsSent++;
+			return;
+		}
+
 		try {
 			socket.send(new DatagramPacket(p.packetBytes, p.packetBytes.length,
 					localHost, portBase + p.dstLink));
@@ -327,7 +356,9 @@ public class NetworkLink {
 
 	private InetAddress localHost;
 
-	private DatagramSocket socket;
+	private DatagramSocket socket = null;
+
+	private InputLog log;
 
 	private byte linkAddress;
 
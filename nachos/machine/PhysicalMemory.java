@@ -0,0 +1,267 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.PrivilegedExceptionAction;
+import java.security.PrivilegedActionException;
+import java.util.Arrays;
+
+/**
+ * The physical memory attached to a <tt>Processor</tt>. Memory is normally a
+ * <tt>byte</tt> array on the Java heap, but with a large number of physical
+ * pages it can instead live off the heap, where the garbage collector never
+ * scans or copies it:
+ *
+ * <ul>
+ * <li><tt>heap</tt> (the default): a <tt>byte</tt> array;
+ * <li><tt>direct</tt>: a direct <tt>ByteBuffer</tt>, bounded by the JVM's
+ * <tt>-XX:MaxDirectMemorySize</tt>;
+ * <li><tt>mapped</tt>: a host file mapped into memory, named by
+ * <tt>Processor.memoryFile</tt>.
+ * </ul>
+ *
+ * <p>
+ * Kernel code should move data in and out of physical memory through this
+ * class rather than through <tt>Processor.getMemory()</tt>, which is only
+ * available when memory is on the heap.
+ */
+public final class PhysicalMemory {
+	/**
+	 * Allocate physical memory of the specified size, backed as the
+	 * <tt>Processor.memoryBacking</tt> configuration key says.
+	 *
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 * @param size the number of bytes of memory.
+	 */
+	PhysicalMemory(Privilege privilege, int size) {
+		this.size = size;
+
+		String backing = Machine.config().memoryBacking;
+
+		if (backing.equals("heap")) {
+			array = new byte[size];
+			buffer = ByteBuffer.wrap(array);
+		}
+		else if (backing.equals("direct")) {
+			array = null;
+			buffer = ByteBuffer.allocateDirect(size);
+		}
+		else if (backing.equals("mapped")) {
+			array = null;
+			buffer = map(privilege, Machine.config().memoryFile, size);
+		}
+		else {
+			Lib.assertNotReached("Processor.memoryBacking must be heap, direct, or mapped");
+			array = null;
+			buffer = null;
+		}
+
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static ByteBuffer map(Privilege privilege, final String fileName,
+			final int size) {
+		try {
+			return (ByteBuffer) privilege
+					.doPrivileged(new PrivilegedExceptionAction<Object>() {
+						public Object run() throws IOException {
+							FileChannel channel = FileChannel.open(
+									new File(fileName).toPath(),
+									StandardOpenOption.CREATE,
+									StandardOpenOption.READ,
+									StandardOpenOption.WRITE,
+									StandardOpenOption.TRUNCATE_EXISTING);
+							try {
+								return channel.map(
+										FileChannel.MapMode.READ_WRITE, 0,
+										size);
+							}
+							finally {
+								channel.close();
+							}
+						}
+					});
+		}
+		catch (PrivilegedActionException e) {
+			Lib.assertNotReached("could not map " + fileName + ": "
+					+ e.getException());
+			return null;
+		}
+	}
+
+	/**
+	 * Return the size of this memory.
+	 *
+	 * @return the number of bytes of memory.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Test whether this memory is a <tt>byte</tt> array on the Java heap.
+	 *
+	 * @return <tt>true</tt> if <tt>getArray()</tt> may be called.
+	 */
+	public boolean hasArray() {
+		return array != null;
+	}
+
+	/**
+	 * Return the array backing this memory. Only valid if <tt>hasArray()</tt>
+	 * returns <tt>true</tt>.
+	 *
+	 * @return the memory array.
+	 */
+	public byte[] getArray() {
+		Lib.assertTrue(array != null, "physical memory is not on the heap");
+		return array;
+	}
+
+	/**
+	 * Read a little-endian value of <i>length</i> (1, 2, or 4) bytes at
+	 * <i>paddr</i>, sign-extended to an int.
+	 *
+	 * @param paddr the physical address to read from.
+	 * @param length the number of bytes to read.
+	 * @return the value read.
+	 */
+	public int readInt(int paddr, int length) {
+		if (array != null)
+			return Lib.bytesToInt(array, paddr, length);
+
+		switch (length) {
+		case 1:
+			return buffer.get(paddr);
+		case 2:
+			return buffer.getShort(paddr);
+		case 4:
+			return buffer.getInt(paddr);
+		default:
+			Lib.assertNotReached();
+			return -1;
+		}
+	}
+
+	/**
+	 * Write the low <i>length</i> (1, 2, or 4) bytes of <i>value</i> at
+	 * <i>paddr</i>, little-endian.
+	 *
+	 * @param paddr the physical address to write to.
+	 * @param length the number of bytes to write.
+	 * @param value the value to store.
+	 */
+	public void writeInt(int paddr, int length, int value) {
+		if (array != null) {
+			Lib.bytesFromInt(array, paddr, length, value);
+			return;
+		}
+
+		switch (length) {
+		case 1:
+			buffer.put(paddr, (byte) value);
+			break;
+		case 2:
+			buffer.putShort(paddr, (short) value);
+			break;
+		case 4:
+			buffer.putInt(paddr, value);
+			break;
+		default:
+			Lib.assertNotReached();
+		}
+	}
+
+	/**
+	 * Copy bytes from this memory into an array.
+	 *
+	 * @param paddr the first physical address to copy from.
+	 * @param data the array to copy into.
+	 * @param offset the first byte of <i>data</i> to copy into.
+	 * @param length the number of bytes to copy.
+	 */
+	public void read(int paddr, byte[] data, int offset, int length) {
+		if (array != null)
+			System.arraycopy(array, paddr, data, offset, length);
+		else
+			buffer.get(paddr, data, offset, length);
+	}
+
+	/**
+	 * Copy bytes from an array into this memory.
+	 *
+	 * @param paddr the first physical address to copy to.
+	 * @param data the array to copy from.
+	 * @param offset the first byte of <i>data</i> to copy.
+	 * @param length the number of bytes to copy.
+	 */
+	public void write(int paddr, byte[] data, int offset, int length) {
+		if (array != null)
+			System.arraycopy(data, offset, array, paddr, length);
+		else
+			buffer.put(paddr, data, offset, length);
+	}
+
+	/**
+	 * Set a range of this memory to a single value.
+	 *
+	 * @param paddr the first physical address to fill.
+	 * @param length the number of bytes to fill.
+	 * @param value the value to store in each byte.
+	 */
+	public void fill(int paddr, int length, byte value) {
+		if (array != null) {
+			Arrays.fill(array, paddr, paddr + length, value);
+			return;
+		}
+
+		long pattern = (value & 0xFFL) * 0x0101010101010101L;
+
+		int i = paddr, end = paddr + length;
+		for (; i + 8 <= end; i += 8)
+			buffer.putLong(i, pattern);
+		for (; i < end; i++)
+			buffer.put(i, value);
+	}
+
+	/**
+	 * Test whether every byte in a range of this memory has the specified
+	 * value.
+	 *
+	 * @param paddr the first physical address to test.
+	 * @param length the number of bytes to test.
+	 * @param value the expected value of every byte.
+	 * @return <tt>true</tt> if every byte in the range equals <i>value</i>.
+	 */
+	public boolean isFilled(int paddr, int length, byte value) {
+		if (array != null)
+			return Lib.bytesFilled(array, paddr, length, value);
+
+		long pattern = (value & 0xFFL) * 0x0101010101010101L;
+
+		int i = paddr, end = paddr + length;
+		for (; i + 8 <= end; i += 8) {
+			if (buffer.getLong(i) != pattern)
+				return false;
+		}
+		for (; i < end; i++) {
+			if (buffer.get(i) != value)
+				return false;
+		}
+		return true;
+	}
+
+	private int size;
+
+	private byte[] array;
+
+	private ByteBuffer buffer;
+}
@@ -4,6 +4,15 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -32,7 +41,9 @@ public final class Processor {
 		this.privilege = privilege;
 		privilege.processor = new ProcessorPrivilege();
 
-		Class<?> clsKernel = Lib.loadClass(Config.getString("Kernel.kernel"));
+		MachineConfig config = Machine.config();
+
+		Class<?> clsKernel = Lib.loadClass(config.kernel);
 		Class<?> clsVMKernel = Lib.tryLoadClass("nachos.vm.VMKernel");
 
 		usingTLB = (clsVMKernel != null && clsVMKernel
@@ -42,18 +53,73 @@ public final class Processor {
 
 		this.numPhysPages = numPhysPages;
 
-		for (int i = 0; i < numUserRegisters; i++)
-			registers[i] = 0;
+		numCores = config.numCores;
+		coreQuantum = config.coreQuantum;
+
+		cores = new Context[numCores];
+		for (int core = 0; core < numCores; core++)
+			cores[core] = new Context();
+		current = cores[0];
+
+		if (config.profile)
+			profiler = new Profiler(privilege);
 
-		mainMemory = new byte[pageSize * numPhysPages];
+		if (numCores > 1) {
+			epochLength = config.epochLength;
+			parked = new ParkedThread[numCores];
+		}
+
+		// the interpreter's debug output can't be interleaved across host
+		// threads, and neither can the profiler's counting
+		parallel = numCores > 1
+				&& config.parallelCores && config.hostThreads > 0
+				&& !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble)
+				&& !Lib.test(dbgFullDisassemble) && profiler == null;
+		if (parallel) {
+			int hostThreads = config.hostThreads;
+
+			// start the host threads now; Nachos threads may not create them
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(hostThreads,
+					hostThreads, 0, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "processor core");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			executor.prestartAllCoreThreads();
+			hostExecutor = executor;
+		}
+
+		memory = new PhysicalMemory(privilege, pageSize * numPhysPages);
 
 		if (usingTLB) {
-			translations = new TranslationEntry[tlbSize];
-			for (int i = 0; i < tlbSize; i++)
-				translations[i] = new TranslationEntry();
+			tlbSize = config.tlbSize;
+			tlbWays = config.tlbWays;
+			tlbSets = tlbSize / tlbWays;
+
+			privilege.stats.tlbSetHits = new long[tlbSets];
+			privilege.stats.tlbSetMisses = new long[tlbSets];
+
+			for (int core = 0; core < numCores; core++) {
+				cores[core].translations = new TranslationEntry[tlbSize];
+				for (int i = 0; i < tlbSize; i++)
+					cores[core].translations[i] = new TranslationEntry();
+				cores[core].translationASIDs = new int[tlbSize];
+			}
 		}
-		else {
-			translations = null;
+
+		if (numCores > 1) {
+			// cores count their translations apart, since they may run at
+			// once; the counts are added up after each epoch
+			for (int core = 0; core < numCores; core++) {
+				cores[core].stats = new Stats();
+				if (usingTLB) {
+					cores[core].stats.tlbSetHits = new long[tlbSets];
+					cores[core].stats.tlbSetMisses = new long[tlbSets];
+				}
+			}
 		}
 	}
 
@@ -87,15 +153,25 @@ public final class Processor {
 	public void run() {
 		Lib.debug(dbgProcessor, "starting program in current thread");
 
-		registers[regNextPC] = registers[regPC] + 4;
+		current.registers[regNextPC] = current.registers[regPC] + 4;
+
+		if (numCores > 1 && !coreTimersStarted) {
+			coreTimersStarted = true;
+			for (int core = 0; core < numCores; core++)
+				scheduleCoreInterrupt(core);
+		}
 
 		Machine.autoGrader().runProcessor(privilege);
 
-		Instruction inst = new Instruction();
+		if (numCores > 1) {
+			ParkedThread self = new ParkedThread();
+			while (true)
+				runEpoch(self);
+		}
 
 		while (true) {
 			try {
-				inst.run();
+				current.inst.run();
 			}
 			catch (MipsException e) {
 				e.handle();
@@ -105,6 +181,144 @@ public final class Processor {
 		}
 	}
 
+	/**
+	 * Run one epoch on every core that has a thread in user mode: the current
+	 * core, and each core whose thread was preempted there and has not been
+	 * replaced. The epoch ends, and time advances, when the current thread has
+	 * run up to <tt>Processor.epochLength</tt> instructions, or fewer if an
+	 * interrupt becomes due or it raises an exception.
+	 * 
+	 * <p>
+	 * Each thread keeps its own clock, the time its next instruction runs at,
+	 * and runs one instruction per tick, so that every busy core advances one
+	 * instruction per tick. A preempted thread runs on until its clock reaches
+	 * the furthest the epoch could last, so it may be up to an epoch ahead of
+	 * the machine, and a thread that is current again waits for the machine
+	 * to catch up before it runs. The kernel runs on one core at a time: an
+	 * exception raised by a preempted thread stalls its core until the thread
+	 * is current again and its clock has come round, and is handled then.
+	 * 
+	 * <p>
+	 * A thread only reaches memory through its own translations, and the
+	 * kernel only runs between epochs, so the cores of an epoch can run in
+	 * any order, or at once on host threads when
+	 * <tt>Processor.parallelCores</tt> is on, with the same results.
+	 */
+	private void runEpoch(ParkedThread self) {
+		long now = privilege.stats.totalTicks;
+		if (self.time < now)
+			self.time = now;
+
+		if (self.exception != null && self.time == now) {
+			MipsException e = self.exception;
+			self.exception = null;
+			e.handle();
+			tickParked(self, 1);
+			return;
+		}
+
+		long end = now
+				+ Math.min(epochLength, privilege.interrupt.ticksUntilNextInterrupt());
+		if (self.exception != null)
+			end = Math.min(end, self.time);
+
+		final long until = end;
+		ArrayList<ParkedThread> running = new ArrayList<ParkedThread>();
+		ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int core = 0; core < numCores; core++) {
+			final ParkedThread other = parked[core];
+			if (core == currentCore || other == null || other.exception != null
+					|| other.time >= end)
+				continue;
+
+			running.add(other);
+			if (hostExecutor != null) {
+				futures.add(hostExecutor.submit(new Runnable() {
+					public void run() {
+						other.run(cores[other.core], until);
+					}
+				}));
+			}
+		}
+
+		if (self.exception == null)
+			self.run(current, end);
+
+		if (hostExecutor == null) {
+			for (ParkedThread other : running)
+				other.run(cores[other.core], until);
+		}
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			}
+			catch (ExecutionException e) {
+				if (e.getCause() instanceof Error)
+					throw (Error) e.getCause();
+				throw new RuntimeException(e.getCause());
+			}
+			catch (InterruptedException e) {
+				Lib.assertNotReached();
+			}
+		}
+		if (hostExecutor != null) {
+			for (ParkedThread other : running)
+				numHostInstructions += other.lastRun;
+		}
+
+		addCoreStats();
+
+		// the machine catches up with the current thread, which stopped early
+		// if it raised an exception
+		tickParked(self, (int) (Math.min(self.time, end) - now));
+	}
+
+	/**
+	 * Add the translation counts each core has made since the last epoch to
+	 * the machine's statistics.
+	 */
+	private void addCoreStats() {
+		Stats stats = privilege.stats;
+		for (int core = 0; core < numCores; core++) {
+			Stats counts = cores[core].stats;
+			stats.numPageFaults += counts.numPageFaults;
+			stats.numTLBMisses += counts.numTLBMisses;
+			stats.numTLBHits += counts.numTLBHits;
+			counts.numPageFaults = counts.numTLBMisses = 0;
+			counts.numTLBHits = 0;
+			if (usingTLB) {
+				for (int set = 0; set < tlbSets; set++) {
+					stats.tlbSetHits[set] += counts.tlbSetHits[set];
+					stats.tlbSetMisses[set] += counts.tlbSetMisses[set];
+					counts.tlbSetHits[set] = counts.tlbSetMisses[set] = 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Advance time by the specified number of user ticks, during which the
+	 * current thread may be preempted. While preempted, its core runs on in
+	 * other threads' epochs.
+	 */
+	private void tickParked(ParkedThread self, int ticks) {
+		self.core = currentCore;
+		self.stashed = false;
+		parked[currentCore] = self;
+
+		for (int i = 0; i < ticks; i++)
+			privilege.interrupt.tick(false);
+
+		if (self.stashed) {
+			Lib.assertTrue(currentCore == self.core);
+			self.unstash(current);
+		}
+		else if (parked[self.core] == self) {
+			Lib.assertTrue(currentCore == self.core);
+			parked[self.core] = null;
+		}
+	}
+
 	/**
 	 * Read and return the contents of the specified CPU register.
 	 * 
@@ -114,7 +328,7 @@ public final class Processor {
 	public int readRegister(int number) {
 		Lib.assertTrue(number >= 0 && number < numUserRegisters);
 
-		return registers[number];
+		return current.registers[number];
 	}
 
 	/**
@@ -127,7 +341,141 @@ public final class Processor {
 		Lib.assertTrue(number >= 0 && number < numUserRegisters);
 
 		if (number != 0)
-			registers[number] = value;
+			current.registers[number] = value;
+	}
+
+	/**
+	 * Return the number of cores in this processor. Each core has its own
+	 * registers, TLB (or page table pointer) and ASID, and all cores share
+	 * main memory.
+	 * 
+	 * <p>
+	 * Cores run side by side in simulated time: every core with a thread in
+	 * user mode runs one instruction per tick, including a core whose thread
+	 * was preempted and has not been replaced by another. The kernel, though,
+	 * runs on one core at a time, the current core; an exception on another
+	 * core waits until its thread is current again. Every core has a timer
+	 * that fires after a randomized quantum of <tt>Processor.coreQuantum</tt>
+	 * ticks while the core is current, at which point the core switch handler
+	 * is called. Since the quantum is drawn from the seeded random number
+	 * generator, the interleaving of cores is the same from run to run for a
+	 * given seed.
+	 * 
+	 * @return the number of cores.
+	 */
+	public int getNumCores() {
+		return numCores;
+	}
+
+	/**
+	 * Return the core that the register, TLB and page table methods currently
+	 * operate on, and whose program <tt>run()</tt> executes.
+	 * 
+	 * @return the current core.
+	 */
+	public int getCurrentCore() {
+		return currentCore;
+	}
+
+	/**
+	 * Make the specified core the current core. The kernel calls this when it
+	 * places a thread on a core, before restoring the thread's user
+	 * registers. Any delayed load in progress on the old core is completed
+	 * first.
+	 * 
+	 * @param core the core to switch to.
+	 */
+	public void setCurrentCore(int core) {
+		Lib.assertTrue(core >= 0 && core < numCores);
+
+		// save the user state of a preempted thread before the kernel restores
+		// another thread's registers over it
+		if (parked != null && parked[core] != null) {
+			parked[core].stash(cores[core]);
+			parked[core] = null;
+		}
+
+		if (core == currentCore)
+			return;
+
+		current.finishLoad();
+
+		currentCore = core;
+		current = cores[core];
+	}
+
+	/**
+	 * Return the instruction profiler, enabled by <tt>Processor.profile</tt>.
+	 * 
+	 * @return the profiler, or <tt>null</tt> if profiling is disabled.
+	 */
+	public Profiler getProfiler() {
+		return profiler;
+	}
+
+	/**
+	 * Set the profiling trace of the user thread running on the current core.
+	 * The kernel calls this whenever it restores a thread's user registers.
+	 * 
+	 * @param trace the thread's trace, or <tt>null</tt> not to profile it.
+	 */
+	public void setProfileTrace(Profiler.Trace trace) {
+		current.trace = trace;
+	}
+
+	/**
+	 * Stop the host threads that run other cores in parallel mode, if there
+	 * are any. Called when a contained machine exits, since its threads must
+	 * not outlive it.
+	 */
+	void stopHostThreads() {
+		if (hostExecutor != null)
+			hostExecutor.shutdownNow();
+	}
+
+	/**
+	 * Print how much work parallel mode did on host threads, if it is on.
+	 * These are host figures, not simulated ones, so they are not kept in
+	 * <tt>Stats</tt>. Called when the machine halts.
+	 */
+	void reportParallel() {
+		if (parallel)
+			System.out.println("Parallel cores: instructions run on host threads "
+					+ numHostInstructions);
+	}
+
+	/**
+	 * Print the profile and write the collapsed stacks, if profiling is
+	 * enabled. Called when the machine halts.
+	 */
+	void reportProfile() {
+		if (profiler != null)
+			profiler.report();
+	}
+
+	/**
+	 * Set the core switch handler, called from each core's timer interrupt
+	 * when the core's quantum expires. Kernels typically yield to a thread
+	 * placed on another core. The handler is never called on a single-core
+	 * processor.
+	 * 
+	 * @param coreSwitchHandler the kernel core switch handler.
+	 */
+	public void setCoreSwitchHandler(Runnable coreSwitchHandler) {
+		this.coreSwitchHandler = coreSwitchHandler;
+	}
+
+	private void scheduleCoreInterrupt(final int core) {
+		int delay = coreQuantum / 2 + Lib.random(coreQuantum);
+
+		privilege.interrupt.schedule(delay, "core" + core, new Runnable() {
+			public void run() {
+				scheduleCoreInterrupt(core);
+				privilege.stats.numCoreSwitches++;
+				if (coreSwitchHandler != null)
+					coreSwitchHandler.run();
+			}
+		}, core);
 	}
 
 	/**
@@ -161,7 +509,7 @@ public final class Processor {
 	public TranslationEntry[] getPageTable() {
 		Lib.assertTrue(!usingTLB);
 
-		return translations;
+		return current.translations;
 	}
 
 	/**
@@ -174,7 +522,7 @@ public final class Processor {
 	public void setPageTable(TranslationEntry[] pageTable) {
 		Lib.assertTrue(!usingTLB);
 
-		this.translations = pageTable;
+		current.translations = pageTable;
 	}
 
 	/**
@@ -188,6 +536,34 @@ public final class Processor {
 		return tlbSize;
 	}
 
+	/**
+	 * Return the associativity of this processor's TLB. The TLB is divided
+	 * into <tt>getTLBSize() / getTLBWays()</tt> sets of this many entries
+	 * each; a TLB with a single set is fully associative.
+	 * 
+	 * @return the number of entries in each TLB set.
+	 */
+	public int getTLBWays() {
+		Lib.assertTrue(usingTLB);
+
+		return tlbWays;
+	}
+
+	/**
+	 * Return the TLB set that translations for the specified virtual page are
+	 * looked up in. The entries of set <i>s</i> are numbered
+	 * <tt><i>s</i>*getTLBWays()</tt> through
+	 * <tt>(<i>s</i>+1)*getTLBWays()-1</tt>.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return the index of the TLB set for <tt>vpn</tt>.
+	 */
+	public int getTLBSet(int vpn) {
+		Lib.assertTrue(usingTLB);
+
+		return vpn % tlbSets;
+	}
+
 	/**
 	 * Returns the specified TLB entry.
 	 * 
@@ -195,27 +571,124 @@ public final class Processor {
 	 * @return the contents of the specified TLB entry.
 	 */
 	public TranslationEntry readTLBEntry(int number) {
+		return readTLBEntry(currentCore, number);
+	}
+
+	/**
+	 * Returns the specified TLB entry of the specified core.
+	 * 
+	 * @param core the core whose TLB to read.
+	 * @param number the index into the TLB.
+	 * @return the contents of the specified TLB entry.
+	 */
+	public TranslationEntry readTLBEntry(int core, int number) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(core >= 0 && core < numCores);
+		Lib.assertTrue(number >= 0 && number < tlbSize);
+
+		return new TranslationEntry(cores[core].translations[number]);
+	}
+
+	/**
+	 * Returns the address space identifier the specified TLB entry is tagged
+	 * with.
+	 * 
+	 * @param number the index into the TLB.
+	 * @return the ASID of the specified TLB entry.
+	 */
+	public int readTLBEntryASID(int number) {
+		return readTLBEntryASID(currentCore, number);
+	}
+
+	/**
+	 * Returns the address space identifier the specified TLB entry of the
+	 * specified core is tagged with.
+	 * 
+	 * @param core the core whose TLB to read.
+	 * @param number the index into the TLB.
+	 * @return the ASID of the specified TLB entry.
+	 */
+	public int readTLBEntryASID(int core, int number) {
 		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(core >= 0 && core < numCores);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
-		return new TranslationEntry(translations[number]);
+		return cores[core].translationASIDs[number];
 	}
 
 	/**
-	 * Fill the specified TLB entry.
+	 * Fill the specified TLB entry, tagging it with the current ASID.
 	 * 
 	 * <p>
-	 * The TLB is fully associative, so the location of an entry within the TLB
-	 * does not affect anything.
+	 * A valid entry must be placed in the set for its virtual page (see
+	 * <tt>getTLBSet()</tt>); which way of the set it occupies does not affect
+	 * anything.
 	 * 
 	 * @param number the index into the TLB.
 	 * @param entry the new contents of the TLB entry.
 	 */
 	public void writeTLBEntry(int number, TranslationEntry entry) {
+		writeTLBEntry(number, entry, current.asid);
+	}
+
+	/**
+	 * Fill the specified TLB entry, tagging it with the specified ASID. Only
+	 * translations made while that ASID is current will use the entry.
+	 * 
+	 * @param number the index into the TLB.
+	 * @param entry the new contents of the TLB entry.
+	 * @param asid the address space identifier to tag the entry with.
+	 */
+	public void writeTLBEntry(int number, TranslationEntry entry, int asid) {
+		writeTLBEntry(currentCore, number, entry, asid);
+	}
+
+	/**
+	 * Fill the specified TLB entry of the specified core, tagging it with the
+	 * specified ASID. Kernels use this to shoot down stale translations in the
+	 * TLBs of other cores.
+	 * 
+	 * @param core the core whose TLB to write.
+	 * @param number the index into the TLB.
+	 * @param entry the new contents of the TLB entry.
+	 * @param asid the address space identifier to tag the entry with.
+	 */
+	public void writeTLBEntry(int core, int number, TranslationEntry entry,
+			int asid) {
 		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(core >= 0 && core < numCores);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
+		Lib.assertTrue(!entry.valid || number / tlbWays == getTLBSet(entry.vpn),
+				"TLB entry placed outside its set");
 
-		translations[number] = new TranslationEntry(entry);
+		cores[core].translations[number] = new TranslationEntry(entry);
+		cores[core].translationASIDs[number] = asid;
+	}
+
+	/**
+	 * Set the current address space identifier. TLB entries tagged with a
+	 * different ASID are ignored by address translation, so a kernel that
+	 * gives each address space its own ASID does not need to flush the TLB on
+	 * a context switch.
+	 * 
+	 * @param asid the new address space identifier.
+	 */
+	public void setASID(int asid) {
+		Lib.assertTrue(usingTLB);
+
+		current.asid = asid;
+	}
+
+	/**
+	 * Return the current address space identifier, set by the last call to
+	 * <tt>setASID()</tt>.
+	 * 
+	 * @return the current ASID.
+	 */
+	public int getASID() {
+		Lib.assertTrue(usingTLB);
+
+		return current.asid;
 	}
 
 	/**
@@ -230,12 +703,23 @@ public final class Processor {
 
 	/**
 	 * Return a reference to the physical memory array. The size of this array
-	 * is <tt>pageSize * getNumPhysPages()</tt>.
+	 * is <tt>pageSize * getNumPhysPages()</tt>. Only available when physical
+	 * memory is on the heap; see <tt>getPhysicalMemory()</tt>.
 	 *
 	 * @return the main memory array.
 	 */
 	public byte[] getMemory() {
-		return mainMemory;
+		return memory.getArray();
+	}
+
+	/**
+	 * Return the physical memory attached to this processor, however it is
+	 * backed.
+	 *
+	 * @return the physical memory.
+	 */
+	public PhysicalMemory getPhysicalMemory() {
+		return memory;
 	}
 
 	/**
@@ -274,162 +758,6 @@ public final class Processor {
 		return (int) (((long) address & 0xFFFFFFFFL) % pageSize);
 	}
 
-	private void finishLoad() {
-		delayedLoad(0, 0, 0);
-	}
-
-	/**
-	 * Translate a virtual address into a physical address, using either a page
-	 * table or a TLB. Check for alignment, make sure the virtual page is valid,
-	 * make sure a read-only page is not being written, make sure the resulting
-	 * physical page is valid, and then return the resulting physical address.
-	 * 
-	 * @param vaddr the virtual address to translate.
-	 * @param size the size of the memory reference (must be 1, 2, or 4).
-	 * @param writing <tt>true</tt> if the memory reference is a write.
-	 * @return the physical address.
-	 * @exception MipsException if a translation error occurred.
-	 */
-	private int translate(int vaddr, int size, boolean writing)
-			throws MipsException {
-		if (Lib.test(dbgProcessor))
-			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
-					+ (writing ? ", write" : ", read..."));
-
-		// check alignment
-		if ((vaddr & (size - 1)) != 0) {
-			Lib.debug(dbgProcessor, "\t\talignment error");
-			throw new MipsException(exceptionAddressError, vaddr);
-		}
-
-		// calculate virtual page number and offset from the virtual address
-		int vpn = pageFromAddress(vaddr);
-		int offset = offsetFromAddress(vaddr);
-
-		TranslationEntry entry = null;
-
-		// if not using a TLB, then the vpn is an index into the table
-		if (!usingTLB) {
-			if (translations == null || vpn >= translations.length
-					|| translations[vpn] == null || !translations[vpn].valid) {
-				privilege.stats.numPageFaults++;
-				Lib.debug(dbgProcessor, "\t\tpage fault");
-				throw new MipsException(exceptionPageFault, vaddr);
-			}
-
-			entry = translations[vpn];
-		}
-		// else, look through all TLB entries for matching vpn
-		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
-					entry = translations[i];
-					break;
-				}
-			}
-			if (entry == null) {
-				privilege.stats.numTLBMisses++;
-				Lib.debug(dbgProcessor, "\t\tTLB miss");
-				throw new MipsException(exceptionTLBMiss, vaddr);
-			}
-		}
-
-		// check if trying to write a read-only page
-		if (entry.readOnly && writing) {
-			Lib.debug(dbgProcessor, "\t\tread-only exception");
-			throw new MipsException(exceptionReadOnly, vaddr);
-		}
-
-		// check if physical page number is out of range
-		int ppn = entry.ppn;
-		if (ppn < 0 || ppn >= numPhysPages) {
-			Lib.debug(dbgProcessor, "\t\tbad ppn");
-			throw new MipsException(exceptionBusError, vaddr);
-		}
-
-		// set used and dirty bits as appropriate
-		entry.used = true;
-		if (writing)
-			entry.dirty = true;
-
-		int paddr = (ppn * pageSize) + offset;
-
-		if (Lib.test(dbgProcessor))
-			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
-		return paddr;
-	}
-
-	/**
-	 * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
-	 * and return the result.
-	 * 
-	 * @param vaddr the virtual address to read from.
-	 * @param size the number of bytes to read (1, 2, or 4).
-	 * @return the value read.
-	 * @exception MipsException if a translation error occurred.
-	 */
-	private int readMem(int vaddr, int size) throws MipsException {
-		if (Lib.test(dbgProcessor))
-			System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
-					+ ", size=" + size);
-
-		Lib.assertTrue(size == 1 || size == 2 || size == 4);
-
-		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				size);
-
-		if (Lib.test(dbgProcessor))
-			System.out.println("\t\tvalue read=0x"
-					+ Lib.toHexString(value, size * 2));
-
-		return value;
-	}
-
-	/**
-	 * Write <i>value</i> to </i>size</i> (1, 2, or 4) bytes of virtual memory
-	 * starting at <i>vaddr</i>.
-	 * 
-	 * @param vaddr the virtual address to write to.
-	 * @param size the number of bytes to write (1, 2, or 4).
-	 * @param value the value to store.
-	 * @exception MipsException if a translation error occurred.
-	 */
-	private void writeMem(int vaddr, int size, int value) throws MipsException {
-		if (Lib.test(dbgProcessor))
-			System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
-					+ ", size=" + size + ", value=0x"
-					+ Lib.toHexString(value, size * 2));
-
-		Lib.assertTrue(size == 1 || size == 2 || size == 4);
-
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
-	}
-
-	/**
-	 * Complete the in progress delayed load and scheduled a new one.
-	 * 
-	 * @param nextLoadTarget the target register of the new load.
-	 * @param nextLoadValue the value to be loaded into the new target.
-	 * @param nextLoadMask the mask specifying which bits in the new target are
-	 * to be overwritten. If a bit in <tt>nextLoadMask</tt> is 0, then the
-	 * corresponding bit of register <tt>nextLoadTarget</tt> will not be
-	 * written.
-	 */
-	private void delayedLoad(int nextLoadTarget, int nextLoadValue,
-			int nextLoadMask) {
-		// complete previous delayed load, if not modifying r0
-		if (loadTarget != 0) {
-			int savedBits = registers[loadTarget] & ~loadMask;
-			int newBits = loadValue & loadMask;
-			registers[loadTarget] = savedBits | newBits;
-		}
-
-		// schedule next load
-		loadTarget = nextLoadTarget;
-		loadValue = nextLoadValue;
-		loadMask = nextLoadMask;
-	}
-
 	/**
 	 * Advance the PC to the next instruction.
 	 * 
@@ -443,18 +771,7 @@ public final class Processor {
 	 * to the next instruction.
 	 */
 	public void advancePC() {
-		advancePC(registers[regNextPC] + 4);
-	}
-
-	/**
-	 * Transfer the contents of the nextPC register into the PC register, and
-	 * then write the nextPC register.
-	 * 
-	 * @param nextPC the new value of the nextPC register.
-	 */
-	private void advancePC(int nextPC) {
-		registers[regPC] = registers[regNextPC];
-		registers[regNextPC] = nextPC;
+		current.advancePC(current.registers[regNextPC] + 4);
 	}
 
 	/** Caused by a syscall instruction. */
@@ -534,17 +851,43 @@ public final class Processor {
 	/** Provides privilege to this processor. */
 	private Privilege privilege;
 
-	/** MIPS registers accessible to the kernel. */
-	private int registers[] = new int[numUserRegisters];
+	/** The state of each core. */
+	private Context[] cores;
+
+	/** The state of the current core. */
+	private Context current;
+
+	/** Number of cores. */
+	private int numCores;
+
+	/** The core the processor is currently executing on. */
+	private int currentCore = 0;
+
+	/** The mean number of ticks between core switch interrupts. */
+	private int coreQuantum;
+
+	private boolean coreTimersStarted = false;
 
-	/** The registered target of the delayed load currently in progress. */
-	private int loadTarget = 0;
+	/** The kernel core switch handler. */
+	private Runnable coreSwitchHandler = null;
 
-	/** The bits to be modified by the delayed load currently in progress. */
-	private int loadMask;
+	/** <tt>true</tt> if other cores run on host threads. */
+	private boolean parallel;
 
-	/** The value to be loaded by the delayed load currently in progress. */
-	private int loadValue;
+	/** The maximum number of instructions in an epoch. */
+	private int epochLength;
+
+	/** The thread preempted in user mode on each core, if any. */
+	private ParkedThread[] parked;
+
+	/** Runs other cores' epochs, or <tt>null</tt> to run them in turn. */
+	private ExecutorService hostExecutor = null;
+
+	/** The number of instructions other cores ran on host threads. */
+	private long numHostInstructions = 0;
+
+	/** The instruction profiler, or <tt>null</tt> if profiling is disabled. */
+	private Profiler profiler = null;
 
 	/** <tt>true</tt> if using a software-managed TLB. */
 	private boolean usingTLB;
@@ -552,11 +895,11 @@ public final class Processor {
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
 
-	/**
-	 * Either an associative or direct-mapped set of translation entries,
-	 * depending on whether there is a TLB.
-	 */
-	private TranslationEntry[] translations;
+	/** Number of entries in each TLB set. */
+	private int tlbWays;
+
+	/** Number of TLB sets. */
+	private int tlbSets;
 
 	/** Size of a page, in bytes. */
 	public static final int pageSize = 0x400;
@@ -568,7 +911,7 @@ public final class Processor {
 	private int numPhysPages;
 
 	/** Main memory for user programs. */
-	private byte[] mainMemory;
+	private PhysicalMemory memory;
 
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
@@ -581,7 +924,11 @@ public final class Processor {
 
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
-			finishLoad();
+			current.finishLoad();
+		}
+
+		public int getCurrentCore() {
+			return currentCore;
 		}
 	}
 
@@ -608,7 +955,7 @@ public final class Processor {
 			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
 				System.out.println("exception: " + exceptionNames[cause]);
 
-			finishLoad();
+			current.finishLoad();
 
 			Lib.assertTrue(exceptionHandler != null);
 
@@ -616,7 +963,15 @@ public final class Processor {
 			if (!Machine.autoGrader().exceptionHandler(privilege))
 				return;
 
+			// the kernel traces system calls itself, knowing their numbers
+			boolean traced = EventTrace.enabled && cause != exceptionSyscall;
+			if (traced)
+				EventTrace.record(EventTrace.eventExceptionBegin, cause, badVAddr);
+
 			exceptionHandler.run();
+
+			if (traced)
+				EventTrace.record(EventTrace.eventExceptionEnd, cause, 0);
 		}
 
 		private boolean hasBadVAddr = false;
@@ -624,467 +979,772 @@ public final class Processor {
 		private int cause, badVAddr;
 	}
 
-	private class Instruction {
-		public void run() throws MipsException {
-			// hopefully this looks familiar to 152 students?
-			fetch();
-			decode();
-			execute();
-			writeBack();
+	/**
+	 * The state of one processor core: its registers, its address
+	 * translation, and the interpreter that executes instructions on them. A
+	 * context only reaches main memory through its own translations, so
+	 * contexts running processes with disjoint frames can execute
+	 * concurrently.
+	 */
+	private final class Context {
+		Context() {
+			stats = privilege.stats;
 		}
 
-		private boolean test(int flag) {
-			return Lib.test(flag, flags);
+		private void finishLoad() {
+			delayedLoad(0, 0, 0);
 		}
 
-		private void fetch() throws MipsException {
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
-				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
-						+ "\t");
+		/**
+		 * Translate a virtual address into a physical address, using either a page
+		 * table or a TLB. Check for alignment, make sure the virtual page is valid,
+		 * make sure a read-only page is not being written, make sure the resulting
+		 * physical page is valid, and then return the resulting physical address.
+		 * 
+		 * @param vaddr the virtual address to translate.
+		 * @param size the size of the memory reference (must be 1, 2, or 4).
+		 * @param writing <tt>true</tt> if the memory reference is a write.
+		 * @return the physical address.
+		 * @exception MipsException if a translation error occurred.
+		 */
+		private int translate(int vaddr, int size, boolean writing)
+				throws MipsException {
+			if (Lib.test(dbgProcessor))
+				System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
+						+ (writing ? ", write" : ", read..."));
+
+			// check alignment
+			if ((vaddr & (size - 1)) != 0) {
+				Lib.debug(dbgProcessor, "\t\talignment error");
+				throw new MipsException(exceptionAddressError, vaddr);
+			}
 
-			value = readMem(registers[regPC], 4);
-		}
+			// calculate virtual page number and offset from the virtual address
+			int vpn = pageFromAddress(vaddr);
+			int offset = offsetFromAddress(vaddr);
+
+			TranslationEntry entry = null;
+			int index = vpn;
 
-		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
-
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
+			// if not using a TLB, then the vpn is an index into the table
+			if (!usingTLB) {
+				if (translations == null || vpn >= translations.length
+						|| translations[vpn] == null || !translations[vpn].valid) {
+					stats.numPageFaults++;
+					Lib.debug(dbgProcessor, "\t\tpage fault");
+					throw new MipsException(exceptionPageFault, vaddr);
+				}
+
+				entry = translations[vpn];
+			}
+			// else, look through all TLB entries for matching vpn
+			else {
+				int set = vpn % tlbSets;
+				for (int i = set * tlbWays, end = i + tlbWays; i < end; i++) {
+					if (translations[i].valid && translations[i].vpn == vpn
+							&& translationASIDs[i] == asid) {
+						entry = translations[i];
+						index = i;
+						break;
+					}
+				}
+				if (entry == null) {
+					stats.numTLBMisses++;
+					stats.tlbSetMisses[set]++;
+					Lib.debug(dbgProcessor, "\t\tTLB miss");
+					throw new MipsException(exceptionTLBMiss, vaddr);
+				}
+				stats.numTLBHits++;
+				stats.tlbSetHits[set]++;
 			}
 
-			operation = info.operation;
-			name = info.name;
-			format = info.format;
-			flags = info.flags;
-
-			mask = 0xFFFFFFFF;
-			branch = true;
-
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
-			// get nextPC
-			nextPC = registers[regNextPC] + 4;
-
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
-			// get jtarget
-			if (format == Mips.RFMT)
-				jtarget = registers[rs];
-			else if (format == Mips.IFMT)
-				jtarget = registers[regNextPC] + (imm << 2);
-			else if (format == Mips.JFMT)
-				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
-			else
-				jtarget = -1;
-
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
+			// check if trying to write a read-only page
+			if (entry.readOnly && writing) {
+				Lib.debug(dbgProcessor, "\t\tread-only exception");
+				throw new MipsException(exceptionReadOnly, vaddr);
 			}
 
-			// get addr
-			addr = registers[rs] + imm;
+			// check if physical page number is out of range
+			int ppn = entry.ppn;
+			if (ppn < 0 || ppn >= numPhysPages) {
+				Lib.debug(dbgProcessor, "\t\tbad ppn");
+				throw new MipsException(exceptionBusError, vaddr);
+			}
+
+			// set used and dirty bits as appropriate
+			entry.used = true;
+			if (writing)
+				entry.dirty = true;
+
+			int paddr = (ppn * pageSize) + offset;
 
-			// get src1
-			if (test(Mips.SRC1SH))
-				src1 = sh;
-			else
-				src1 = registers[rs];
+			if (Lib.test(dbgProcessor))
+				System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+			return paddr;
+		}
+
+		/**
+		 * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
+		 * and return the result.
+		 * 
+		 * @param vaddr the virtual address to read from.
+		 * @param size the number of bytes to read (1, 2, or 4).
+		 * @return the value read.
+		 * @exception MipsException if a translation error occurred.
+		 */
+		private int readMem(int vaddr, int size) throws MipsException {
+			if (Lib.test(dbgProcessor))
+				System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
+						+ ", size=" + size);
+
+			Lib.assertTrue(size == 1 || size == 2 || size == 4);
+
+			int paddr = translate(vaddr, size, false);
+			int value = memory.readInt(paddr, size);
+
+			if (Lib.test(dbgProcessor))
+				System.out.println("\t\tvalue read=0x"
+						+ Lib.toHexString(value, size * 2));
+
+			return value;
+		}
 
-			// get src2
-			if (test(Mips.SRC2IMM))
-				src2 = imm;
-			else
-				src2 = registers[rt];
+		/**
+		 * Write <i>value</i> to </i>size</i> (1, 2, or 4) bytes of virtual memory
+		 * starting at <i>vaddr</i>.
+		 * 
+		 * @param vaddr the virtual address to write to.
+		 * @param size the number of bytes to write (1, 2, or 4).
+		 * @param value the value to store.
+		 * @exception MipsException if a translation error occurred.
+		 */
+		private void writeMem(int vaddr, int size, int value) throws MipsException {
+			if (Lib.test(dbgProcessor))
+				System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
+						+ ", size=" + size + ", value=0x"
+						+ Lib.toHexString(value, size * 2));
+
+			Lib.assertTrue(size == 1 || size == 2 || size == 4);
+
+			int paddr = translate(vaddr, size, true);
+			memory.writeInt(paddr, size, value);
+		}
 
-			if (test(Mips.UNSIGNED)) {
-				src1 &= 0xFFFFFFFFL;
-				src2 &= 0xFFFFFFFFL;
+		/**
+		 * Complete the in progress delayed load and scheduled a new one.
+		 * 
+		 * @param nextLoadTarget the target register of the new load.
+		 * @param nextLoadValue the value to be loaded into the new target.
+		 * @param nextLoadMask the mask specifying which bits in the new target are
+		 * to be overwritten. If a bit in <tt>nextLoadMask</tt> is 0, then the
+		 * corresponding bit of register <tt>nextLoadTarget</tt> will not be
+		 * written.
+		 */
+		private void delayedLoad(int nextLoadTarget, int nextLoadValue,
+				int nextLoadMask) {
+			// complete previous delayed load, if not modifying r0
+			if (loadTarget != 0) {
+				int savedBits = registers[loadTarget] & ~loadMask;
+				int newBits = loadValue & loadMask;
+				registers[loadTarget] = savedBits | newBits;
 			}
 
-			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-				print();
+			// schedule next load
+			loadTarget = nextLoadTarget;
+			loadValue = nextLoadValue;
+			loadMask = nextLoadMask;
 		}
 
-		private void print() {
-			if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor)
-					&& !Lib.test(dbgFullDisassemble))
-				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
-						+ "\t");
-
-			if (operation == Mips.INVALID) {
-				System.out.print("invalid: op=" + Lib.toHexString(op, 2)
-						+ " rs=" + Lib.toHexString(rs, 2) + " rt="
-						+ Lib.toHexString(rt, 2) + " rd="
-						+ Lib.toHexString(rd, 2) + " sh="
-						+ Lib.toHexString(sh, 2) + " func="
-						+ Lib.toHexString(func, 2) + "\n");
-				return;
+		/**
+		 * Transfer the contents of the nextPC register into the PC register, and
+		 * then write the nextPC register.
+		 * 
+		 * @param nextPC the new value of the nextPC register.
+		 */
+		private void advancePC(int nextPC) {
+			registers[regPC] = registers[regNextPC];
+			registers[regNextPC] = nextPC;
+		}
+
+		private class Instruction {
+			public void run() throws MipsException {
+				// hopefully this looks familiar to 152 students?
+				fetch();
+				decode();
+				execute();
+				writeBack();
+
+				if (trace != null)
+					profile();
+			}
+
+			private boolean test(int flag) {
+				return Lib.test(flag, flags);
+			}
+
+			private void fetch() throws MipsException {
+				if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
+						|| Lib.test(dbgFullDisassemble))
+					System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
+							+ "\t");
+
+				pc = registers[regPC];
+				value = readMem(pc, 4);
 			}
 
-			int spaceIndex = name.indexOf(' ');
-			Lib.assertTrue(spaceIndex != -1
-					&& spaceIndex == name.lastIndexOf(' '));
+			private void decode() {
+				op = Lib.extract(value, 26, 6);
+				rs = Lib.extract(value, 21, 5);
+				rt = Lib.extract(value, 16, 5);
+				rd = Lib.extract(value, 11, 5);
+				sh = Lib.extract(value, 6, 5);
+				func = Lib.extract(value, 0, 6);
+				target = Lib.extract(value, 0, 26);
+				imm = Lib.extend(value, 0, 16);
+
+				Mips info;
+				switch (op) {
+				case 0:
+					info = Mips.specialtable[func];
+					break;
+				case 1:
+					info = Mips.regimmtable[rt];
+					break;
+				default:
+					info = Mips.optable[op];
+					break;
+				}
+
+				operation = info.operation;
+				name = info.name;
+				format = info.format;
+				flags = info.flags;
+
+				mask = 0xFFFFFFFF;
+				branch = true;
+
+				// get memory access size
+				if (test(Mips.SIZEB))
+					size = 1;
+				else if (test(Mips.SIZEH))
+					size = 2;
+				else if (test(Mips.SIZEW))
+					size = 4;
+				else
+					size = 0;
+
+				// get nextPC
+				nextPC = registers[regNextPC] + 4;
+
+				// get dstReg
+				if (test(Mips.DSTRA))
+					dstReg = regRA;
+				else if (format == Mips.IFMT)
+					dstReg = rt;
+				else if (format == Mips.RFMT)
+					dstReg = rd;
+				else
+					dstReg = -1;
+
+				// get jtarget
+				if (format == Mips.RFMT)
+					jtarget = registers[rs];
+				else if (format == Mips.IFMT)
+					jtarget = registers[regNextPC] + (imm << 2);
+				else if (format == Mips.JFMT)
+					jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
+				else
+					jtarget = -1;
+
+				// get imm
+				if (test(Mips.UNSIGNED)) {
+					imm &= 0xFFFF;
+				}
 
-			String instname = name.substring(0, spaceIndex);
-			char[] args = name.substring(spaceIndex + 1).toCharArray();
+				// get addr
+				addr = registers[rs] + imm;
 
-			System.out.print(instname + "\t");
+				// get src1
+				if (test(Mips.SRC1SH))
+					src1 = sh;
+				else
+					src1 = registers[rs];
 
-			int minCharsPrinted = 0, maxCharsPrinted = 0;
+				// get src2
+				if (test(Mips.SRC2IMM))
+					src2 = imm;
+				else
+					src2 = registers[rt];
 
-			for (int i = 0; i < args.length; i++) {
-				switch (args[i]) {
-				case Mips.RS:
-					System.out.print("$" + rs);
-					minCharsPrinted += 2;
-					maxCharsPrinted += 3;
+				if (test(Mips.UNSIGNED)) {
+					src1 &= 0xFFFFFFFFL;
+					src2 &= 0xFFFFFFFFL;
+				}
 
-					if (Lib.test(dbgFullDisassemble)) {
-						System.out
-								.print("#0x" + Lib.toHexString(registers[rs]));
-						minCharsPrinted += 11;
-						maxCharsPrinted += 11;
+				if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+					print();
+			}
+
+			private void print() {
+				if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor)
+						&& !Lib.test(dbgFullDisassemble))
+					System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
+							+ "\t");
+
+				if (operation == Mips.INVALID) {
+					System.out.print("invalid: op=" + Lib.toHexString(op, 2)
+							+ " rs=" + Lib.toHexString(rs, 2) + " rt="
+							+ Lib.toHexString(rt, 2) + " rd="
+							+ Lib.toHexString(rd, 2) + " sh="
+							+ Lib.toHexString(sh, 2) + " func="
+							+ Lib.toHexString(func, 2) + "\n");
+					return;
+				}
+
+				int spaceIndex = name.indexOf(' ');
+				Lib.assertTrue(spaceIndex != -1
+						&& spaceIndex == name.lastIndexOf(' '));
+
+				String instname = name.substring(0, spaceIndex);
+				char[] args = name.substring(spaceIndex + 1).toCharArray();
+
+				System.out.print(instname + "\t");
+
+				int minCharsPrinted = 0, maxCharsPrinted = 0;
+
+				for (int i = 0; i < args.length; i++) {
+					switch (args[i]) {
+					case Mips.RS:
+						System.out.print("$" + rs);
+						minCharsPrinted += 2;
+						maxCharsPrinted += 3;
+
+						if (Lib.test(dbgFullDisassemble)) {
+							System.out
+									.print("#0x" + Lib.toHexString(registers[rs]));
+							minCharsPrinted += 11;
+							maxCharsPrinted += 11;
+						}
+						break;
+					case Mips.RT:
+						System.out.print("$" + rt);
+						minCharsPrinted += 2;
+						maxCharsPrinted += 3;
+
+						if (Lib.test(dbgFullDisassemble)
+								&& (i != 0 || !test(Mips.DST))
+								&& !test(Mips.DELAYEDLOAD)) {
+							System.out
+									.print("#0x" + Lib.toHexString(registers[rt]));
+							minCharsPrinted += 11;
+							maxCharsPrinted += 11;
+						}
+						break;
+					case Mips.RETURNADDRESS:
+						if (rd == 31)
+							continue;
+					case Mips.RD:
+						System.out.print("$" + rd);
+						minCharsPrinted += 2;
+						maxCharsPrinted += 3;
+						break;
+					case Mips.IMM:
+						System.out.print(imm);
+						minCharsPrinted += 1;
+						maxCharsPrinted += 6;
+						break;
+					case Mips.SHIFTAMOUNT:
+						System.out.print(sh);
+						minCharsPrinted += 1;
+						maxCharsPrinted += 2;
+						break;
+					case Mips.ADDR:
+						System.out.print(imm + "($" + rs);
+						minCharsPrinted += 4;
+						maxCharsPrinted += 5;
+
+						if (Lib.test(dbgFullDisassemble)) {
+							System.out
+									.print("#0x" + Lib.toHexString(registers[rs]));
+							minCharsPrinted += 11;
+							maxCharsPrinted += 11;
+						}
+
+						System.out.print(")");
+						break;
+					case Mips.TARGET:
+						System.out.print("0x" + Lib.toHexString(jtarget));
+						minCharsPrinted += 10;
+						maxCharsPrinted += 10;
+						break;
+					default:
+						Lib.assertTrue(false);
+					}
+					if (i + 1 < args.length) {
+						System.out.print(", ");
+						minCharsPrinted += 2;
+						maxCharsPrinted += 2;
 					}
+					else {
+						// most separation possible is tsi, 5+1+1=7,
+						// thankfully less than 8 (makes this possible)
+						Lib.assertTrue(maxCharsPrinted - minCharsPrinted < 8);
+						// longest string is stj, which is 40-42 chars w/ -d M;
+						// go for 48
+						while ((minCharsPrinted % 8) != 0) {
+							System.out.print(" ");
+							minCharsPrinted++;
+							maxCharsPrinted++;
+						}
+						while (minCharsPrinted < 48) {
+							System.out.print("\t");
+							minCharsPrinted += 8;
+						}
+					}
+				}
+
+				if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor)
+						&& !Lib.test(dbgFullDisassemble))
+					System.out.print("\n");
+			}
+
+			private void execute() throws MipsException {
+				int value;
+				int preserved;
+
+				switch (operation) {
+				case Mips.ADD:
+					dst = src1 + src2;
 					break;
-				case Mips.RT:
-					System.out.print("$" + rt);
-					minCharsPrinted += 2;
-					maxCharsPrinted += 3;
-
-					if (Lib.test(dbgFullDisassemble)
-							&& (i != 0 || !test(Mips.DST))
-							&& !test(Mips.DELAYEDLOAD)) {
-						System.out
-								.print("#0x" + Lib.toHexString(registers[rt]));
-						minCharsPrinted += 11;
-						maxCharsPrinted += 11;
+				case Mips.SUB:
+					dst = src1 - src2;
+					break;
+				case Mips.MULT:
+					dst = src1 * src2;
+					registers[regLo] = (int) Lib.extract(dst, 0, 32);
+					registers[regHi] = (int) Lib.extract(dst, 32, 32);
+					break;
+				case Mips.DIV:
+					try {
+						registers[regLo] = (int) (src1 / src2);
+						registers[regHi] = (int) (src1 % src2);
+						if (registers[regLo] * src2 + registers[regHi] != src1)
+							throw new ArithmeticException();
+					}
+					catch (ArithmeticException e) {
+						throw new MipsException(exceptionOverflow);
 					}
 					break;
-				case Mips.RETURNADDRESS:
-					if (rd == 31)
-						continue;
-				case Mips.RD:
-					System.out.print("$" + rd);
-					minCharsPrinted += 2;
-					maxCharsPrinted += 3;
+
+				case Mips.SLL:
+					dst = src2 << (src1 & 0x1F);
 					break;
-				case Mips.IMM:
-					System.out.print(imm);
-					minCharsPrinted += 1;
-					maxCharsPrinted += 6;
+				case Mips.SRA:
+					dst = src2 >> (src1 & 0x1F);
 					break;
-				case Mips.SHIFTAMOUNT:
-					System.out.print(sh);
-					minCharsPrinted += 1;
-					maxCharsPrinted += 2;
+				case Mips.SRL:
+					dst = src2 >>> (src1 & 0x1F);
 					break;
-				case Mips.ADDR:
-					System.out.print(imm + "($" + rs);
-					minCharsPrinted += 4;
-					maxCharsPrinted += 5;
 
-					if (Lib.test(dbgFullDisassemble)) {
-						System.out
-								.print("#0x" + Lib.toHexString(registers[rs]));
-						minCharsPrinted += 11;
-						maxCharsPrinted += 11;
-					}
+				case Mips.SLT:
+					dst = (src1 < src2) ? 1 : 0;
+					break;
+
+				case Mips.AND:
+					dst = src1 & src2;
+					break;
+				case Mips.OR:
+					dst = src1 | src2;
+					break;
+				case Mips.NOR:
+					dst = ~(src1 | src2);
+					break;
+				case Mips.XOR:
+					dst = src1 ^ src2;
+					break;
+				case Mips.LUI:
+					dst = imm << 16;
+					break;
 
-					System.out.print(")");
+				case Mips.BEQ:
+					branch = (src1 == src2);
+					break;
+				case Mips.BNE:
+					branch = (src1 != src2);
+					break;
+				case Mips.BGEZ:
+					branch = (src1 >= 0);
 					break;
-				case Mips.TARGET:
-					System.out.print("0x" + Lib.toHexString(jtarget));
-					minCharsPrinted += 10;
-					maxCharsPrinted += 10;
+				case Mips.BGTZ:
+					branch = (src1 > 0);
+					break;
+				case Mips.BLEZ:
+					branch = (src1 <= 0);
+					break;
+				case Mips.BLTZ:
+					branch = (src1 < 0);
+					break;
+
+				case Mips.JUMP:
+					break;
+
+				case Mips.MFLO:
+					dst = registers[regLo];
+					break;
+				case Mips.MFHI:
+					dst = registers[regHi];
+					break;
+				case Mips.MTLO:
+					registers[regLo] = (int) src1;
+					break;
+				case Mips.MTHI:
+					registers[regHi] = (int) src1;
+					break;
+
+				case Mips.SYSCALL:
+					throw new MipsException(exceptionSyscall);
+
+				case Mips.LOAD:
+					value = readMem(addr, size);
+
+					if (!test(Mips.UNSIGNED))
+						dst = Lib.extend(value, 0, size * 8);
+					else
+						dst = value;
+
+					break;
+
+				case Mips.LWL:
+					value = readMem(addr & ~0x3, 4);
+
+					// LWL shifts the input left so the addressed byte is highest
+					preserved = (3 - (addr & 0x3)) * 8; // number of bits to
+														// preserve
+					mask = -1 << preserved; // preserved bits are 0 in mask
+					dst = value << preserved; // shift input to correct place
+					addr &= ~0x3;
+
+					break;
+
+				case Mips.LWR:
+					value = readMem(addr & ~0x3, 4);
+
+					// LWR shifts the input right so the addressed byte is lowest
+					preserved = (addr & 0x3) * 8; // number of bits to preserve
+					mask = -1 >>> preserved; // preserved bits are 0 in mask
+					dst = value >>> preserved; // shift input to correct place
+					addr &= ~0x3;
+
+					break;
+
+				case Mips.STORE:
+					writeMem(addr, size, (int) src2);
 					break;
+
+				case Mips.SWL:
+					value = readMem(addr & ~0x3, 4);
+
+					// SWL shifts highest order byte into the addressed position
+					preserved = (3 - (addr & 0x3)) * 8;
+					mask = -1 >>> preserved;
+					dst = src2 >>> preserved;
+
+					// merge values
+					dst = (dst & mask) | (value & ~mask);
+
+					writeMem(addr & ~0x3, 4, (int) dst);
+					break;
+
+				case Mips.SWR:
+					value = readMem(addr & ~0x3, 4);
+
+					// SWR shifts the lowest order byte into the addressed position
+					preserved = (addr & 0x3) * 8;
+					mask = -1 << preserved;
+					dst = src2 << preserved;
+
+					// merge values
+					dst = (dst & mask) | (value & ~mask);
+
+					writeMem(addr & ~0x3, 4, (int) dst);
+					break;
+
+				case Mips.UNIMPL:
+					System.err.println("Warning: encountered unimplemented inst");
+
+				case Mips.INVALID:
+					throw new MipsException(exceptionIllegalInstruction);
+
 				default:
-					Lib.assertTrue(false);
-				}
-				if (i + 1 < args.length) {
-					System.out.print(", ");
-					minCharsPrinted += 2;
-					maxCharsPrinted += 2;
-				}
-				else {
-					// most separation possible is tsi, 5+1+1=7,
-					// thankfully less than 8 (makes this possible)
-					Lib.assertTrue(maxCharsPrinted - minCharsPrinted < 8);
-					// longest string is stj, which is 40-42 chars w/ -d M;
-					// go for 48
-					while ((minCharsPrinted % 8) != 0) {
-						System.out.print(" ");
-						minCharsPrinted++;
-						maxCharsPrinted++;
-					}
-					while (minCharsPrinted < 48) {
-						System.out.print("\t");
-						minCharsPrinted += 8;
-					}
+					Lib.assertNotReached();
 				}
 			}
 
-			if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor)
-					&& !Lib.test(dbgFullDisassemble))
-				System.out.print("\n");
-		}
-
-		private void execute() throws MipsException {
-			int value;
-			int preserved;
-
-			switch (operation) {
-			case Mips.ADD:
-				dst = src1 + src2;
-				break;
-			case Mips.SUB:
-				dst = src1 - src2;
-				break;
-			case Mips.MULT:
-				dst = src1 * src2;
-				registers[regLo] = (int) Lib.extract(dst, 0, 32);
-				registers[regHi] = (int) Lib.extract(dst, 32, 32);
-				break;
-			case Mips.DIV:
-				try {
-					registers[regLo] = (int) (src1 / src2);
-					registers[regHi] = (int) (src1 % src2);
-					if (registers[regLo] * src2 + registers[regHi] != src1)
-						throw new ArithmeticException();
-				}
-				catch (ArithmeticException e) {
+			private void writeBack() throws MipsException {
+				// if instruction is signed, but carry bit !+ sign bit, throw
+				if (test(Mips.OVERFLOW) && Lib.test(dst, 31) != Lib.test(dst, 32))
 					throw new MipsException(exceptionOverflow);
-				}
-				break;
-
-			case Mips.SLL:
-				dst = src2 << (src1 & 0x1F);
-				break;
-			case Mips.SRA:
-				dst = src2 >> (src1 & 0x1F);
-				break;
-			case Mips.SRL:
-				dst = src2 >>> (src1 & 0x1F);
-				break;
-
-			case Mips.SLT:
-				dst = (src1 < src2) ? 1 : 0;
-				break;
-
-			case Mips.AND:
-				dst = src1 & src2;
-				break;
-			case Mips.OR:
-				dst = src1 | src2;
-				break;
-			case Mips.NOR:
-				dst = ~(src1 | src2);
-				break;
-			case Mips.XOR:
-				dst = src1 ^ src2;
-				break;
-			case Mips.LUI:
-				dst = imm << 16;
-				break;
-
-			case Mips.BEQ:
-				branch = (src1 == src2);
-				break;
-			case Mips.BNE:
-				branch = (src1 != src2);
-				break;
-			case Mips.BGEZ:
-				branch = (src1 >= 0);
-				break;
-			case Mips.BGTZ:
-				branch = (src1 > 0);
-				break;
-			case Mips.BLEZ:
-				branch = (src1 <= 0);
-				break;
-			case Mips.BLTZ:
-				branch = (src1 < 0);
-				break;
-
-			case Mips.JUMP:
-				break;
-
-			case Mips.MFLO:
-				dst = registers[regLo];
-				break;
-			case Mips.MFHI:
-				dst = registers[regHi];
-				break;
-			case Mips.MTLO:
-				registers[regLo] = (int) src1;
-				break;
-			case Mips.MTHI:
-				registers[regHi] = (int) src1;
-				break;
-
-			case Mips.SYSCALL:
-				throw new MipsException(exceptionSyscall);
-
-			case Mips.LOAD:
-				value = readMem(addr, size);
-
-				if (!test(Mips.UNSIGNED))
-					dst = Lib.extend(value, 0, size * 8);
+
+				if (test(Mips.DELAYEDLOAD))
+					delayedLoad(dstReg, (int) dst, mask);
 				else
-					dst = value;
+					finishLoad();
+
+				if (test(Mips.LINK))
+					dst = nextPC;
 
-				break;
+				if (test(Mips.DST) && dstReg != 0)
+					registers[dstReg] = (int) dst;
 
-			case Mips.LWL:
-				value = readMem(addr & ~0x3, 4);
+				if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
+					if (Lib.test(dbgFullDisassemble)) {
+						System.out.print("#0x" + Lib.toHexString((int) dst));
+						if (test(Mips.DELAYEDLOAD))
+							System.out.print(" (delayed load)");
+					}
+				}
 
-				// LWL shifts the input left so the addressed byte is highest
-				preserved = (3 - (addr & 0x3)) * 8; // number of bits to
-													// preserve
-				mask = -1 << preserved; // preserved bits are 0 in mask
-				dst = value << preserved; // shift input to correct place
-				addr &= ~0x3;
+				if (test(Mips.BRANCH) && branch) {
+					nextPC = jtarget;
+				}
 
-				break;
+				advancePC(nextPC);
 
-			case Mips.LWR:
-				value = readMem(addr & ~0x3, 4);
+				if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
+						|| Lib.test(dbgFullDisassemble))
+					System.out.print("\n");
+			}
 
-				// LWR shifts the input right so the addressed byte is lowest
-				preserved = (addr & 0x3) * 8; // number of bits to preserve
-				mask = -1 >>> preserved; // preserved bits are 0 in mask
-				dst = value >>> preserved; // shift input to correct place
-				addr &= ~0x3;
+			private void profile() {
+				trace.instruction(pc);
 
-				break;
+				if (test(Mips.LINK)) {
+					if (branch)
+						trace.call(jtarget);
+				}
+				else if (operation == Mips.JUMP && format == Mips.RFMT
+						&& rs == regRA) {
+					trace.ret();
+				}
+			}
 
-			case Mips.STORE:
-				writeMem(addr, size, (int) src2);
-				break;
+			// state used to execute a single instruction
+			int pc, value, op, rs, rt, rd, sh, func, target, imm;
 
-			case Mips.SWL:
-				value = readMem(addr & ~0x3, 4);
+			int operation, format, flags;
 
-				// SWL shifts highest order byte into the addressed position
-				preserved = (3 - (addr & 0x3)) * 8;
-				mask = -1 >>> preserved;
-				dst = src2 >>> preserved;
+			String name;
 
-				// merge values
-				dst = (dst & mask) | (value & ~mask);
+			int size;
 
-				writeMem(addr & ~0x3, 4, (int) dst);
-				break;
+			int addr, nextPC, jtarget, dstReg;
 
-			case Mips.SWR:
-				value = readMem(addr & ~0x3, 4);
+			long src1, src2, dst;
 
-				// SWR shifts the lowest order byte into the addressed position
-				preserved = (addr & 0x3) * 8;
-				mask = -1 << preserved;
-				dst = src2 << preserved;
+			int mask;
 
-				// merge values
-				dst = (dst & mask) | (value & ~mask);
+			boolean branch;
+		}
 
-				writeMem(addr & ~0x3, 4, (int) dst);
-				break;
+		/** MIPS registers accessible to the kernel. */
+		int registers[] = new int[numUserRegisters];
 
-			case Mips.UNIMPL:
-				System.err.println("Warning: encountered unimplemented inst");
+		/** The registered target of the delayed load currently in progress. */
+		int loadTarget = 0;
 
-			case Mips.INVALID:
-				throw new MipsException(exceptionIllegalInstruction);
+		/** The bits to be modified by the delayed load currently in progress. */
+		int loadMask;
 
-			default:
-				Lib.assertNotReached();
-			}
-		}
+		/** The value to be loaded by the delayed load currently in progress. */
+		int loadValue;
 
-		private void writeBack() throws MipsException {
-			// if instruction is signed, but carry bit !+ sign bit, throw
-			if (test(Mips.OVERFLOW) && Lib.test(dst, 31) != Lib.test(dst, 32))
-				throw new MipsException(exceptionOverflow);
+		/**
+		 * Either an associative or direct-mapped set of translation entries,
+		 * depending on whether there is a TLB.
+		 */
+		TranslationEntry[] translations = null;
 
-			if (test(Mips.DELAYEDLOAD))
-				delayedLoad(dstReg, (int) dst, mask);
-			else
-				finishLoad();
+		/** The address space identifier each TLB entry is tagged with. */
+		int[] translationASIDs = null;
 
-			if (test(Mips.LINK))
-				dst = nextPC;
+		/** The current address space identifier. */
+		int asid = 0;
 
-			if (test(Mips.DST) && dstReg != 0)
-				registers[dstReg] = (int) dst;
+		/** Where translation statistics are counted. */
+		Stats stats;
 
-			if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-				if (Lib.test(dbgFullDisassemble)) {
-					System.out.print("#0x" + Lib.toHexString((int) dst));
-					if (test(Mips.DELAYEDLOAD))
-						System.out.print(" (delayed load)");
+		/** The profiling trace of the thread on this core, if any. */
+		Profiler.Trace trace = null;
+
+		/** The interpreter's scratch state for this core. */
+		Instruction inst = new Instruction();
+	}
+
+	/**
+	 * The user mode state of a thread running <tt>run()</tt> on a processor
+	 * with several cores: its clock, and its registers while it is preempted
+	 * and another thread has its core.
+	 */
+	private final class ParkedThread {
+		/**
+		 * Run this thread's instructions on the specified context until its
+		 * clock reaches the specified time, or it raises an exception.
+		 */
+		void run(Context context, long end) {
+			int executed = 0;
+			for (long count = end - time; executed < count; executed++) {
+				try {
+					context.inst.run();
+				}
+				catch (MipsException e) {
+					exception = e;
+					break;
 				}
 			}
 
-			if (test(Mips.BRANCH) && branch) {
-				nextPC = jtarget;
-			}
+			time += executed;
+			lastRun = executed;
+		}
 
-			advancePC(nextPC);
+		void stash(Context context) {
+			System.arraycopy(context.registers, 0, registers, 0,
+					numUserRegisters);
+			loadTarget = context.loadTarget;
+			loadMask = context.loadMask;
+			loadValue = context.loadValue;
+			stashed = true;
 
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
-				System.out.print("\n");
+			// the load belongs to this thread, not the one taking the core
+			context.loadTarget = 0;
 		}
 
-		// state used to execute a single instruction
-		int value, op, rs, rt, rd, sh, func, target, imm;
+		void unstash(Context context) {
+			System.arraycopy(registers, 0, context.registers, 0,
+					numUserRegisters);
+			context.loadTarget = loadTarget;
+			context.loadMask = loadMask;
+			context.loadValue = loadValue;
+			stashed = false;
+		}
 
-		int operation, format, flags;
+		/** The core this thread was preempted on. */
+		int core;
 
-		String name;
+		/** <tt>true</tt> if this thread's state was saved by a core switch. */
+		boolean stashed = false;
 
-		int size;
+		/** The time this thread's next instruction runs at. */
+		long time = 0;
 
-		int addr, nextPC, jtarget, dstReg;
+		/** The number of instructions run by the last call to <tt>run()</tt>. */
+		int lastRun = 0;
 
-		long src1, src2, dst;
+		/** An exception this thread raised, not yet handled. */
+		MipsException exception = null;
 
-		int mask;
+		int registers[] = new int[numUserRegisters];
 
-		boolean branch;
+		int loadTarget, loadMask, loadValue;
 	}
 
 	private static class Mips {
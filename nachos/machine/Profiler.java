@@ -0,0 +1,290 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.security.PrivilegedExceptionAction;
+import java.security.PrivilegedActionException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * An instruction-level profiler for user programs, enabled by
+ * <tt>Processor.profile</tt>. Every user instruction retired is counted
+ * against its PC, or every <tt>Processor.profileInterval</tt>th instruction
+ * if sampling is enough. Calls (<tt>jal</tt>, <tt>jalr</tt> and linking
+ * branches) and returns (<tt>jr $ra</tt>) are followed to build a calling
+ * context tree for each program.
+ *
+ * <p>
+ * When the machine halts, the profiler prints a flat profile of each program
+ * by procedure, using the procedure symbols in the COFF file, and writes the
+ * calling context trees to the host file named by
+ * <tt>Processor.profileFile</tt> in the collapsed-stack format that flame
+ * graph tools read:
+ *
+ * <pre>
+ * program;caller;callee count
+ * </pre>
+ */
+public final class Profiler {
+	/**
+	 * Allocate a new profiler.
+	 *
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 */
+	Profiler(Privilege privilege) {
+		this.privilege = privilege;
+
+		interval = Machine.config().profileInterval;
+		fileName = Machine.config().profileFile;
+
+		images = new HashMap<String, Image>();
+	}
+
+	/**
+	 * Start profiling a user thread. The thread's trace must be passed to
+	 * <tt>Processor.setProfileTrace()</tt> whenever the thread is switched
+	 * in. Threads running the same program share one profile.
+	 *
+	 * @param name the name of the program the thread runs.
+	 * @param coff the program's executable, used to read its symbols the
+	 * first time the program is seen.
+	 * @return a new trace for the thread.
+	 */
+	public Trace newTrace(String name, Coff coff) {
+		Image image = images.get(name);
+		if (image == null) {
+			int size = 0;
+			for (int s = 0; s < coff.getNumSections(); s++) {
+				CoffSection section = coff.getSection(s);
+				size = Math.max(size, (section.getFirstVPN() + section.getLength())
+						* Processor.pageSize);
+			}
+
+			image = new Image(name, coff.readSymbols(), size);
+			images.put(name, image);
+		}
+
+		return new Trace(image);
+	}
+
+	/**
+	 * The profiling state of one user thread: where it is in its program's
+	 * calling context tree.
+	 */
+	public final class Trace {
+		private Trace(Image image) {
+			this.image = image;
+			node = image.root;
+		}
+
+		void instruction(int pc) {
+			if (node == image.root)
+				node = node.child(image.lookup(pc));
+
+			if (--countdown > 0)
+				return;
+			countdown = interval;
+
+			node.count++;
+			if (pc >= 0 && (pc >>> 2) < image.pcCounts.length)
+				image.pcCounts[pc >>> 2]++;
+			image.total++;
+		}
+
+		void call(int target) {
+			node = node.child(image.lookup(target));
+		}
+
+		void ret() {
+			if (node.parent != image.root)
+				node = node.parent;
+		}
+
+		private Image image;
+
+		private Node node;
+
+		private int countdown = 1;
+	}
+
+	/**
+	 * Print the flat profiles and write the collapsed stacks. Called when the
+	 * machine halts.
+	 */
+	void report() {
+		for (Iterator<Image> i = images.values().iterator(); i.hasNext();)
+			i.next().print();
+
+		try {
+			privilege.doPrivileged(new PrivilegedExceptionAction<Object>() {
+				public Object run() throws IOException {
+					PrintWriter out = new PrintWriter(new FileWriter(fileName));
+					for (Iterator<Image> i = images.values().iterator(); i.hasNext();) {
+						Image image = i.next();
+						image.root.writeCollapsed(out, image, image.name);
+					}
+					out.close();
+					return null;
+				}
+			});
+			System.out.println("Profile: collapsed stacks written to " + fileName);
+		}
+		catch (PrivilegedActionException e) {
+			System.out.println("Profile: could not write " + fileName + ": "
+					+ e.getException());
+		}
+	}
+
+	private class Image {
+		Image(String name, Coff.Symbol[] symbols, int size) {
+			this.name = name;
+			this.symbols = symbols;
+			pcCounts = new long[size / 4];
+			root = new Node(null, -1);
+		}
+
+		/**
+		 * Return the index of the procedure containing an address, or -1 if
+		 * the address precedes every procedure.
+		 */
+		int lookup(int address) {
+			int low = 0, high = symbols.length - 1, found = -1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (Integer.compareUnsigned(symbols[mid].address, address) <= 0) {
+					found = mid;
+					low = mid + 1;
+				}
+				else {
+					high = mid - 1;
+				}
+			}
+			return found;
+		}
+
+		String procedureName(int index) {
+			return (index == -1) ? "?" : symbols[index].name;
+		}
+
+		void print() {
+			System.out.println("Profile of " + name + ": " + total
+					+ " instructions" + (interval > 1 ? " sampled" : ""));
+			if (total == 0)
+				return;
+
+			final long[] self = new long[symbols.length + 1];
+			for (int i = 0; i < pcCounts.length; i++) {
+				if (pcCounts[i] != 0)
+					self[lookup(i * 4) + 1] += pcCounts[i];
+			}
+
+			Integer[] order = new Integer[self.length];
+			for (int i = 0; i < order.length; i++)
+				order[i] = i;
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return Long.compare(self[b], self[a]);
+				}
+			});
+
+			for (int i = 0; i < order.length && self[order[i]] > 0; i++) {
+				System.out.println(String.format("  %6.2f%% %10d  %s",
+						100.0 * self[order[i]] / total, self[order[i]],
+						procedureName(order[i] - 1)));
+			}
+
+			ArrayList<Integer> hot = new ArrayList<Integer>();
+			for (int i = 0; i < pcCounts.length; i++) {
+				if (pcCounts[i] != 0)
+					hot.add(i);
+			}
+			hot.sort(new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return Long.compare(pcCounts[b], pcCounts[a]);
+				}
+			});
+
+			System.out.println("  hottest instructions:");
+			for (int i = 0; i < hot.size() && i < numHottest; i++) {
+				int pc = hot.get(i) * 4;
+				int index = lookup(pc);
+				String where = (index == -1) ? "?" : symbols[index].name + "+0x"
+						+ Integer.toHexString(pc - symbols[index].address);
+				System.out.println(String.format("  %6.2f%% %10d  0x%s  %s",
+						100.0 * pcCounts[hot.get(i)] / total,
+						pcCounts[hot.get(i)], Lib.toHexString(pc, 8), where));
+			}
+		}
+
+		String name;
+
+		Coff.Symbol[] symbols;
+
+		long[] pcCounts;
+
+		long total = 0;
+
+		Node root;
+	}
+
+	/** A node in a calling context tree. */
+	private static class Node {
+		Node(Node parent, int procedure) {
+			this.parent = parent;
+			this.procedure = procedure;
+		}
+
+		Node child(int procedure) {
+			if (children == null)
+				children = new HashMap<Integer, Node>();
+
+			Node child = children.get(procedure);
+			if (child == null) {
+				child = new Node(this, procedure);
+				children.put(procedure, child);
+			}
+			return child;
+		}
+
+		void writeCollapsed(PrintWriter out, Image image, String stack) {
+			if (count > 0)
+				out.println(stack + " " + count);
+
+			if (children == null)
+				return;
+
+			for (Iterator<Node> i = children.values().iterator(); i.hasNext();) {
+				Node child = i.next();
+				child.writeCollapsed(out, image, stack + ";"
+						+ image.procedureName(child.procedure));
+			}
+		}
+
+		Node parent;
+
+		int procedure;
+
+		long count = 0;
+
+		HashMap<Integer, Node> children = null;
+	}
+
+	private static final int numHottest = 10;
+
+	private Privilege privilege;
+
+	private int interval;
+
+	private String fileName;
+
+	private HashMap<String, Image> images;
+}
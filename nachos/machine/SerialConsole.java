@@ -6,8 +6,8 @@ import nachos.security.*;
 
 /**
  * A serial console can be used to send and receive characters. Only one
- * character may be sent at a time, and only one character may be received at a
- * time.
+ * character, or one burst of characters, may be sent at a time, and only one
+ * character may be received at a time.
  */
 
 public interface SerialConsole {
@@ -20,8 +20,8 @@ public interface SerialConsole {
 	 * 
 	 * <p>
 	 * The send interrupt handler is called every time a byte sent with
-	 * <tt>writeByte()</tt> is finished being sent. This means that another byte
-	 * can be sent.
+	 * <tt>writeByte()</tt>, or a burst sent with <tt>writeBytes()</tt>, is
+	 * finished being sent. This means that more can be sent.
 	 * 
 	 * @param receiveInterruptHandler the callback to call when a byte arrives.
 	 * @param sendInterruptHandler the callback to call when another byte can be
@@ -45,4 +45,17 @@ public interface SerialConsole {
 	 * @param value the byte to be sent (the upper 24 bits are ignored).
 	 */
 	public void writeByte(int value);
+
+	/**
+	 * Send a burst of bytes, as many of <i>length</i> bytes as the console
+	 * accepts at once, which is at least one. The send interrupt is called
+	 * once, when all of them are sent. If a byte is already being sent, the
+	 * result is not defined.
+	 * 
+	 * @param buf the buffer holding the bytes to send.
+	 * @param offset the offset in the buffer of the first byte to send.
+	 * @param length the number of bytes to send; must be positive.
+	 * @return the number of bytes that will be sent.
+	 */
+	public int writeBytes(byte[] buf, int offset, int length);
 }
@@ -8,6 +8,20 @@ import java.io.IOException;
 
 /**
  * A text-based console that uses System.in and System.out.
+ *
+ * <p>
+ * The console does not poll for input. A host thread waits on System.in and
+ * raises the receive interrupt when a byte arrives, so while no one types,
+ * the console schedules no interrupts at all. At most one receive interrupt
+ * is pending at a time. When input is replayed from an <tt>InputLog</tt>, the
+ * receive interrupt is scheduled for the tick at which the recorded run took
+ * each byte. Contained simulations (see
+ * <tt>Batch</tt>) share System.in with the host, so they read no input.
+ *
+ * <p>
+ * With
+ * <tt>Console.writeBurst</tt> set above 1, the console sends up to that many
+ * bytes for each send interrupt, in the time it otherwise takes to send one.
  */
 public class StandardConsole implements SerialConsole {
 	/**
@@ -20,6 +34,8 @@ public class StandardConsole implements SerialConsole {
 
 		this.privilege = privilege;
 
+		outgoing = new byte[Machine.config().consoleWriteBurst];
+
 		receiveInterrupt = new Runnable() {
 			public void run() {
 				receiveInterrupt();
@@ -32,30 +48,75 @@ public class StandardConsole implements SerialConsole {
 			}
 		};
 
-		scheduleReceiveInterrupt();
+		log = Machine.inputLog();
+		if (log != null && log.isReplaying()) {
+			scheduleReplayInterrupt();
+		}
+		else if (!Machine.isContained()) {
+			Thread receiveThread = new Thread(new Runnable() {
+				public void run() {
+					receiveLoop();
+				}
+			}, "console reader");
+
+			receiveThread.setDaemon(true);
+			receiveThread.start();
+		}
 	}
 
 	public final void setInterruptHandlers(Runnable receiveInterruptHandler,
 			Runnable sendInterruptHandler) {
 		this.receiveInterruptHandler = receiveInterruptHandler;
 		this.sendInterruptHandler = sendInterruptHandler;
+
+		// input that arrived before there was a handler is taken now
+		scheduleReceiveInterrupt();
 	}
 
+	/**
+	 * Schedule the receive interrupt for a byte that has arrived, unless it is
+	 * already pending or there is no byte.
+	 */
 	private void scheduleReceiveInterrupt() {
+		if (log != null && log.isReplaying()) {
+			if (!receivePending)
+				scheduleReplayInterrupt();
+			return;
+		}
+
+		synchronized (this) {
+			if (arrivedKey == -1 || receivePending)
+				return;
+			receivePending = true;
+		}
+
 		privilege.interrupt.schedule(Stats.ConsoleTime, "console read",
 				receiveInterrupt);
 	}
 
 	/**
-	 * Attempt to read a byte from the object backing this console.
+	 * Schedule the receive interrupt for the tick at which the replayed run
+	 * next took a byte, if it took any more. A byte the recorded run took in
+	 * the current tick is taken before the tick ends.
+	 */
+	private void scheduleReplayInterrupt() {
+		long tick = log.nextTick(InputLog.deviceConsole);
+		if (tick != -1) {
+			receivePending = true;
+			privilege.interrupt.schedule(Math.max(tick
+					- privilege.stats.totalTicks, 0), "console read",
+					receiveInterrupt);
+		}
+	}
+
+	/**
+	 * Read a byte from the object backing this console, waiting until one is
+	 * available. Called by the console's host thread.
 	 * 
-	 * @return the byte read, or -1 of no data is available.
+	 * @return the byte read, or -1 at the end of the input.
 	 */
 	protected int in() {
 		try {
-			if (System.in.available() <= 0)
-				return -1;
-
 			return System.in.read();
 		}
 		catch (IOException e) {
@@ -63,6 +124,40 @@ public class StandardConsole implements SerialConsole {
 		}
 	}
 
+	/**
+	 * Wait for bytes from the host, and hand them to the simulation one at a
+	 * time, raising the receive interrupt for each. Runs on a host thread
+	 * until the input ends.
+	 */
+	private void receiveLoop() {
+		while (true) {
+			synchronized (this) {
+				while (arrivedKey != -1) {
+					try {
+						wait();
+					}
+					catch (InterruptedException e) {
+					}
+				}
+			}
+
+			int c = in();
+			if (c == -1)
+				return;
+
+			// a receive interrupt that is already pending takes this byte
+			boolean raise;
+			synchronized (this) {
+				arrivedKey = c;
+				raise = !receivePending;
+				receivePending = true;
+			}
+
+			if (raise)
+				privilege.interrupt.raise("console read", receiveInterrupt);
+		}
+	}
+
 	private int translateCharacter(int c) {
 		// translate win32 0x0D 0x0A sequence to single newline
 		if (c == 0x0A && prevCarriageReturn) {
@@ -88,14 +183,46 @@ public class StandardConsole implements SerialConsole {
 			return -1;
 	}
 
-	private void receiveInterrupt() {
-		Lib.assertTrue(incomingKey == -1);
+	/**
+	 * Take the byte that has arrived from the host, if any.
+	 */
+	private synchronized int takeArrived() {
+		int c = arrivedKey;
+		if (c != -1) {
+			arrivedKey = -1;
+			notify();
+		}
+		return c;
+	}
 
-		incomingKey = translateCharacter(in());
-		if (incomingKey == -1) {
-			scheduleReceiveInterrupt();
+	private int receive() {
+		if (log == null)
+			return takeArrived();
+
+		if (log.isReplaying()) {
+			byte[] data = log.replay(InputLog.deviceConsole);
+			scheduleReplayInterrupt();
+			return (data == null) ? -1 : (data[0] & 0xFF);
 		}
-		else {
+
+		int c = takeArrived();
+		if (c != -1)
+			log.record(InputLog.deviceConsole, new byte[] { (byte) c });
+		return c;
+	}
+
+	private void receiveInterrupt() {
+		synchronized (this) {
+			receivePending = false;
+		}
+
+		// the last byte has not been read yet, or there is no one to take
+		// this one; readByte() or setInterruptHandlers() will call again
+		if (incomingKey != -1 || receiveInterruptHandler == null)
+			return;
+
+		incomingKey = translateCharacter(receive());
+		if (incomingKey != -1) {
 			privilege.stats.numConsoleReads++;
 
 			if (receiveInterruptHandler != null)
@@ -108,6 +235,7 @@ public class StandardConsole implements SerialConsole {
 
 		if (incomingKey != -1) {
 			incomingKey = -1;
+			// another byte may have arrived while this one waited to be read
 			scheduleReceiveInterrupt();
 		}
 
@@ -129,27 +257,64 @@ public class StandardConsole implements SerialConsole {
 		System.out.flush();
 	}
 
-	private void sendInterrupt() {
-		Lib.assertTrue(outgoingKey != -1);
+	/**
+	 * Write bytes to the object backing this console. A subclass that
+	 * overrides <tt>out(int)</tt> should override this too.
+	 * 
+	 * @param buf the buffer holding the bytes to write.
+	 * @param offset the offset in the buffer of the first byte to write.
+	 * @param length the number of bytes to write.
+	 */
+	protected void out(byte[] buf, int offset, int length) {
+		if (length == 1) {
+			out(buf[offset] & 0xFF);
+			return;
+		}
+
+		System.out.write(buf, offset, length);
+		System.out.flush();
+	}
 
-		out(outgoingKey);
-		outgoingKey = -1;
+	private void sendInterrupt() {
+		Lib.assertTrue(outgoingLength > 0);
 
-		privilege.stats.numConsoleWrites++;
+		out(outgoing, 0, outgoingLength);
+		privilege.stats.numConsoleWrites += outgoingLength;
+		outgoingLength = 0;
 
 		if (sendInterruptHandler != null)
 			sendInterruptHandler.run();
 	}
 
 	public final void writeByte(int value) {
-		if (outgoingKey == -1)
+		if (outgoingLength == 0)
 			scheduleSendInterrupt();
 
-		outgoingKey = value & 0xFF;
+		outgoing[0] = (byte) value;
+		outgoingLength = 1;
+	}
+
+	public final int writeBytes(byte[] buf, int offset, int length) {
+		Lib.assertTrue(length > 0);
+
+		if (outgoingLength == 0)
+			scheduleSendInterrupt();
+
+		outgoingLength = Math.min(length, outgoing.length);
+		System.arraycopy(buf, offset, outgoing, 0, outgoingLength);
+		return outgoingLength;
 	}
 
 	private Privilege privilege = null;
 
+	private InputLog log;
+
+	/** The byte the host thread has read, guarded by this console. */
+	private int arrivedKey = -1;
+
+	/** Whether a receive interrupt is pending, guarded by this console. */
+	private boolean receivePending = false;
+
 	private Runnable receiveInterrupt;
 
 	private Runnable sendInterrupt;
@@ -160,7 +325,9 @@ public class StandardConsole implements SerialConsole {
 
 	private int incomingKey = -1;
 
-	private int outgoingKey = -1;
+	private byte[] outgoing;
+
+	private int outgoingLength = 0;
 
 	private boolean prevCarriageReturn = false;
 }
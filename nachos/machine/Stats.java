@@ -25,12 +25,187 @@ public final class Stats {
 		System.out.println("Console I/O: reads " + numConsoleReads
 				+ ", writes " + numConsoleWrites);
 		System.out.println("Paging: page faults " + numPageFaults
-				+ ", TLB misses " + numTLBMisses);
+				+ ", TLB misses " + numTLBMisses
+				+ (numTLBHits > 0 ? ", TLB hit rate " + tlbHitRate() + "%" : ""));
+		if (tlbSetHits != null && tlbSetHits.length > 1) {
+			String sets = "TLB sets: hits/misses";
+			for (int i = 0; i < tlbSetHits.length; i++)
+				sets += " " + tlbSetHits[i] + "/" + tlbSetMisses[i];
+			System.out.println(sets);
+		}
 		System.out.println("Swap: COFF reads " + numCOFFReads
 				+ ", swap reads " + numSwapReads
 			        + ", swap writes " + numSwapWrites);
+		if (numCompressedStores > 0 || numCompressedOverflows > 0)
+			System.out.println("Compressed swap: stores " + numCompressedStores
+					+ ", loads " + numCompressedLoads + ", overflows "
+					+ numCompressedOverflows + ", ratio "
+					+ compressionRatio());
+		if (numZeroPages > 0 || numSharedPages > 0)
+			System.out.println("Swap dedup: zero pages " + numZeroPages
+					+ ", shared pages " + numSharedPages);
+		if (numCoreSwitches > 0)
+			System.out.println("Cores: core switches " + numCoreSwitches);
+		if (numProcessFaults > 0)
+			System.out.println("Faults: processes killed " + numProcessFaults);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
+		printSyscalls();
+	}
+
+	private void printSyscalls() {
+		boolean any = false;
+		for (int i = 0; i < syscallNames.length; i++) {
+			if (numSyscalls[i] == 0)
+				continue;
+
+			if (!any) {
+				System.out.println("Syscalls: calls, ticks total/mean, "
+						+ "wall-clock us, bytes");
+				any = true;
+			}
+
+			long returns = syscallReturns(i);
+			System.out.println("  " + syscallNames[i] + " " + numSyscalls[i]
+					+ ", " + syscallTicks[i] + "/"
+					+ (returns > 0 ? syscallTicks[i] / returns : 0) + ", "
+					+ syscallNanos[i] / 1000 + ", " + syscallBytes[i]);
+
+			if (returns > 0) {
+				System.out.println(histogramToString("    ticks",
+						syscallTickHistogram, i, syscallBuckets));
+				System.out.println(histogramToString("    nanos",
+						syscallNanoHistogram, i, syscallNanoBuckets));
+			}
+		}
+	}
+
+	private static String histogramToString(String name, long[] histogram,
+			int syscall, int buckets) {
+		String text = name;
+		for (int b = 0; b < buckets; b++) {
+			long count = histogram[syscall * buckets + b];
+			if (count > 0)
+				text += " " + bucketName(b, buckets) + ":" + count;
+		}
+		return text;
+	}
+
+	private long syscallReturns(int syscall) {
+		long returns = 0;
+		for (int b = 0; b < syscallBuckets; b++)
+			returns += syscallTickHistogram[syscall * syscallBuckets + b];
+		return returns;
+	}
+
+	private static String bucketName(int bucket, int buckets) {
+		if (bucket == buckets - 1)
+			return ">=" + (1L << (bucket - 1));
+		return "<" + (1L << bucket);
+	}
+
+	private static int bucket(long value, int buckets) {
+		return Math.min(64 - Long.numberOfLeadingZeros(value), buckets - 1);
+	}
+
+	/**
+	 * Count a system call as the kernel starts to handle it.
+	 * 
+	 * @param syscall the system call number.
+	 */
+	public void syscallStarted(int syscall) {
+		if (syscall >= 0 && syscall < syscallNames.length)
+			numSyscalls[syscall]++;
+	}
+
+	/**
+	 * Record what a system call cost once the kernel returns from it. Calls
+	 * that never return, like <tt>exit()</tt>, are counted but have no cost.
+	 * 
+	 * @param syscall the system call number.
+	 * @param ticks the simulated time the call took.
+	 * @param nanos the wall-clock time the call took, in nanoseconds.
+	 * @param bytes the number of bytes the call read or wrote.
+	 */
+	public void syscallReturned(int syscall, long ticks, long nanos, int bytes) {
+		if (syscall < 0 || syscall >= syscallNames.length)
+			return;
+
+		syscallTicks[syscall] += ticks;
+		syscallNanos[syscall] += nanos;
+		syscallBytes[syscall] += bytes;
+
+		syscallTickHistogram[syscall * syscallBuckets
+				+ bucket(ticks, syscallBuckets)]++;
+		syscallNanoHistogram[syscall * syscallNanoBuckets
+				+ bucket(nanos, syscallNanoBuckets)]++;
+	}
+
+	/**
+	 * Return the system call statistics as a JSON object, with one member for
+	 * each system call that was made.
+	 * 
+	 * @return the JSON text.
+	 */
+	public String syscallsToJson() {
+		String json = "{";
+		for (int i = 0; i < syscallNames.length; i++) {
+			if (numSyscalls[i] == 0)
+				continue;
+
+			if (json.length() > 1)
+				json += ",";
+			json += "\n  \"" + syscallNames[i] + "\": {\"calls\": "
+					+ numSyscalls[i] + ", \"returns\": " + syscallReturns(i)
+					+ ", \"ticks\": " + syscallTicks[i] + ", \"nanos\": "
+					+ syscallNanos[i] + ", \"bytes\": " + syscallBytes[i]
+					+ ", \"ticksHistogram\": "
+					+ histogramToJson(syscallTickHistogram, i, syscallBuckets)
+					+ ", \"nanosHistogram\": "
+					+ histogramToJson(syscallNanoHistogram, i,
+							syscallNanoBuckets) + "}";
+		}
+		return json + "\n}\n";
+	}
+
+	private static String histogramToJson(long[] histogram, int syscall,
+			int buckets) {
+		String json = "{";
+		for (int b = 0; b < buckets; b++) {
+			long count = histogram[syscall * buckets + b];
+			if (count == 0)
+				continue;
+			json += (json.length() > 1 ? ", " : "") + "\""
+					+ bucketName(b, buckets) + "\": " + count;
+		}
+		return json + "}";
+	}
+
+	/**
+	 * Return the percentage of TLB lookups that hit, rounded to two decimal
+	 * places.
+	 * 
+	 * @return the TLB hit rate, or 0 if the TLB has not been used.
+	 */
+	public double tlbHitRate() {
+		long lookups = numTLBHits + numTLBMisses;
+		if (lookups == 0)
+			return 0;
+
+		return Math.round(10000.0 * numTLBHits / lookups) / 100.0;
+	}
+
+	/**
+	 * Return the ratio of uncompressed to compressed bytes for pages stored in
+	 * the compressed swap tier, rounded to two decimal places.
+	 * 
+	 * @return the compression ratio, or 0 if nothing has been compressed.
+	 */
+	public double compressionRatio() {
+		if (compressedBytesStored == 0)
+			return 0;
+
+		return Math.round(100.0 * compressedBytesIn / compressedBytesStored) / 100.0;
 	}
 
 	/**
@@ -66,6 +241,24 @@ public final class Stats {
 	/** The total number of TLB misses that have occurred. */
 	public int numTLBMisses = 0;
 
+	/** The total number of address translations that hit in the TLB. */
+	public long numTLBHits = 0;
+
+	/** The number of core switch interrupts delivered. */
+	public int numCoreSwitches = 0;
+
+	/**
+	 * The number of TLB hits in each TLB set, or <tt>null</tt> if there is no
+	 * TLB.
+	 */
+	public long[] tlbSetHits = null;
+
+	/**
+	 * The number of TLB misses in each TLB set, or <tt>null</tt> if there is
+	 * no TLB.
+	 */
+	public long[] tlbSetMisses = null;
+
         /** The total number of pages read from COFF files. */
         public int numCOFFReads = 0;
 
@@ -75,12 +268,102 @@ public final class Stats {
         /** The total number of pages written to swap. */
         public int numSwapWrites = 0;
 
+	/**
+	 * The total number of evicted pages kept in the compressed swap tier
+	 * instead of being written to swap.
+	 */
+	public int numCompressedStores = 0;
+
+	/**
+	 * The total number of swapped-out pages restored from the compressed swap
+	 * tier instead of being read from swap.
+	 */
+	public int numCompressedLoads = 0;
+
+	/**
+	 * The total number of evicted pages that did not fit in the compressed
+	 * swap tier and were written to swap.
+	 */
+	public int numCompressedOverflows = 0;
+
+	/**
+	 * The total number of evicted pages that were all zeros and were not
+	 * written to swap.
+	 */
+	public int numZeroPages = 0;
+
+	/**
+	 * The total number of evicted pages that shared an identical page already
+	 * in swap instead of being written.
+	 */
+	public int numSharedPages = 0;
+
+	/** The total number of page bytes given to the compressed swap tier. */
+	public long compressedBytesIn = 0;
+
+	/** The total number of bytes the compressed swap tier used to hold them. */
+	public long compressedBytesStored = 0;
+
 	/** The total number of packets Nachos has sent to the network. */
 	public int numPacketsSent = 0;
 
 	/** The total number of packets Nachos has received from the network. */
 	public int numPacketsReceived = 0;
 
+	/**
+	 * The number of user processes killed by an unhandled exception, rather
+	 * than exiting.
+	 */
+	public int numProcessFaults = 0;
+
+	/**
+	 * The names of the system calls, indexed by system call number as in
+	 * <tt>test/syscall.h</tt>.
+	 */
+	public static final String[] syscallNames = { "halt", "exit", "exec",
+			"join", "creat", "open", "read", "write", "close", "unlink", "mmap",
+			"connect", "accept" };
+
+	/**
+	 * The number of buckets in each system call's tick histogram. Bucket
+	 * <i>b</i> counts calls taking less than 2<sup><i>b</i></sup> ticks but at
+	 * least half that; the last bucket counts everything longer.
+	 */
+	public static final int syscallBuckets = 24;
+
+	/**
+	 * The number of buckets in each system call's wall-clock histogram,
+	 * bucketed like the tick histogram but in nanoseconds; the last bucket
+	 * counts calls of a second or more.
+	 */
+	public static final int syscallNanoBuckets = 32;
+
+	/** The number of times each system call was made. */
+	public long[] numSyscalls = new long[syscallNames.length];
+
+	/** The simulated time spent in each system call. */
+	public long[] syscallTicks = new long[syscallNames.length];
+
+	/** The wall-clock time spent in each system call, in nanoseconds. */
+	public long[] syscallNanos = new long[syscallNames.length];
+
+	/** The bytes transferred by each system call. */
+	public long[] syscallBytes = new long[syscallNames.length];
+
+	/**
+	 * A histogram of the simulated time each system call took, with
+	 * <tt>syscallBuckets</tt> buckets for each call in turn.
+	 */
+	public long[] syscallTickHistogram = new long[syscallNames.length
+			* syscallBuckets];
+
+	/**
+	 * A histogram of the wall-clock time each system call took, with
+	 * <tt>syscallNanoBuckets</tt> buckets for each call in turn.
+	 */
+	public long[] syscallNanoHistogram = new long[syscallNames.length
+			* syscallNanoBuckets];
+
 	/**
 	 * The amount to advance simulated time after each user instructions is
 	 * executed.
@@ -142,6 +142,10 @@ public final class TCB {
 	 * the new current TCB. It is acceptable for this TCB to be the current TCB.
 	 */
 	public void contextSwitch() {
+		// requestStop() may have been called by a non-Nachos thread
+		if (dying)
+			throw new ThreadDeath();
+
 		/*
 		 * Probably unnecessary sanity check: we make sure that the current
 		 * thread is bound to the current TCB. This check can only fail if
@@ -206,6 +210,32 @@ public final class TCB {
 		privilege.exit(0);
 	}
 
+	/**
+	 * Stop every TCB, including the current one, without exiting the JVM.
+	 * Used when Nachos is contained, and so shares the JVM with other
+	 * simulations: each waiting TCB is woken to find that it must die, and
+	 * the current thread dies by throwing <tt>ThreadDeath</tt>.
+	 */
+	static void stopAll() {
+		requestStop();
+
+		throw new ThreadDeath();
+	}
+
+	/**
+	 * Make every TCB die, from any thread. Waiting TCBs die at once, and the
+	 * running TCB dies when it next waits or context switches.
+	 */
+	static void requestStop() {
+		dying = true;
+
+		TCB[] tcbs = runningThreads.toArray(new TCB[0]);
+		for (int i = 0; i < tcbs.length; i++) {
+			if (tcbs[i].javaThread != Thread.currentThread())
+				tcbs[i].interrupt();
+		}
+	}
+
 	/**
 	 * Test if the current JVM thread belongs to a Nachos TCB. The AWT event
 	 * dispatcher is an example of a non-Nachos thread.
@@ -249,6 +279,12 @@ public final class TCB {
 			Lib.assertNotReached();
 		}
 		catch (ThreadDeath e) {
+			// stopAll() kills TCBs that were never destroyed
+			if (dying) {
+				runningThreads.removeElement(this);
+				return;
+			}
+
 			// make sure this TCB is being destroyed properly
 			if (!done) {
 				System.out.print("\nTCB terminated improperly!\n");
@@ -264,10 +300,7 @@ public final class TCB {
 			e.printStackTrace();
 
 			runningThreads.removeElement(this);
-			if (runningThreads.isEmpty())
-				privilege.exit(1);
-			else
-				die();
+			privilege.exit(1);
 		}
 	}
 
@@ -296,7 +329,8 @@ public final class TCB {
 	 * needs to go to wait for its turn to run. This includes the ping-pong
 	 * process of starting and destroying TCBs, as well as in context switching
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * is updated by <tt>contextSwitch()</tt> before we get called. If
+	 * <tt>stopAll()</tt> woke us up, this TCB dies instead of returning.
 	 */
 	private synchronized void waitForInterrupt() {
 		while (!running) {
@@ -306,6 +340,9 @@ public final class TCB {
 			catch (InterruptedException e) {
 			}
 		}
+
+		if (dying)
+			throw new ThreadDeath();
 	}
 
 	/**
@@ -379,6 +416,12 @@ public final class TCB {
 
 	private static KThread toBeDestroyed = null;
 
+	/**
+	 * Set by <tt>stopAll()</tt>, after which every TCB dies as soon as it is
+	 * woken up.
+	 */
+	private static volatile boolean dying = false;
+
 	/**
 	 * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
 	 * started in <tt>Machine.main(String[])</tt>. Initialized by
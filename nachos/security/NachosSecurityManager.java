@@ -14,6 +14,7 @@ import java.lang.reflect.ReflectPermission;
 import java.security.PrivilegedAction;
 import java.security.PrivilegedExceptionAction;
 import java.security.PrivilegedActionException;
+import java.util.function.IntConsumer;
 
 /**
  * Protects the environment from malicious Nachos code.
@@ -55,6 +56,22 @@ public class NachosSecurityManager extends SecurityManager {
 		});
 	}
 
+	/**
+	 * Contain Nachos, so that other simulations can share its JVM. Instead of
+	 * installing this security manager, Nachos then relies on running only
+	 * trusted code, and <tt>exit()</tt> passes the exit status to
+	 * <tt>exitHandler</tt> rather than exiting the JVM. The handler must not
+	 * return.
+	 * 
+	 * @param exitHandler called with the exit status when Nachos exits.
+	 */
+	@SuppressWarnings("removal")
+	public void contain(IntConsumer exitHandler) {
+		Lib.assertTrue(this != System.getSecurityManager());
+
+		this.exitHandler = exitHandler;
+	}
+
 	private class PrivilegeProvider extends Privilege {
 		public void doPrivileged(Runnable action) {
 			NachosSecurityManager.this.doPrivileged(action);
@@ -112,6 +129,12 @@ public class NachosSecurityManager extends SecurityManager {
 
 	private void exit(int exitStatus) {
 		forcePrivilege();
+
+		if (exitHandler != null) {
+			exitHandler.accept(exitStatus);
+			Lib.assertNotReached("exit handler returned");
+		}
+
 		System.exit(exitStatus);
 	}
 
@@ -326,6 +349,8 @@ public class NachosSecurityManager extends SecurityManager {
 
 	private boolean fullySecure;
 
+	private IntConsumer exitHandler = null;
+
 	private Thread privileged = null;
 
 	private int privilegeCount = 0;
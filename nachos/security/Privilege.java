@@ -141,7 +141,9 @@ public abstract class Privilege {
 	 */
 	public interface InterruptPrivilege {
 		/**
-		 * Schedule an interrupt to occur at some time in the future.
+		 * Schedule an interrupt to occur at some time in the future. An
+		 * interrupt scheduled by an interrupt handler with <i>when</i> 0 occurs
+		 * before the current tick ends.
 		 * 
 		 * @param when the number of ticks until the interrupt should occur.
 		 * @param type a name for the type of interrupt being scheduled.
@@ -149,6 +151,28 @@ public abstract class Privilege {
 		 */
 		public void schedule(long when, String type, Runnable handler);
 
+		/**
+		 * Schedule an interrupt to be delivered to a specific processor core.
+		 * The interrupt is held pending until it is due <i>and</i> the core is
+		 * current.
+		 * 
+		 * @param when the number of ticks until the interrupt should occur.
+		 * @param type a name for the type of interrupt being scheduled.
+		 * @param handler the interrupt handler to call.
+		 * @param core the core to deliver the interrupt to.
+		 */
+		public void schedule(long when, String type, Runnable handler, int core);
+
+		/**
+		 * Raise an interrupt to occur at the next tick. Unlike
+		 * <tt>schedule()</tt>, this may be called from any host thread, such
+		 * as a device's thread waiting for input from the host.
+		 * 
+		 * @param type a name for the type of interrupt being raised.
+		 * @param handler the interrupt handler to call.
+		 */
+		public void raise(String type, Runnable handler);
+
 		/**
 		 * Advance the simulated time.
 		 * 
@@ -157,6 +181,15 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Return the number of ticks until the next interrupt that can be
+		 * delivered on the current processor core is due.
+		 * 
+		 * @return the number of ticks (at least 1), or
+		 * <tt>Long.MAX_VALUE</tt> if no interrupt is pending.
+		 */
+		public long ticksUntilNextInterrupt();
 	}
 
 	/**
@@ -169,6 +202,13 @@ public abstract class Privilege {
 		 * mode.
 		 */
 		public void flushPipe();
+
+		/**
+		 * Return the processor core that is currently executing.
+		 * 
+		 * @return the current core.
+		 */
+		public int getCurrentCore();
 	}
 
 	/**
@@ -149,7 +149,7 @@ static char vfprintfbuf[256];
 void vfprintf(int fd, char *format, va_list ap) {
     int len = _vsprintf(vfprintfbuf, format, ap);
     assert(len < sizeof(vfprintfbuf));
-    write(fd, vfprintfbuf, len);
+    fwrite(vfprintfbuf, 1, len, fd);
 }
 
 void vprintf(char *format, va_list ap) {
@@ -54,8 +54,8 @@ name:				; \
 	j	$31		; \
 	.end	name
 
-	SYSCALLSTUB(halt, syscallHalt)
-	SYSCALLSTUB(exit, syscallExit)
+	SYSCALLSTUB(_halt, syscallHalt)
+	SYSCALLSTUB(_exit, syscallExit)
 	SYSCALLSTUB(exec, syscallExec)
 	SYSCALLSTUB(join, syscallJoin)
 	SYSCALLSTUB(creat, syscallCreate)
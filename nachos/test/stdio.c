@@ -1,18 +1,97 @@
 #include "stdio.h"
 #include "stdlib.h"
 
+/* Output to the first NSTREAMS file descriptors is buffered. Standard output
+ * is line buffered, everything else is fully buffered.
+ */
+#define NSTREAMS	8
+#define STREAMBUFSIZE	128
+
+static struct {
+    char buf[STREAMBUFSIZE];
+    int count;
+} streams[NSTREAMS];
+
 int fgetc(int fd) {
     unsigned char c;
 
+    /* make sure a prompt is seen before waiting for the answer */
+    if (fd == stdin)
+	fflush(stdout);
+
     while (read(fd, &c, 1) != 1);
 
     return c;
 }
 
+void fflush(int fd) {
+    if (fd < 0 || fd >= NSTREAMS || streams[fd].count == 0)
+	return;
+
+    write(fd, streams[fd].buf, streams[fd].count);
+    streams[fd].count = 0;
+}
+
+void fclose(int fd) {
+    fflush(fd);
+    close(fd);
+}
+
+int fwrite(const void *ptr, int size, int nmemb, int fd) {
+    const char *s = ptr;
+    int length = size*nmemb, i;
+
+    if (fd < 0 || fd >= NSTREAMS) {
+	write(fd, (char*) s, length);
+	return nmemb;
+    }
+
+    if (streams[fd].count + length > STREAMBUFSIZE) {
+	fflush(fd);
+
+	/* too big to buffer, so write it now */
+	if (length >= STREAMBUFSIZE) {
+	    write(fd, (char*) s, length);
+	    return nmemb;
+	}
+    }
+
+    memcpy(streams[fd].buf + streams[fd].count, s, length);
+    streams[fd].count += length;
+
+    if (fd == stdout) {
+	for (i=0; i<length; i++) {
+	    if (s[i] == '\n') {
+		fflush(fd);
+		break;
+	    }
+	}
+    }
+
+    return nmemb;
+}
+
 void fputc(char c, int fd) {
-    write(fd, &c, 1);
+    fwrite(&c, 1, 1, fd);
 }
 
 void fputs(const char *s, int fd) {
-    write(fd, (char*) s, strlen(s));
+    fwrite(s, 1, strlen(s), fd);
+}
+
+static void flushall() {
+    int fd;
+
+    for (fd=0; fd<NSTREAMS; fd++)
+	fflush(fd);
+}
+
+void halt() {
+    flushall();
+    _halt();
+}
+
+void exit(int status) {
+    flushall();
+    _exit(status);
 }
@@ -14,6 +14,12 @@ typedef int		FILE;
 #define stdin		fdStandardInput
 #define stdout		fdStandardOutput
 
+/* Output is buffered in the library until a buffer fills, until a newline
+ * is written to stdout, until stdin is read, or until exit(). Call fflush()
+ * before mixing fputc(), fputs() or fprintf() with write() on the same file,
+ * and use fclose() rather than close() on a file written through a FILE.
+ */
+
 int  fgetc(FILE stream);
 void readline(char *s, int maxlength);
 int  tryreadline(char *s, char c, int maxlength);
@@ -24,6 +30,9 @@ int  tryreadline(char *s, char c, int maxlength);
 
 void fputc(char c, FILE stream);
 void fputs(const char *s, FILE stream);
+int  fwrite(const void *ptr, int size, int nmemb, FILE stream);
+void fflush(FILE stream);
+void fclose(FILE stream);
 
 #define puts(s)		fputs(s,stdout)
 #define putc(c,stream)	fputc(c,stream)
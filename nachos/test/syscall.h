@@ -50,8 +50,12 @@
  * (the first process, executed by UserKernel.run()) should be allowed to
  * execute this syscall. Any other process should ignore the syscall and return
  * immediately.
+ *
+ * Like exit(), the user library's halt() flushes the stdio buffers and then
+ * calls _halt(), which makes the system call.
  */
 void halt();
+void _halt();
 
 /* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join() */
 
@@ -64,8 +68,13 @@ void halt();
  * can be collected using the join syscall.
  *
  * exit() never returns.
+ *
+ * The user library's exit() flushes the stdio buffers and then calls
+ * _exit(), which makes the system call. Output still buffered when a process
+ * ends any other way is lost.
  */
 void exit(int status);
+void _exit(int status);
 
 /**
  * Execute the program stored in the specified file, with the specified
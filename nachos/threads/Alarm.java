@@ -4,7 +4,7 @@ import java.util.*;
 
 import nachos.machine.*;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
@@ -25,7 +25,8 @@ public class Alarm {
 			}
 		});
 		
-		waitQueue = new HashMap<KThread, Long>();
+		// woken in the order they went to sleep, the same from run to run
+		waitQueue = new LinkedHashMap<KThread, Long>();
 	}
 
 	/**
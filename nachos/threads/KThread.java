@@ -64,6 +64,8 @@ public class KThread {
 			currentThread = this;
 			tcb = TCB.currentTCB();
 			name = "main";
+			if (EventTrace.enabled)
+				EventTrace.nameThread(id, name);
 			restoreState();
 
 			createIdleThread();
@@ -166,8 +168,11 @@ public class KThread {
 		Lib.assertTrue(status == statusNew);
 		Lib.assertTrue(target != null);
 
-		Lib.debug(dbgThread, "Forking thread: " + toString() + " Runnable: "
-				+ target);
+		if (Lib.test(dbgThread))
+			System.out.println("Forking thread: " + toString() + " Runnable: "
+					+ target);
+		if (EventTrace.enabled)
+			EventTrace.nameThread(id, name);
 
 		boolean intStatus = Machine.interrupt().disable();
 
@@ -189,7 +194,8 @@ public class KThread {
 	}
 
 	private void begin() {
-		Lib.debug(dbgThread, "Beginning thread: " + toString());
+		if (Lib.test(dbgThread))
+			System.out.println("Beginning thread: " + toString());
 
 		Lib.assertTrue(this == currentThread);
 
@@ -209,7 +215,8 @@ public class KThread {
 	 * delete this thread.
 	 */
 	public static void finish() {
-		Lib.debug(dbgThread, "Finishing thread: " + currentThread.toString());
+		if (Lib.test(dbgThread))
+			System.out.println("Finishing thread: " + currentThread.toString());
 
 		Machine.interrupt().disable();
 
@@ -245,7 +252,8 @@ public class KThread {
 	 * called with interrupts disabled.
 	 */
 	public static void yield() {
-		Lib.debug(dbgThread, "Yielding thread: " + currentThread.toString());
+		if (Lib.test(dbgThread))
+			System.out.println("Yielding thread: " + currentThread.toString());
 
 		Lib.assertTrue(currentThread.status == statusRunning);
 
@@ -270,7 +278,8 @@ public class KThread {
 	 * scheduled this thread to be destroyed by the next thread to run.
 	 */
 	public static void sleep() {
-		Lib.debug(dbgThread, "Sleeping thread: " + currentThread.toString());
+		if (Lib.test(dbgThread))
+			System.out.println("Sleeping thread: " + currentThread.toString());
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 
@@ -285,7 +294,8 @@ public class KThread {
 	 * ready queue.
 	 */
 	public void ready() {
-		Lib.debug(dbgThread, "Ready thread: " + toString());
+		if (Lib.test(dbgThread))
+			System.out.println("Ready thread: " + toString());
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 		Lib.assertTrue(status != statusReady);
@@ -303,7 +313,8 @@ public class KThread {
 	 * is not guaranteed to return. This thread must not be the current thread.
 	 */	
 	public void join() {
-		Lib.debug(dbgThread, "Joining to thread: " + toString());
+		if (Lib.test(dbgThread))
+			System.out.println("Joining to thread: " + toString());
 		Lib.assertTrue(this != currentThread);
 		
 		// Need to flag to check join has been called
@@ -502,14 +513,19 @@ public class KThread {
 
 		currentThread.saveState();
 
-		Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
-				+ " to: " + toString());
+		if (Lib.test(dbgThread))
+			System.out.println("Switching from: " + currentThread.toString()
+					+ " to: " + toString());
+		if (EventTrace.enabled)
+			EventTrace.record(EventTrace.eventThreadSwitch, currentThread.id, id);
 
 		currentThread = this;
 
 		tcb.contextSwitch();
 		
-		called = false; // Once a thread ran, it can be reused so called should reset  
+		// the thread resuming here is currentThread, not this; once it runs again
+		// it can be woken again
+		currentThread.called = false;
 
 		currentThread.restoreState();
 	}
@@ -519,7 +535,8 @@ public class KThread {
 	 * <tt>statusRunning</tt> and check <tt>toBeDestroyed</tt>.
 	 */
 	protected void restoreState() {
-		Lib.debug(dbgThread, "Running thread: " + currentThread.toString());
+		if (Lib.test(dbgThread))
+			System.out.println("Running thread: " + currentThread.toString());
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 		Lib.assertTrue(this == currentThread);
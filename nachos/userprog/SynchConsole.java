@@ -7,6 +7,19 @@ import nachos.userprog.*;
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
+ *
+ * <p>
+ * Output is buffered: writers copy their bytes into a ring buffer and return,
+ * and a writer thread sends them to the console, as many at a time as the
+ * console accepts. Writers only wait when the buffer is full.
+ *
+ * <p>
+ * Input is buffered too: bytes are taken from the console as they arrive. By
+ * default reads return whatever has arrived without waiting. With
+ * <tt>SynchConsole.lineMode</tt> set, input is handed out a line at a time,
+ * as a terminal would: backspaces erase the line being typed, and a read
+ * waits for a whole line instead of returning nothing, so programs like
+ * <tt>sh.coff</tt> that read until they get a byte do not spin.
  */
 public class SynchConsole {
 	/**
@@ -17,6 +30,8 @@ public class SynchConsole {
 	public SynchConsole(SerialConsole console) {
 		this.console = console;
 
+		lineMode = Config.getBoolean("SynchConsole.lineMode", false);
+
 		Runnable receiveHandler = new Runnable() {
 			public void run() {
 				receiveInterrupt();
@@ -28,12 +43,26 @@ public class SynchConsole {
 			}
 		};
 		console.setInterruptHandlers(receiveHandler, sendHandler);
+
+		outputLock = new Lock();
+		outputReady = new Condition(outputLock);
+		outputSpace = new Condition(outputLock);
+		outputDrained = new Condition(outputLock);
+
+		KThread writer = new KThread(new Runnable() {
+			public void run() {
+				sendOutput();
+			}
+		});
+
+		writer.setName("console writer").fork();
 	}
 
 	/**
 	 * Return the next unsigned byte received (in the range <tt>0</tt> through
 	 * <tt>255</tt>). If a byte has not arrived at, blocks until a byte arrives,
-	 * or returns immediately, depending on the value of <i>block</i>.
+	 * or returns immediately, depending on the value of <i>block</i>. In line
+	 * mode, a byte arrives when its line is finished.
 	 * 
 	 * @param block <tt>true</tt> if <tt>readByte()</tt> should wait for a byte
 	 * if none is available.
@@ -41,24 +70,50 @@ public class SynchConsole {
 	 * and no byte was available.
 	 */
 	public int readByte(boolean block) {
-		int value;
-		boolean intStatus = Machine.interrupt().disable();
+		byte[] buf = new byte[1];
+		if (read(buf, 0, 1, block) == 0)
+			return -1;
+
+		return buf[0] & 0xFF;
+	}
+
+	/**
+	 * Read bytes that have arrived, up to <i>length</i> of them. In line mode,
+	 * stop after the first newline.
+	 * 
+	 * @param buf the buffer to store the bytes in.
+	 * @param offset the offset in the buffer to start storing bytes.
+	 * @param length the most bytes to read.
+	 * @param block <tt>true</tt> to wait for a byte if none has arrived.
+	 * @return the number of bytes read, which is 0 only if <tt>block</tt> was
+	 * <tt>false</tt> or <tt>length</tt> was 0.
+	 */
+	public int read(byte[] buf, int offset, int length, boolean block) {
+		if (length == 0)
+			return 0;
+
 		readLock.acquire();
+		boolean intStatus = Machine.interrupt().disable();
 
-		if (block || charAvailable) {
-			charAvailable = false;
+		while (block && inputReady == 0)
 			readWait.P();
 
-			value = console.readByte();
-			Lib.assertTrue(value != -1);
-		}
-		else {
-			value = -1;
+		int amount = 0;
+		while (amount < length && inputReady > 0) {
+			byte value = inputBuffer[inputHead];
+			buf[offset + amount++] = value;
+
+			inputHead = (inputHead + 1) % inputBuffer.length;
+			inputCount--;
+			inputReady--;
+
+			if (lineMode && value == '\n')
+				break;
 		}
 
-		readLock.release();
 		Machine.interrupt().restore(intStatus);
-		return value;
+		readLock.release();
+		return amount;
 	}
 
 	/**
@@ -70,23 +125,117 @@ public class SynchConsole {
 		return new File(true, false);
 	}
 
+	/**
+	 * Take the byte that has arrived into the input buffer, or in line mode,
+	 * apply it to the line being typed. Bytes that arrive while the buffer is
+	 * full are lost.
+	 */
 	private void receiveInterrupt() {
-		charAvailable = true;
-		readWait.V();
+		int value = console.readByte();
+		Lib.assertTrue(value != -1);
+
+		if (lineMode && value == '\b') {
+			if (inputCount > inputReady)
+				inputCount--;
+			return;
+		}
+
+		if (inputCount == inputBuffer.length)
+			return;
+
+		inputBuffer[(inputHead + inputCount) % inputBuffer.length] = (byte) value;
+		inputCount++;
+
+		// a line too long for the buffer is handed out unfinished
+		if (!lineMode || value == '\n' || inputCount == inputBuffer.length) {
+			inputReady = inputCount;
+			readWait.V();
+		}
 	}
 
 	/**
-	 * Send a byte. Blocks until the send is complete.
+	 * Queue a byte to be sent. Blocks only while the output buffer is full.
 	 * 
 	 * @param value the byte to be sent (the upper 24 bits are ignored).
 	 */
 	public void writeByte(int value) {
+		write(new byte[] { (byte) value }, 0, 1);
+	}
+
+	/**
+	 * Queue bytes to be sent, in order, without interleaving them with other
+	 * writers' bytes. Blocks only while the output buffer is full.
+	 * 
+	 * @param buf the buffer holding the bytes to send.
+	 * @param offset the offset in the buffer of the first byte to send.
+	 * @param length the number of bytes to send.
+	 */
+	public void write(byte[] buf, int offset, int length) {
 		writeLock.acquire();
-		console.writeByte(value);
-		writeWait.P();
+		outputLock.acquire();
+
+		while (length > 0) {
+			while (outputCount == outputBuffer.length)
+				outputSpace.sleep();
+
+			int tail = (outputHead + outputCount) % outputBuffer.length;
+			int amount = Math.min(length, Math.min(outputBuffer.length
+					- outputCount, outputBuffer.length - tail));
+			System.arraycopy(buf, offset, outputBuffer, tail, amount);
+
+			offset += amount;
+			length -= amount;
+			if (outputCount == 0)
+				outputReady.wake();
+			outputCount += amount;
+		}
+
+		outputLock.release();
 		writeLock.release();
 	}
 
+	/**
+	 * Wait until every byte queued so far has been sent. Call this before
+	 * halting, or the end of the output is lost.
+	 */
+	public void flush() {
+		outputLock.acquire();
+		while (outputCount > 0)
+			outputDrained.sleep();
+		outputLock.release();
+	}
+
+	/**
+	 * Send the bytes in the output buffer as they are queued. Run by the
+	 * writer thread, forever. Bytes stay in the buffer until they have been
+	 * sent, so writers cannot overwrite them.
+	 */
+	private void sendOutput() {
+		while (true) {
+			outputLock.acquire();
+			while (outputCount == 0)
+				outputReady.sleep();
+
+			int start = outputHead;
+			int length = Math.min(outputCount, outputBuffer.length - start);
+			outputLock.release();
+
+			for (int sent = 0; sent < length;) {
+				sent += console.writeBytes(outputBuffer, start + sent, length
+						- sent);
+				writeWait.P();
+			}
+
+			outputLock.acquire();
+			outputHead = (outputHead + length) % outputBuffer.length;
+			outputCount -= length;
+			outputSpace.wakeAll();
+			if (outputCount == 0)
+				outputDrained.wakeAll();
+			outputLock.release();
+		}
+	}
+
 	/**
 	 * Return an <tt>OpenFile</tt> that can be used to write this as a file.
 	 * 
@@ -100,7 +249,7 @@ public class SynchConsole {
 		writeWait.V();
 	}
 
-	private boolean charAvailable = false;
+	private boolean lineMode;
 
 	private SerialConsole console;
 
@@ -112,6 +261,26 @@ public class SynchConsole {
 
 	private Semaphore writeWait = new Semaphore(0);
 
+	private byte[] inputBuffer = new byte[inputBufferSize];
+
+	/**
+	 * The bytes received and not yet read, of which the first
+	 * <tt>inputReady</tt> may be read; the rest are an unfinished line.
+	 */
+	private int inputHead = 0, inputCount = 0, inputReady = 0;
+
+	private byte[] outputBuffer = new byte[outputBufferSize];
+
+	private int outputHead = 0, outputCount = 0;
+
+	private Lock outputLock;
+
+	private Condition outputReady, outputSpace, outputDrained;
+
+	private static final int inputBufferSize = 1024;
+
+	private static final int outputBufferSize = 4096;
+
 	private class File extends OpenFile {
 		File(boolean canRead, boolean canWrite) {
 			super(null, "SynchConsole");
@@ -128,24 +297,14 @@ public class SynchConsole {
 			if (!canRead)
 				return 0;
 
-			int i;
-			for (i = 0; i < length; i++) {
-				int value = SynchConsole.this.readByte(false);
-				if (value == -1)
-					break;
-
-				buf[offset + i] = (byte) value;
-			}
-
-			return i;
+			return SynchConsole.this.read(buf, offset, length, lineMode);
 		}
 
 		public int write(byte[] buf, int offset, int length) {
 			if (!canWrite)
 				return 0;
 
-			for (int i = 0; i < length; i++)
-				SynchConsole.this.writeByte(buf[offset + i]);
+			SynchConsole.this.write(buf, offset, length);
 
 			return length;
 		}
@@ -22,6 +22,8 @@ public class UThread extends KThread {
 		});
 
 		this.process = process;
+		this.core = UserKernel.placeThread(this);
+		this.profileTrace = process.newProfileTrace();
 	}
 
 	private void runProgram() {
@@ -51,8 +53,10 @@ public class UThread extends KThread {
 	protected void restoreState() {
 		super.restoreState();
 
+		Machine.processor().setCurrentCore(core);
 		for (int i = 0; i < Processor.numUserRegisters; i++)
 			Machine.processor().writeRegister(i, userRegisters[i]);
+		Machine.processor().setProfileTrace(profileTrace);
 
 		process.restoreState();
 	}
@@ -72,4 +76,13 @@ public class UThread extends KThread {
 	 * The process to which this thread belongs.
 	 */
 	public UserProcess process;
+
+	/**
+	 * The processor core this thread runs on, chosen by
+	 * <tt>UserKernel.placeThread()</tt>.
+	 */
+	public int core;
+
+	/** Where the processor profiles this thread, if it is profiling. */
+	private Profiler.Trace profileTrace;
 }
@@ -34,6 +34,10 @@ public class UserKernel extends ThreadedKernel {
 		ProcessIDLock = new Lock();
 		freeProcessId = 0;
 		activeProcess = 0;
+
+		checkpointTick = Config.getInteger("UserKernel.checkpointTick", -1);
+		checkpointFile = Config.getString("UserKernel.checkpointFile",
+				"nachos.ckpt");
 		
 		int numPhysPages = Machine.processor().getNumPhysPages();
 		for (int i = 0; i < numPhysPages; i++) {
@@ -45,6 +49,12 @@ public class UserKernel extends ThreadedKernel {
 				exceptionHandler();
 			}
 		});
+
+		Machine.processor().setCoreSwitchHandler(new Runnable() {
+			public void run() {
+				KThread.yield();
+			}
+		});
 	}
 
 	/**
@@ -89,6 +99,19 @@ public class UserKernel extends ThreadedKernel {
 		process.handleException(cause);
 	}
 
+	/**
+	 * Choose the processor core a new user thread will run on. Threads are
+	 * spread across the cores round-robin, and stay on their core.
+	 * 
+	 * @param thread the new thread.
+	 * @return the core to run the thread on.
+	 */
+	public static int placeThread(UThread thread) {
+		int core = nextCore;
+		nextCore = (nextCore + 1) % Machine.processor().getNumCores();
+		return core;
+	}
+
 	/**
 	 * Start running user programs, by creating a process and running a shell
 	 * program in it. The name of the shell program it must run is returned by
@@ -101,6 +124,16 @@ public class UserKernel extends ThreadedKernel {
 
 		UserProcess process = UserProcess.newUserProcess();
 
+		String restoreFile = Config.getString("UserKernel.restoreFile", null);
+		if (restoreFile != null) {
+			if (!process.restore(restoreFile)) {
+				System.out.println ("Could not restore checkpoint '" +
+						restoreFile + "', aborting.");
+				Lib.assertTrue(false);
+			}
+			KThread.finish();
+		}
+
 		String shellProgram = Machine.getShellProgramName();
 		if (!process.execute(shellProgram, new String[] {})) {
 		    System.out.println ("Could not find executable '" +
@@ -121,6 +154,7 @@ public class UserKernel extends ThreadedKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		console.flush();
 		super.terminate();
 	}
 	
@@ -140,6 +174,23 @@ public class UserKernel extends ThreadedKernel {
 		}
 	}
 	
+	/**
+	 * Checkpoint the specified process if <tt>UserKernel.checkpointTick</tt>
+	 * has passed and no checkpoint has been taken yet. Called at the start of
+	 * every syscall; the checkpoint is put off until only one process is
+	 * running.
+	 * 
+	 * @param process the process making a syscall.
+	 */
+	public static void checkpointIfDue(UserProcess process) {
+		if (checkpointTick < 0 || Machine.timer().getTime() < checkpointTick
+				|| activeProcess != 1)
+			return;
+
+		checkpointTick = -1;
+		process.checkpoint(checkpointFile);
+	}
+
 	public static int getFreeListSize() {
 		return freeList.size();
 	}
@@ -149,6 +200,19 @@ public class UserKernel extends ThreadedKernel {
 		freeProcessId += 1;
 		return temp;
 	}
+
+	/**
+	 * Give back every process ID from <i>processId</i> on, so that processes
+	 * made only for a self-test do not shift the IDs of the processes run
+	 * afterwards; only process 0 may halt the machine. The caller must hold
+	 * <tt>ProcessIDLock</tt>.
+	 * 
+	 * @param processId the first process ID to give back.
+	 */
+	public static void releaseProcessIds(int processId) {
+		Lib.assertTrue(processId >= 0 && processId <= freeProcessId);
+		freeProcessId = processId;
+	}
 	
 	public static int getActiveProcessCount() {
 		return activeProcess;
@@ -172,6 +236,9 @@ public class UserKernel extends ThreadedKernel {
 	
 	private static int freeProcessId;
 	private static int activeProcess;
+	private static int nextCore = 0;
+	private static long checkpointTick;
+	private static String checkpointFile;
 	
 	public static Lock freeListLock;
 	public static Lock ProcessIDLock;
@@ -6,7 +6,12 @@ import nachos.userprog.*;
 import nachos.vm.*;
 import java.util.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.IOException;
 
 /**
  * Encapsulates the state of a user process that is not contained in its user
@@ -88,6 +93,219 @@ public class UserProcess {
 		return true;
 	}
 
+	/**
+	 * Save this process to a checkpoint file, from which <tt>restore()</tt>
+	 * can later resume it. Must be called at the start of a syscall, while
+	 * this is the only process; the registers saved leave the PC at the
+	 * syscall instruction, so a restored process simply issues the syscall
+	 * again.
+	 * 
+	 * <p>
+	 * The checkpoint holds the machine state, the program name, the registers,
+	 * the contents of every writable page the program has touched (whether
+	 * resident or in swap), and the names and positions of open files. Pages
+	 * that are still as the COFF file left them are not saved, and neither is
+	 * the swap file itself.
+	 * 
+	 * <p>
+	 * Console output still queued is sent first, since the device interrupts
+	 * it waits for cannot be restored on a fresh machine.
+	 * 
+	 * <p>
+	 * Frame, TLB and swap residency are not saved either, so a restored run
+	 * matches only other runs restored from the same checkpoint, not the run
+	 * that took it.
+	 * 
+	 * @param fileName the name of the checkpoint file in the kernel file
+	 * system.
+	 */
+	public void checkpoint(String fileName) {
+		Processor processor = Machine.processor();
+
+		// nothing in flight, so the console has no interrupt to restore
+		UserKernel.console.flush();
+
+		// capture the machine first; reading swap below takes time
+		ByteArrayOutputStream machine = new ByteArrayOutputStream();
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buffer);
+		try {
+			MachineState.save(new DataOutputStream(machine));
+
+			out.writeInt(checkpointMagic);
+			out.writeInt(checkpointVersion);
+			out.writeUTF(programName);
+
+			for (int i = 0; i < Processor.numUserRegisters; i++)
+				out.writeInt(processor.readRegister(i));
+
+			out.writeInt(numPages);
+			byte[] page = new byte[pageSize];
+			for (int vpn = 0; vpn < numPages; vpn++) {
+				TranslationEntry entry = pageTable[vpn];
+				if (entry.readOnly || (!entry.valid && entry.ppn == -1)) {
+					out.writeByte(pageUntouched);
+					continue;
+				}
+
+				if (entry.valid)
+					processor.getPhysicalMemory().read(entry.ppn * pageSize,
+							page, 0, pageSize);
+				else if (entry.ppn == VMKernel.zeroPage)
+					Arrays.fill(page, (byte) 0);
+				else
+					VMKernel.readSwapFile(entry.ppn * pageSize, page, 0);
+
+				if (Lib.bytesFilled(page, 0, pageSize, (byte) 0)) {
+					out.writeByte(pageZero);
+				}
+				else {
+					out.writeByte(pageSaved);
+					out.write(page);
+				}
+			}
+
+			int numFiles = 0;
+			for (int fd = 2; fd < fileDescriptor.length; fd++) {
+				if (fileDescriptor[fd] != null)
+					numFiles++;
+			}
+			out.writeInt(numFiles);
+			for (int fd = 2; fd < fileDescriptor.length; fd++) {
+				if (fileDescriptor[fd] != null) {
+					out.writeInt(fd);
+					out.writeUTF(fileDescriptor[fd].getName());
+					out.writeInt(fileDescriptor[fd].tell());
+				}
+			}
+
+			machine.writeTo(out);
+		}
+		catch (IOException e) {
+			Lib.assertNotReached();
+		}
+
+		OpenFile file = ThreadedKernel.fileSystem.open(fileName, true);
+		if (file == null) {
+			Lib.debug(dbgProcess, "\tcould not create checkpoint " + fileName);
+			return;
+		}
+
+		byte[] data = buffer.toByteArray();
+		file.write(0, data, 0, data.length);
+		file.close();
+
+		Lib.debug(dbgProcess, "UserProcess.checkpoint: wrote " + data.length
+				+ " bytes to " + fileName);
+	}
+
+	/**
+	 * Resume a process saved by <tt>checkpoint()</tt>, and fork a thread to
+	 * run it. Must be called on a newly booted machine configured as the one
+	 * that took the checkpoint, before any other process is started.
+	 * 
+	 * @param fileName the name of the checkpoint file in the kernel file
+	 * system.
+	 * @return <tt>true</tt> if the process was successfully restored.
+	 */
+	public boolean restore(String fileName) {
+		Lib.debug(dbgProcess, "UserProcess.restore(\"" + fileName + "\")");
+
+		OpenFile file = ThreadedKernel.fileSystem.open(fileName, false);
+		if (file == null) {
+			Lib.debug(dbgProcess, "\topen failed");
+			return false;
+		}
+		byte[] data = Lib.loadFile(file);
+		file.close();
+		if (data == null)
+			return false;
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		try {
+			if (in.readInt() != checkpointMagic
+					|| in.readInt() != checkpointVersion) {
+				Lib.debug(dbgProcess, "\tnot a checkpoint");
+				return false;
+			}
+
+			String name = in.readUTF();
+			if (!load(name, new String[] {}))
+				return false;
+
+			int[] registers = new int[Processor.numUserRegisters];
+			for (int i = 0; i < registers.length; i++)
+				registers[i] = in.readInt();
+
+			Lib.assertTrue(in.readInt() == numPages,
+					"checkpoint does not match " + name);
+			byte[] page = new byte[pageSize];
+			for (int vpn = 0; vpn < numPages; vpn++) {
+				switch (in.readByte()) {
+				case pageUntouched:
+					continue;
+				case pageZero:
+					Arrays.fill(page, (byte) 0);
+					break;
+				case pageSaved:
+					in.readFully(page);
+					break;
+				default:
+					Lib.assertNotReached("corrupt checkpoint");
+				}
+				Lib.assertTrue(writeVirtualMemory(vpn * pageSize, page) == pageSize);
+			}
+
+			int numFiles = in.readInt();
+			for (int i = 0; i < numFiles; i++) {
+				int fd = in.readInt();
+				String fileNameOpen = in.readUTF();
+				int position = in.readInt();
+
+				OpenFile openFile = ThreadedKernel.fileSystem.open(fileNameOpen, false);
+				if (openFile == null) {
+					Lib.debug(dbgProcess, "\tcould not reopen " + fileNameOpen);
+					return false;
+				}
+				openFile.seek(position);
+				fileDescriptor[fd] = openFile;
+			}
+
+			// last, so that the time spent restoring is not counted
+			MachineState.restore(in);
+
+			restoredRegisters = registers;
+		}
+		catch (IOException e) {
+			Lib.debug(dbgProcess, "\tcorrupt checkpoint");
+			return false;
+		}
+
+		UserKernel.ActiveProcessLock.acquire();
+		UserKernel.increaseActiveProcess();
+		UserKernel.ActiveProcessLock.release();
+
+		thread = new UThread(this);
+		thread.setName(programName).fork();
+
+		return true;
+	}
+
+	/**
+	 * Start a profiling trace for a thread of this process, if the processor
+	 * is profiling. Called by the <tt>UThread</tt> constructor, while the
+	 * executable is still open.
+	 * 
+	 * @return the new trace, or <tt>null</tt> if profiling is disabled.
+	 */
+	Profiler.Trace newProfileTrace() {
+		Profiler profiler = Machine.processor().getProfiler();
+		if (profiler == null)
+			return null;
+
+		return profiler.newTrace(programName, coff);
+	}
+
 	/**
 	 * Save the state of this process in preparation for a context switch.
 	 * Called by <tt>UThread.saveState()</tt>.
@@ -162,7 +380,7 @@ public class UserProcess {
 		
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
-		byte[] memory = Machine.processor().getMemory();
+		PhysicalMemory memory = Machine.processor().getPhysicalMemory();
 		Processor processor = Machine.processor();
 		int remain = length;
 		int currVaddr = vaddr;
@@ -171,19 +389,12 @@ public class UserProcess {
 		while (remain > 0) {
 			int vpn = Processor.pageFromAddress(currVaddr);
 			int pageOffset = Processor.offsetFromAddress(currVaddr);
-			int index = -1;
-			for(int i = 0; i < pageTable.length; i++) {
-				if(pageTable[i].vpn == vpn) {
-					index = i;
-					if(pageTable[i].valid == false) {
-						//processor.writeRegister(processor.regBadVAddr, currVaddr);
-						handlePageFault(i);
-					}
-					break;
-				}
-			}
-			if(index == -1)
-				return 0;
+			// the page table is indexed by vpn
+			if (vpn >= pageTable.length)
+				return sum;
+			int index = vpn;
+			if (pageTable[index].valid == false)
+				handlePageFault(index);
 			
 			int ppn = pageTable[index].ppn;
 			VMKernel.pinPage(ppn);
@@ -191,11 +402,11 @@ public class UserProcess {
 			int maxAddr = pageSize * (ppn + 1); // Only read current page
 			// for now, just assume that virtual addresses equal physical addresses
 
-			if(paddr < 0 || paddr >= memory.length)
+			if(paddr < 0 || paddr >= memory.getSize())
 				return 0;
 
 			int amount = Math.min(remain, maxAddr - paddr);
-			System.arraycopy(memory, paddr, data, currOffset, amount);
+			memory.read(paddr, data, currOffset, amount);
 			remain -= amount;
 			currVaddr += amount;
 			currOffset += amount;
@@ -239,7 +450,7 @@ public class UserProcess {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 		
-		byte[] memory = Machine.processor().getMemory();
+		PhysicalMemory memory = Machine.processor().getPhysicalMemory();
 		Processor processor = Machine.processor();
 		int remain = length;
 		int currVaddr = vaddr;
@@ -248,30 +459,22 @@ public class UserProcess {
 		while (remain > 0) {
 			int vpn = Processor.pageFromAddress(currVaddr);
 			int pageOffset = Processor.offsetFromAddress(currVaddr);
-			int index = -1;
-			for (int i = 0; i < pageTable.length; i++) {
-				if (pageTable[i].vpn == vpn) {
-					index = i;
-					if(pageTable[i].valid == false) {
-						//processor.writeRegister(processor.regBadVAddr, currVaddr);
-						handlePageFault(i);
-					}
-					break;
-				}
-			}
-			if (index == -1) {
-				return 0;
-			}
+			// the page table is indexed by vpn
+			if (vpn >= pageTable.length)
+				return sum;
+			int index = vpn;
+			if (pageTable[index].valid == false)
+				handlePageFault(index);
 		
 			int ppn = pageTable[index].ppn;
 			VMKernel.pinPage(ppn);
 			int paddr = pageSize * ppn + pageOffset;
 			int maxAddr = pageSize * (ppn + 1);
 			// for now, just assume that virtual addresses equal physical addresses
-			if (paddr < 0 || paddr >= memory.length)
+			if (paddr < 0 || paddr >= memory.getSize())
 				return 0;
 			int amount = Math.min(remain, maxAddr - paddr);
-			System.arraycopy(data, currOffset, memory, paddr, amount);
+			memory.write(paddr, data, currOffset, amount);
 			remain -= amount;
 			currVaddr += amount;
 			currOffset += amount;
@@ -301,6 +504,8 @@ public class UserProcess {
 	private boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
+		programName = name;
+
 		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
 		if (executable == null) {
 			Lib.debug(dbgProcess, "\topen failed");
@@ -449,6 +654,13 @@ public class UserProcess {
 	public void initRegisters() {
 		Processor processor = Machine.processor();
 
+		if (restoredRegisters != null) {
+			for (int i = 0; i < Processor.numUserRegisters; i++)
+				processor.writeRegister(i, restoredRegisters[i]);
+			restoredRegisters = null;
+			return;
+		}
+
 		// by default, everything's 0
 		for (int i = 0; i < processor.numUserRegisters; i++)
 			processor.writeRegister(i, 0);
@@ -462,11 +674,21 @@ public class UserProcess {
 		processor.writeRegister(Processor.regA1, argv);
 	}
 
+	/**
+	 * Return the unique ID of this process.
+	 * 
+	 * @return the process ID.
+	 */
+	public int getProcessId() {
+		return processId;
+	}
+
 	/**
 	 * Handle the halt() system call.
 	 */
 	private int handleHalt() {
 		if (this.processId == 0) {
+			UserKernel.console.flush();
 			Machine.halt();
 			Lib.assertNotReached("Machine.halt() did not halt machine!");
 			return 0;
@@ -534,6 +756,7 @@ public class UserProcess {
 	private void exceptionExit() {					
 		// Close all file in file table
 		System.out.println("Exception Exit");
+		Machine.stats().numProcessFaults++;
 		for (OpenFile file : this.fileDescriptor) {
 			if (file != null) {
 				file.close();
@@ -894,11 +1117,29 @@ public class UserProcess {
 
 		switch (cause) {
 		case Processor.exceptionSyscall:
-			int result = handleSyscall(processor.readRegister(Processor.regV0),
+			UserKernel.checkpointIfDue(this);
+
+			int syscall = processor.readRegister(Processor.regV0);
+			long startTicks = Machine.timer().getTime();
+			long startNanos = System.nanoTime();
+			Machine.stats().syscallStarted(syscall);
+			if (EventTrace.enabled)
+				EventTrace.record(EventTrace.eventSyscallBegin, syscall,
+						processor.readRegister(Processor.regA0));
+
+			int result = handleSyscall(syscall,
 					processor.readRegister(Processor.regA0),
 					processor.readRegister(Processor.regA1),
 					processor.readRegister(Processor.regA2),
 					processor.readRegister(Processor.regA3));
+
+			Machine.stats().syscallReturned(syscall,
+					Machine.timer().getTime() - startTicks,
+					System.nanoTime() - startNanos,
+					(syscall == syscallRead || syscall == syscallWrite)
+							&& result > 0 ? result : 0);
+			if (EventTrace.enabled)
+				EventTrace.record(EventTrace.eventSyscallEnd, syscall, result);
 			processor.writeRegister(Processor.regV0, result);
 			processor.advancePC();
 			break;
@@ -935,7 +1176,15 @@ public class UserProcess {
 						UserKernel.freeListLock.acquire();
 						int ppn = UserKernel.allocatePage();
 						UserKernel.freeListLock.release();
-						section.loadPage(i, ppn);
+						int previousPPN = pageTable[vpn].ppn;
+						if (previousPPN == -1 || readOnly) {
+							section.loadPage(i, ppn);
+							VMKernel.recordFault(this, vpn, PageFaultTrace.faultCOFF, null, null);
+						} else {
+							loadSwappedPage(previousPPN, ppn);
+							VMKernel.recordFault(this, vpn, previousPPN == VMKernel.zeroPage ? PageFaultTrace.faultZeroFill
+									: PageFaultTrace.faultSwapIn, null, null);
+						}
 						
 						// Link Physical Frame with process and page table entry
 						VMKernel.IPTLock.acquire();
@@ -962,20 +1211,14 @@ public class UserProcess {
 						
 						TranslationEntry victim = VMKernel.findVictim();
 						int victimPPN = victim.ppn;
+						UserProcess victimProcess = VMKernel.getVictimProcess();
 						if (victim.dirty && (!victim.readOnly)) {
-							// read from VM
-							byte[] data = VMKernel.getVictimData();
-							
-							// Invaild victim and change ppn to spn	
-							VMKernel.freeSwapPagesLock.acquire();
-							int spn = VMKernel.allocateSPN();
-							System.out.println("The SPN is:" + spn);
-							VMKernel.freeSwapPagesLock.release();
-							victim.ppn = spn;
-							
-							// Write to file
-							VMKernel.writeSwapFile(spn * Processor.pageSize, data);
+							// Invaild victim and change ppn to spn (or zero page)
+							victim.ppn = VMKernel.swapOut(victimPPN);
 							victim.valid = false;
+						} else {
+							// nothing to swap; the page will be reloaded from the COFF
+							victim.ppn = -1;
 						}
 						victim.valid = false;
 						VMKernel.IPTLock.release();
@@ -986,23 +1229,23 @@ public class UserProcess {
 					
 						// Update IPT
 						VMKernel.IPTLock.acquire();
-						VMKernel.updateIPTProcess(this, victimPPN);
+						VMKernel.addPageFrame(this, pageTable[vpn], victimPPN);
 						
 						// load
 						if (previousPPN == -1 || pageTable[vpn].valid || readOnly) {
 							section.loadPage(i, pageTable[vpn].ppn);
 							pageTable[vpn].readOnly = readOnly;
 							pageTable[vpn].valid = true;
+							VMKernel.recordFault(this, vpn, PageFaultTrace.faultCOFF, victim, victimProcess);
 						} else {
-							// load from file
-							byte[] data = new byte[Processor.pageSize];
-							VMKernel.readSwapFile(pageTable[vpn].ppn * Processor.pageSize, data);
+							// load from swap straight into the frame
+							VMKernel.swapIn(previousPPN, victimPPN);
 							pageTable[vpn].valid = true;
-							writeVirtualMemory(vpn * Processor.pageSize, data);							
-							//pageTable[vpn].dirty = false;
+							pageTable[vpn].dirty = true;
+							VMKernel.recordFault(this, vpn, previousPPN == VMKernel.zeroPage ? PageFaultTrace.faultZeroFill
+									: PageFaultTrace.faultSwapIn, victim, victimProcess);
 						}
 						
-						VMKernel.updateIPTEntry(pageTable[vpn], victimPPN);
 						VMKernel.IPTLock.release();
 					}
 				}
@@ -1014,6 +1257,8 @@ public class UserProcess {
 				UserKernel.freeListLock.acquire();
 				int ppn = UserKernel.allocatePage();
 				UserKernel.freeListLock.release();
+				int previousPPN = pageTable[index].ppn;
+				loadSwappedPage(previousPPN, ppn);
 				
 				VMKernel.IPTLock.acquire();
 				VMKernel.addPageFrame(this, pageTable[index], ppn);
@@ -1022,6 +1267,9 @@ public class UserProcess {
 				pageTable[index].valid = true;
 				pageTable[index].ppn = ppn;
 				pageTable[index].used = true;
+				
+				VMKernel.recordFault(this, index, previousPPN < 0 ? PageFaultTrace.faultZeroFill
+						: PageFaultTrace.faultSwapIn, null, null);
 			} else {
 
 				VMKernel.IPTLock.acquire();
@@ -1037,48 +1285,61 @@ public class UserProcess {
 				VMKernel.conditionLock.release();
 				
 				TranslationEntry victim = VMKernel.findVictim();
+				UserProcess victimProcess = VMKernel.getVictimProcess();
 				int victimPPN = victim.ppn;
 				int vpn = index;
 				if (victim.dirty) {
-					// read from VM
-					byte[] data = VMKernel.getVictimData();
-					
-					// Invaild victim and change ppn to spn	
-					VMKernel.freeSwapPagesLock.acquire();
-					int spn = VMKernel.allocateSPN();
-					VMKernel.freeSwapPagesLock.release();
-					victim.ppn = spn;
-					
-					// Write to file
-					VMKernel.writeSwapFile(spn * Processor.pageSize, data);
+					// Invaild victim and change ppn to spn (or zero page)
+					victim.ppn = VMKernel.swapOut(victimPPN);
 					victim.valid = false;
+				} else {
+					// nothing to swap; the page will be zero-filled again
+					victim.ppn = -1;
 				}
 				victim.valid = false;
 				VMKernel.IPTLock.release();
 				// Get PPN from victim
+				int previousPPN = pageTable[vpn].ppn;
 				pageTable[vpn].ppn = victimPPN;
 				pageTable[vpn].used = true;
 				
+				VMKernel.recordFault(this, vpn, previousPPN < 0 ? PageFaultTrace.faultZeroFill
+						: PageFaultTrace.faultSwapIn, victim, victimProcess);
+				
 				// Update IPT
 				VMKernel.IPTLock.acquire();
-				VMKernel.updateIPTProcess(this, victimPPN);				
+				VMKernel.addPageFrame(this, pageTable[vpn], victimPPN);
 				
 				// load
 				if (!pageTable[vpn].valid) {
-					// load from file
-					byte[] data = new byte[Processor.pageSize];
-					VMKernel.readSwapFile(pageTable[vpn].ppn * Processor.pageSize, data);
+					// load from swap straight into the frame
+					loadSwappedPage(previousPPN, victimPPN);
 					pageTable[vpn].valid = true;
-					writeVirtualMemory(vpn * Processor.pageSize, data);
-					//pageTable[vpn].dirty = false;
+					pageTable[vpn].dirty = true;
 					pageTable[vpn].readOnly = false;
 				}
-				VMKernel.updateIPTEntry(pageTable[vpn], victimPPN);
 				VMKernel.IPTLock.release();
 			}
 		}
 	}
 	
+	/**
+	 * Fill a newly allocated frame for a page that is not loaded from the
+	 * COFF: restore it from swap if it was swapped out, or zero it otherwise.
+	 * 
+	 * @param previousPPN the page table entry's ppn while it was invalid.
+	 * @param ppn the frame to fill.
+	 */
+	private void loadSwappedPage(int previousPPN, int ppn) {
+		if (previousPPN != -1) {
+			VMKernel.swapIn(previousPPN, ppn);
+		}
+		else {
+			Machine.processor().getPhysicalMemory().fill(
+					ppn * Processor.pageSize, Processor.pageSize, (byte) 0);
+		}
+	}
+	
 	/** The program being run by this process. */
 	protected Coff coff;
 
@@ -1107,6 +1368,18 @@ public class UserProcess {
 
 	private int argc, argv;
 
+	/** The name of the program loaded into this process. */
+	private String programName;
+
+	/** Registers to start with instead of the initial ones, after restore. */
+	private int[] restoredRegisters = null;
+
+	private static final int checkpointMagic = 0x4E434B50; // "NCKP"
+
+	private static final int checkpointVersion = 3;
+
+	private static final byte pageUntouched = 0, pageZero = 1, pageSaved = 2;
+
 	private static final int pageSize = Processor.pageSize;
 	
 	private int clockPosition;
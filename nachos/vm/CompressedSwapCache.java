@@ -0,0 +1,166 @@
+package nachos.vm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import nachos.machine.*;
+
+/**
+ * A compressed, in-memory tier in front of the swap file. Evicted pages are
+ * compressed and kept here, keyed by their swap page number, until the cache
+ * runs out of room; only then does eviction fall through to the swap file.
+ *
+ * <p>
+ * Pages filled with a single repeated byte (most often zero) are recognized
+ * and stored as that byte alone. Other pages are deflated; pages that do not
+ * compress to at most <tt>maxCompressedSize</tt> bytes are not worth keeping
+ * and go to the swap file.
+ *
+ * <p>
+ * A page stays here until its swap page is freed with <tt>invalidate()</tt>,
+ * since a swap page may be shared by several page table entries.
+ */
+public class CompressedSwapCache {
+	/**
+	 * Allocate a new compressed swap cache.
+	 *
+	 * @param capacity the maximum number of compressed bytes to hold.
+	 */
+	public CompressedSwapCache(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		this.capacity = capacity;
+		entries = new HashMap<Integer, byte[]>();
+		deflater = new Deflater(Deflater.BEST_SPEED);
+		inflater = new Inflater();
+		scratch = new byte[pageSize];
+	}
+
+	/**
+	 * Try to keep the specified page in this cache.
+	 *
+	 * @param spn the swap page number the page is being evicted to.
+	 * @param page the array holding the page.
+	 * @param offset the offset of the page in <i>page</i>.
+	 * @return <tt>true</tt> if the page was stored, <tt>false</tt> if it must
+	 * be written to the swap file instead.
+	 */
+	public boolean store(int spn, byte[] page, int offset) {
+		Lib.assertTrue(offset >= 0 && offset + pageSize <= page.length);
+
+		invalidate(spn);
+
+		byte[] data;
+		if (Lib.bytesFilled(page, offset, pageSize, page[offset])) {
+			data = new byte[] { page[offset] };
+		}
+		else {
+			deflater.reset();
+			deflater.setInput(page, offset, pageSize);
+			deflater.finish();
+			int length = deflater.deflate(scratch, 0, maxCompressedSize + 1);
+
+			if (!deflater.finished() || length > maxCompressedSize) {
+				Lib.debug(dbgVM, "\tspn " + spn + " is incompressible");
+				Machine.stats().numCompressedOverflows++;
+				return false;
+			}
+
+			data = new byte[length];
+			System.arraycopy(scratch, 0, data, 0, length);
+		}
+
+		if (used + data.length > capacity) {
+			Lib.debug(dbgVM, "\tcompressed swap full, spn " + spn
+					+ " goes to swap");
+			Machine.stats().numCompressedOverflows++;
+			return false;
+		}
+
+		entries.put(spn, data);
+		used += data.length;
+
+		Stats stats = Machine.stats();
+		stats.numCompressedStores++;
+		stats.compressedBytesIn += pageSize;
+		stats.compressedBytesStored += data.length;
+
+		return true;
+	}
+
+	/**
+	 * Restore the specified page from this cache, if it is here. The caller
+	 * counts the load, since not every read brings a page back in.
+	 *
+	 * @param spn the swap page number to load.
+	 * @param page the array to restore the page into.
+	 * @param offset the offset in <i>page</i> to restore the page to.
+	 * @return <tt>true</tt> if the page was restored, <tt>false</tt> if it
+	 * must be read from the swap file.
+	 */
+	public boolean load(int spn, byte[] page, int offset) {
+		Lib.assertTrue(offset >= 0 && offset + pageSize <= page.length);
+
+		byte[] data = entries.get(spn);
+		if (data == null)
+			return false;
+
+		if (data.length == 1) {
+			Arrays.fill(page, offset, offset + pageSize, data[0]);
+		}
+		else {
+			inflater.reset();
+			inflater.setInput(data);
+			try {
+				Lib.assertTrue(inflater.inflate(page, offset, pageSize) == pageSize);
+			}
+			catch (DataFormatException e) {
+				Lib.assertNotReached("corrupt compressed page " + spn);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Drop any copy of the specified swap page held by this cache.
+	 *
+	 * @param spn the swap page number being freed or overwritten.
+	 */
+	public void invalidate(int spn) {
+		byte[] data = entries.remove(spn);
+		if (data != null)
+			used -= data.length;
+	}
+
+	/**
+	 * Return the number of compressed bytes currently held.
+	 *
+	 * @return the number of bytes in use.
+	 */
+	public int getUsed() {
+		return used;
+	}
+
+	/** Pages that compress to more than this many bytes are not kept. */
+	public static final int maxCompressedSize = Processor.pageSize * 3 / 4;
+
+	private static final int pageSize = Processor.pageSize;
+
+	private int capacity;
+
+	private int used = 0;
+
+	private HashMap<Integer, byte[]> entries;
+
+	private Deflater deflater;
+
+	private Inflater inflater;
+
+	private byte[] scratch;
+
+	private static final char dbgVM = 'v';
+}
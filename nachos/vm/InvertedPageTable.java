@@ -0,0 +1,316 @@
+package nachos.vm;
+
+import java.util.HashMap;
+
+import nachos.machine.*;
+import nachos.userprog.*;
+
+/**
+ * A hashed inverted page table. There is one frame record per physical page,
+ * indexed by ppn, recording which process and page table entry currently
+ * occupy it.
+ *
+ * <p>
+ * Frames are also chained two other ways, so that no operation has to scan
+ * the whole table:
+ * <ul>
+ * <li>a hash anchor table maps <i>(pid, vpn)</i> to the first frame on its
+ * hash chain, giving constant-time reverse lookup for TLB refill and page
+ * sharing;
+ * <li>each process has a doubly-linked list of the frames it owns, so a
+ * process's frames can be released at exit in time proportional to its
+ * resident set.
+ * </ul>
+ *
+ * <p>
+ * This class does no locking of its own; callers that change it hold
+ * <tt>VMKernel.IPTLock</tt>. Lookups never block, so they need no lock.
+ */
+public class InvertedPageTable {
+	/**
+	 * Allocate a new inverted page table.
+	 *
+	 * @param numPhysPages the number of physical pages to track.
+	 */
+	public InvertedPageTable(int numPhysPages) {
+		frames = new Frame[numPhysPages];
+		for (int ppn = 0; ppn < numPhysPages; ppn++)
+			frames[ppn] = new Frame();
+
+		int buckets = 1;
+		while (buckets < numPhysPages)
+			buckets <<= 1;
+		hashAnchor = new int[buckets];
+		for (int i = 0; i < buckets; i++)
+			hashAnchor[i] = -1;
+
+		processHeads = new HashMap<Integer, Integer>();
+	}
+
+	/**
+	 * Record that the specified frame now holds a page of the specified
+	 * process. Any previous occupant of the frame is removed first.
+	 *
+	 * @param ppn the physical page.
+	 * @param process the process that owns the page.
+	 * @param entry the page table entry mapping the page.
+	 */
+	public void insert(int ppn, UserProcess process, TranslationEntry entry) {
+		remove(ppn);
+
+		Frame frame = frames[ppn];
+		frame.process = process;
+		frame.entry = entry;
+		frame.pid = process.getProcessId();
+		frame.vpn = entry.vpn;
+
+		int bucket = hash(frame.pid, frame.vpn);
+		frame.hashNext = hashAnchor[bucket];
+		hashAnchor[bucket] = ppn;
+
+		Integer head = processHeads.get(frame.pid);
+		frame.processPrev = -1;
+		frame.processNext = (head == null) ? -1 : head.intValue();
+		if (head != null)
+			frames[head.intValue()].processPrev = ppn;
+		processHeads.put(frame.pid, ppn);
+	}
+
+	/**
+	 * Mark the specified frame as free.
+	 *
+	 * @param ppn the physical page.
+	 */
+	public void remove(int ppn) {
+		Frame frame = frames[ppn];
+		if (frame.process == null)
+			return;
+
+		// unlink from the hash chain
+		int bucket = hash(frame.pid, frame.vpn);
+		if (hashAnchor[bucket] == ppn) {
+			hashAnchor[bucket] = frame.hashNext;
+		}
+		else {
+			int prev = hashAnchor[bucket];
+			while (frames[prev].hashNext != ppn)
+				prev = frames[prev].hashNext;
+			frames[prev].hashNext = frame.hashNext;
+		}
+
+		// unlink from the process's frame list
+		if (frame.processPrev != -1)
+			frames[frame.processPrev].processNext = frame.processNext;
+		else if (frame.processNext != -1)
+			processHeads.put(frame.pid, frame.processNext);
+		else
+			processHeads.remove(frame.pid);
+		if (frame.processNext != -1)
+			frames[frame.processNext].processPrev = frame.processPrev;
+
+		if (frame.pinned)
+			numPinned--;
+
+		frame.process = null;
+		frame.entry = null;
+		frame.pinned = false;
+		frame.hashNext = frame.processPrev = frame.processNext = -1;
+	}
+
+	/**
+	 * Find the frame holding the specified page.
+	 *
+	 * @param pid the process ID.
+	 * @param vpn the virtual page number.
+	 * @return the ppn of the frame holding the page, or -1 if the page is not
+	 * resident.
+	 */
+	public int lookup(int pid, int vpn) {
+		for (int ppn = hashAnchor[hash(pid, vpn)]; ppn != -1; ppn = frames[ppn].hashNext) {
+			if (frames[ppn].pid == pid && frames[ppn].vpn == vpn)
+				return ppn;
+		}
+		return -1;
+	}
+
+	/**
+	 * Remove every frame owned by the specified process.
+	 *
+	 * @param pid the process ID.
+	 * @return the ppns that were freed.
+	 */
+	public int[] removeProcess(int pid) {
+		int count = 0;
+		Integer head = processHeads.get(pid);
+		for (int ppn = (head == null) ? -1 : head.intValue(); ppn != -1; ppn = frames[ppn].processNext)
+			count++;
+
+		int[] freed = new int[count];
+		for (int i = 0; i < count; i++) {
+			int ppn = processHeads.get(pid);
+			freed[i] = ppn;
+			remove(ppn);
+		}
+		return freed;
+	}
+
+	/**
+	 * Return the process occupying the specified frame.
+	 *
+	 * @param ppn the physical page.
+	 * @return the owning process, or <tt>null</tt> if the frame is free.
+	 */
+	public UserProcess getProcess(int ppn) {
+		return frames[ppn].process;
+	}
+
+	/**
+	 * Return the page table entry mapping the specified frame.
+	 *
+	 * @param ppn the physical page.
+	 * @return the page table entry, or <tt>null</tt> if the frame is free.
+	 */
+	public TranslationEntry getEntry(int ppn) {
+		return frames[ppn].entry;
+	}
+
+	/**
+	 * Pin or unpin the specified frame. Pinned frames are never chosen as
+	 * eviction victims.
+	 *
+	 * @param ppn the physical page.
+	 * @param pinned <tt>true</tt> to pin the frame.
+	 */
+	public void setPinned(int ppn, boolean pinned) {
+		Frame frame = frames[ppn];
+		if (frame.pinned == pinned)
+			return;
+
+		frame.pinned = pinned;
+		numPinned += pinned ? 1 : -1;
+	}
+
+	/**
+	 * Test whether the specified frame is pinned.
+	 *
+	 * @param ppn the physical page.
+	 * @return <tt>true</tt> if the frame is pinned.
+	 */
+	public boolean isPinned(int ppn) {
+		return frames[ppn].pinned;
+	}
+
+	/**
+	 * Test whether every frame is pinned, in which case no victim can be
+	 * found.
+	 *
+	 * @return <tt>true</tt> if all frames are pinned.
+	 */
+	public boolean allPinned() {
+		return numPinned == frames.length;
+	}
+
+	/**
+	 * Return the number of physical pages tracked by this table.
+	 *
+	 * @return the number of frames.
+	 */
+	public int getNumFrames() {
+		return frames.length;
+	}
+
+	/**
+	 * Test the hash chains and process lists of a small table, with pages
+	 * chosen to collide in one bucket so that removals from the head, middle
+	 * and tail of a chain are all exercised.
+	 *
+	 * @param first a process to own pages.
+	 * @param second another process, with a different ID.
+	 */
+	static void selfTest(UserProcess first, UserProcess second) {
+		InvertedPageTable table = new InvertedPageTable(4);
+		int pid = first.getProcessId();
+		int bucket = table.hash(pid, 0);
+
+		// three pages of the first process and one of the second, all in
+		// the same bucket
+		int[] vpns = new int[3];
+		for (int vpn = 0, found = 0; found < vpns.length; vpn++) {
+			if (table.hash(pid, vpn) == bucket)
+				vpns[found++] = vpn;
+		}
+		int otherVPN = 0;
+		while (table.hash(second.getProcessId(), otherVPN) != bucket)
+			otherVPN++;
+
+		for (int ppn = 0; ppn < vpns.length; ppn++)
+			table.insert(ppn, first, new TranslationEntry(vpns[ppn], ppn,
+					true, false, false, false));
+		for (int ppn = 0; ppn < vpns.length; ppn++)
+			Lib.assertTrue(table.lookup(pid, vpns[ppn]) == ppn);
+
+		// the chain is 2, 1, 0: remove from the middle, then the head
+		table.remove(1);
+		Lib.assertTrue(table.lookup(pid, vpns[1]) == -1);
+		Lib.assertTrue(table.lookup(pid, vpns[0]) == 0
+				&& table.lookup(pid, vpns[2]) == 2);
+		table.remove(2);
+		Lib.assertTrue(table.lookup(pid, vpns[2]) == -1
+				&& table.lookup(pid, vpns[0]) == 0);
+
+		// the same page number in another process is a different page
+		table.insert(1, second, new TranslationEntry(otherVPN, 1, true,
+				false, false, false));
+		table.insert(2, first, new TranslationEntry(vpns[2], 2, true, false,
+				false, false));
+		Lib.assertTrue(table.lookup(second.getProcessId(), otherVPN) == 1);
+		if (otherVPN != vpns[0])
+			Lib.assertTrue(table.lookup(second.getProcessId(), vpns[0]) == -1);
+
+		// inserting into an occupied frame replaces its page
+		table.insert(1, first, new TranslationEntry(vpns[1], 1, true, false,
+				false, false));
+		Lib.assertTrue(table.lookup(second.getProcessId(), otherVPN) == -1
+				&& table.lookup(pid, vpns[1]) == 1);
+		table.insert(3, second, new TranslationEntry(otherVPN, 3, true,
+				false, false, false));
+
+		// removing a process frees its frames, from the tail of the chain
+		// too, and leaves the other process's page on it
+		table.setPinned(0, true);
+		int[] freed = table.removeProcess(pid);
+		Lib.assertTrue(freed.length == 3);
+		for (int ppn = 0; ppn < vpns.length; ppn++) {
+			Lib.assertTrue(table.getProcess(ppn) == null);
+			Lib.assertTrue(table.lookup(pid, vpns[ppn]) == -1);
+		}
+		Lib.assertTrue(table.lookup(second.getProcessId(), otherVPN) == 3);
+		Lib.assertTrue(table.numPinned == 0 && table.removeProcess(pid).length == 0);
+	}
+
+	private int hash(int pid, int vpn) {
+		int h = pid * 0x9E3779B1 + vpn;
+		h ^= h >>> 16;
+		return h & (hashAnchor.length - 1);
+	}
+
+	private static class Frame {
+		UserProcess process = null;
+		TranslationEntry entry = null;
+		boolean pinned = false;
+
+		/** The key this frame is hashed under, fixed while it is resident. */
+		int pid, vpn;
+
+		int hashNext = -1;
+		int processPrev = -1, processNext = -1;
+	}
+
+	private Frame[] frames;
+
+	private int[] hashAnchor;
+
+	private HashMap<Integer, Integer> processHeads;
+
+	private int numPinned = 0;
+}
@@ -0,0 +1,146 @@
+package nachos.vm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Records every page fault handled by the VM kernel to a compact binary trace
+ * file, so that replacement policies and memory sizes can be compared offline
+ * with <tt>ReplacementSimulator</tt> instead of rerunning the whole machine.
+ *
+ * <p>
+ * The trace starts with the 4-byte magic <tt>NPFT</tt> and a 4-byte version,
+ * followed by fixed-size big-endian records:
+ *
+ * <pre>
+ * long tick, int pid, int vpn, byte kind, int victimPid, int victimVPN
+ * </pre>
+ *
+ * <p>
+ * <tt>victimPid</tt> and <tt>victimVPN</tt> are -1 when the fault was
+ * satisfied from a free frame. Records are buffered in memory and written to
+ * the kernel file system by <tt>close()</tt>, so recording does not disturb
+ * simulated time while the workload is running.
+ *
+ * @see nachos.vm.ReplacementSimulator
+ */
+public class PageFaultTrace {
+	/**
+	 * Allocate a new page fault trace that will be saved to the specified
+	 * file.
+	 *
+	 * @param fileName the name of the trace file in the kernel file system.
+	 */
+	public PageFaultTrace(String fileName) {
+		this.fileName = fileName;
+
+		buffer = new ByteArrayOutputStream();
+		out = new DataOutputStream(buffer);
+
+		try {
+			out.writeInt(magic);
+			out.writeInt(version);
+		}
+		catch (IOException e) {
+			Lib.assertNotReached();
+		}
+	}
+
+	/**
+	 * Append a fault record to this trace.
+	 *
+	 * @param tick the simulated time at which the fault was handled.
+	 * @param pid the process that faulted.
+	 * @param vpn the virtual page that faulted.
+	 * @param kind how the fault was satisfied; one of the <tt>fault*</tt>
+	 * constants.
+	 * @param victimPid the process owning the evicted page, or -1.
+	 * @param victimVPN the evicted virtual page, or -1.
+	 */
+	public void record(long tick, int pid, int vpn, int kind, int victimPid,
+			int victimVPN) {
+		Lib.assertTrue(kind >= 0 && kind < kindNames.length);
+
+		try {
+			out.writeLong(tick);
+			out.writeInt(pid);
+			out.writeInt(vpn);
+			out.writeByte(kind);
+			out.writeInt(victimPid);
+			out.writeInt(victimVPN);
+		}
+		catch (IOException e) {
+			Lib.assertNotReached();
+		}
+
+		numRecords++;
+	}
+
+	/**
+	 * Return the number of records in this trace.
+	 *
+	 * @return the number of faults recorded so far.
+	 */
+	public int getNumRecords() {
+		return numRecords;
+	}
+
+	/**
+	 * Write this trace to its file. Further records are discarded.
+	 */
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+
+		OpenFile file = ThreadedKernel.fileSystem.open(fileName, true);
+		if (file == null) {
+			Lib.debug(dbgVM, "PageFaultTrace: could not create " + fileName);
+			return;
+		}
+
+		byte[] data = buffer.toByteArray();
+		file.write(0, data, 0, data.length);
+		file.close();
+
+		Lib.debug(dbgVM, "PageFaultTrace: wrote " + numRecords
+				+ " faults to " + fileName);
+	}
+
+	/** The fault was satisfied by loading a page from the COFF file. */
+	public static final int faultCOFF = 0;
+
+	/** The fault was satisfied by zero-filling a stack or argument page. */
+	public static final int faultZeroFill = 1;
+
+	/** The fault was satisfied by reading a page back from swap. */
+	public static final int faultSwapIn = 2;
+
+	/** The names of the fault kinds. */
+	public static final String kindNames[] = { "coff", "zero", "swap" };
+
+	/** The first four bytes of every trace file, "NPFT". */
+	public static final int magic = 0x4E504654;
+
+	/** The format version written after the magic. */
+	public static final int version = 1;
+
+	/** The size of one fault record, in bytes. */
+	public static final int recordSize = 8 + 4 + 4 + 1 + 4 + 4;
+
+	private String fileName;
+
+	private ByteArrayOutputStream buffer;
+
+	private DataOutputStream out;
+
+	private int numRecords = 0;
+
+	private boolean closed = false;
+
+	private static final char dbgVM = 'v';
+}
@@ -0,0 +1,479 @@
+package nachos.vm;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.TreeMap;
+
+/**
+ * Replays a trace written by <tt>PageFaultTrace</tt> against several page
+ * replacement policies for a range of frame counts. This runs on the host,
+ * outside of the simulated machine:
+ *
+ * <pre>
+ * java nachos.vm.ReplacementSimulator [-w window] trace frames...
+ * </pre>
+ *
+ * <p>
+ * Each <i>frames</i> argument is either a single frame count or an inclusive
+ * range such as <tt>8-64</tt>. The <tt>-w</tt> switch sets the working set
+ * window used by WSClock, measured in references (default: twice the frame
+ * count).
+ *
+ * <p>
+ * The reference string is the sequence of faulting <i>(pid, vpn)</i> pairs in
+ * the trace. Hits in the traced run never reach the kernel and are missing
+ * from it, so the fault counts are approximate at every frame count, and
+ * undercount most at small ones, where pages the traced run hit on would
+ * have faulted. They are best used to compare policies with each other;
+ * record with a small <tt>-m</tt> to get the most useful traces.
+ */
+public class ReplacementSimulator {
+	/**
+	 * Allocate a new simulator over the specified reference string.
+	 *
+	 * @param refs the page references, as returned by <tt>pageKey()</tt>.
+	 */
+	public ReplacementSimulator(long[] refs) {
+		this.refs = refs;
+
+		// for OPT, precompute the index of the next use of every reference
+		nextUse = new int[refs.length];
+		HashMap<Long, Integer> last = new HashMap<Long, Integer>();
+		for (int i = refs.length - 1; i >= 0; i--) {
+			Integer next = last.get(refs[i]);
+			nextUse[i] = (next == null) ? Integer.MAX_VALUE : next.intValue();
+			last.put(refs[i], i);
+		}
+	}
+
+	/**
+	 * Combine a process ID and a virtual page number into a single key.
+	 *
+	 * @param pid the process ID.
+	 * @param vpn the virtual page number.
+	 * @return a key identifying the page.
+	 */
+	public static long pageKey(int pid, int vpn) {
+		return ((long) pid << 32) | (vpn & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Count the faults the named policy takes with the specified number of
+	 * frames.
+	 *
+	 * @param policy one of the names in <tt>policyNames</tt>.
+	 * @param frames the number of physical frames.
+	 * @param window the WSClock working set window, in references.
+	 * @return the number of faults.
+	 */
+	public int simulate(String policy, int frames, int window) {
+		Policy p;
+		if (policy.equals("OPT"))
+			p = new Optimal(frames);
+		else if (policy.equals("LRU"))
+			p = new LeastRecentlyUsed(frames);
+		else if (policy.equals("Clock"))
+			p = new Clock(frames);
+		else if (policy.equals("WSClock"))
+			p = new WorkingSetClock(frames, window);
+		else if (policy.equals("ARC"))
+			p = new AdaptiveReplacementCache(frames);
+		else
+			throw new IllegalArgumentException("unknown policy " + policy);
+
+		int faults = 0;
+		for (int i = 0; i < refs.length; i++) {
+			if (p.reference(refs[i], i))
+				faults++;
+		}
+		return faults;
+	}
+
+	/** The policies understood by <tt>simulate()</tt>. */
+	public static final String policyNames[] = { "OPT", "LRU", "Clock",
+			"WSClock", "ARC" };
+
+	/**
+	 * Simulator entry point.
+	 *
+	 * @param args the command line arguments.
+	 */
+	public static void main(String[] args) throws IOException {
+		int window = -1;
+		int i = 0;
+
+		if (i < args.length && args[i].equals("-w")) {
+			window = Integer.parseInt(args[i + 1]);
+			i += 2;
+		}
+
+		if (args.length - i < 2) {
+			System.err.println("usage: ReplacementSimulator [-w window] "
+					+ "trace frames...");
+			System.exit(1);
+		}
+
+		String traceName = args[i++];
+
+		int[] kindCounts = new int[PageFaultTrace.kindNames.length];
+		long[] refs = readTrace(traceName, kindCounts);
+
+		System.out.print(traceName + ": " + refs.length + " faults");
+		for (int k = 0; k < kindCounts.length; k++)
+			System.out.print(", " + PageFaultTrace.kindNames[k] + " "
+					+ kindCounts[k]);
+		System.out.println();
+
+		ReplacementSimulator sim = new ReplacementSimulator(refs);
+
+		System.out.print("frames");
+		for (int p = 0; p < policyNames.length; p++)
+			System.out.print("\t" + policyNames[p]);
+		System.out.println();
+
+		for (; i < args.length; i++) {
+			int dash = args[i].indexOf('-');
+			int first, last;
+			if (dash > 0) {
+				first = Integer.parseInt(args[i].substring(0, dash));
+				last = Integer.parseInt(args[i].substring(dash + 1));
+			}
+			else {
+				first = last = Integer.parseInt(args[i]);
+			}
+
+			for (int frames = first; frames <= last; frames++) {
+				System.out.print(frames);
+				for (int p = 0; p < policyNames.length; p++)
+					System.out.print("\t"
+							+ sim.simulate(policyNames[p], frames,
+									window > 0 ? window : 2 * frames));
+				System.out.println();
+			}
+		}
+	}
+
+	/**
+	 * Read a trace file into a reference string.
+	 *
+	 * @param fileName the host path of the trace file.
+	 * @param kindCounts if not <tt>null</tt>, incremented for each fault
+	 * kind.
+	 * @return the page keys of every fault, in order.
+	 */
+	public static long[] readTrace(String fileName, int[] kindCounts)
+			throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(fileName)));
+
+		try {
+			if (in.readInt() != PageFaultTrace.magic)
+				throw new IOException(fileName + ": not a page fault trace");
+			if (in.readInt() != PageFaultTrace.version)
+				throw new IOException(fileName + ": unsupported version");
+
+			long[] refs = new long[1024];
+			int n = 0;
+
+			while (true) {
+				try {
+					in.readLong(); // tick
+				}
+				catch (EOFException e) {
+					break;
+				}
+				int pid = in.readInt();
+				int vpn = in.readInt();
+				int kind = in.readByte();
+				in.readInt(); // victim pid
+				in.readInt(); // victim vpn
+
+				if (kindCounts != null && kind >= 0 && kind < kindCounts.length)
+					kindCounts[kind]++;
+
+				if (n == refs.length) {
+					long[] bigger = new long[n * 2];
+					System.arraycopy(refs, 0, bigger, 0, n);
+					refs = bigger;
+				}
+				refs[n++] = pageKey(pid, vpn);
+			}
+
+			long[] result = new long[n];
+			System.arraycopy(refs, 0, result, 0, n);
+			return result;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private abstract static class Policy {
+		Policy(int frames) {
+			this.frames = frames;
+		}
+
+		/**
+		 * Reference a page.
+		 *
+		 * @return <tt>true</tt> if the reference faulted.
+		 */
+		abstract boolean reference(long page, int time);
+
+		int frames;
+	}
+
+	private class Optimal extends Policy {
+		Optimal(int frames) {
+			super(frames);
+		}
+
+		boolean reference(long page, int time) {
+			// pages never used again get distinct keys past the end
+			int next = nextUse[time];
+			int key = (next == Integer.MAX_VALUE) ? refs.length + time : next;
+
+			Integer current = resident.remove(page);
+			if (current != null) {
+				byNextUse.remove(current);
+				resident.put(page, key);
+				byNextUse.put(key, page);
+				return false;
+			}
+
+			if (resident.size() == frames) {
+				Integer farthest = byNextUse.lastKey();
+				resident.remove(byNextUse.remove(farthest));
+			}
+			resident.put(page, key);
+			byNextUse.put(key, page);
+			return true;
+		}
+
+		private HashMap<Long, Integer> resident = new HashMap<Long, Integer>();
+
+		private TreeMap<Integer, Long> byNextUse = new TreeMap<Integer, Long>();
+	}
+
+	private static class LeastRecentlyUsed extends Policy {
+		LeastRecentlyUsed(int frames) {
+			super(frames);
+		}
+
+		boolean reference(long page, int time) {
+			if (resident.containsKey(page)) {
+				resident.get(page);
+				return false;
+			}
+
+			if (resident.size() == frames) {
+				Iterator<Long> it = resident.keySet().iterator();
+				it.next();
+				it.remove();
+			}
+			resident.put(page, Boolean.TRUE);
+			return true;
+		}
+
+		private LinkedHashMap<Long, Boolean> resident = new LinkedHashMap<Long, Boolean>(
+				16, 0.75f, true);
+	}
+
+	private static class Clock extends Policy {
+		Clock(int frames) {
+			super(frames);
+			pages = new long[frames];
+			used = new boolean[frames];
+		}
+
+		boolean reference(long page, int time) {
+			Integer frame = resident.get(page);
+			if (frame != null) {
+				used[frame.intValue()] = true;
+				return false;
+			}
+
+			int victim;
+			if (resident.size() < frames) {
+				victim = resident.size();
+			}
+			else {
+				while (used[hand]) {
+					used[hand] = false;
+					hand = (hand + 1) % frames;
+				}
+				victim = hand;
+				resident.remove(pages[victim]);
+				hand = (hand + 1) % frames;
+			}
+
+			pages[victim] = page;
+			used[victim] = true;
+			resident.put(page, victim);
+			return true;
+		}
+
+		private HashMap<Long, Integer> resident = new HashMap<Long, Integer>();
+
+		private long[] pages;
+
+		private boolean[] used;
+
+		private int hand = 0;
+	}
+
+	private static class WorkingSetClock extends Policy {
+		WorkingSetClock(int frames, int window) {
+			super(frames);
+			this.window = window;
+			pages = new long[frames];
+			used = new boolean[frames];
+			lastUse = new int[frames];
+		}
+
+		boolean reference(long page, int time) {
+			Integer frame = resident.get(page);
+			if (frame != null) {
+				used[frame.intValue()] = true;
+				lastUse[frame.intValue()] = time;
+				return false;
+			}
+
+			int victim;
+			if (resident.size() < frames) {
+				victim = resident.size();
+			}
+			else {
+				// one full sweep looking for a page outside the working set,
+				// falling back to the oldest page seen
+				victim = -1;
+				int oldest = hand;
+				for (int n = 0; n < frames; n++) {
+					if (used[hand]) {
+						used[hand] = false;
+						lastUse[hand] = time;
+					}
+					else if (time - lastUse[hand] > window) {
+						victim = hand;
+						break;
+					}
+					if (lastUse[hand] < lastUse[oldest])
+						oldest = hand;
+					hand = (hand + 1) % frames;
+				}
+				if (victim == -1)
+					victim = oldest;
+
+				resident.remove(pages[victim]);
+				hand = (victim + 1) % frames;
+			}
+
+			pages[victim] = page;
+			used[victim] = true;
+			lastUse[victim] = time;
+			resident.put(page, victim);
+			return true;
+		}
+
+		private int window;
+
+		private HashMap<Long, Integer> resident = new HashMap<Long, Integer>();
+
+		private long[] pages;
+
+		private boolean[] used;
+
+		private int[] lastUse;
+
+		private int hand = 0;
+	}
+
+	private static class AdaptiveReplacementCache extends Policy {
+		AdaptiveReplacementCache(int frames) {
+			super(frames);
+		}
+
+		boolean reference(long page, int time) {
+			// hit in T1 or T2: move to the MRU end of T2
+			if (t1.remove(page) || t2.remove(page)) {
+				t2.add(page);
+				return false;
+			}
+
+			// ghost hit in B1: favour recency
+			if (b1.contains(page)) {
+				p = Math.min(frames, p + Math.max(1, b2.size() / b1.size()));
+				replace(false);
+				b1.remove(page);
+				t2.add(page);
+				return true;
+			}
+
+			// ghost hit in B2: favour frequency
+			if (b2.contains(page)) {
+				p = Math.max(0, p - Math.max(1, b1.size() / b2.size()));
+				replace(true);
+				b2.remove(page);
+				t2.add(page);
+				return true;
+			}
+
+			// complete miss
+			if (t1.size() + b1.size() == frames) {
+				if (t1.size() < frames) {
+					removeFirst(b1);
+					replace(false);
+				}
+				else {
+					removeFirst(t1);
+				}
+			}
+			else if (t1.size() + t2.size() + b1.size() + b2.size() >= frames) {
+				if (t1.size() + t2.size() + b1.size() + b2.size() == 2 * frames)
+					removeFirst(b2);
+				replace(false);
+			}
+			t1.add(page);
+			return true;
+		}
+
+		private void replace(boolean inB2) {
+			if (t1.size() + t2.size() < frames)
+				return;
+
+			if (!t1.isEmpty()
+					&& (t1.size() > p || (inB2 && t1.size() == p) || t2.isEmpty()))
+				b1.add(removeFirst(t1));
+			else
+				b2.add(removeFirst(t2));
+		}
+
+		private static long removeFirst(LinkedHashSet<Long> set) {
+			Iterator<Long> it = set.iterator();
+			long first = it.next();
+			it.remove();
+			return first;
+		}
+
+		private int p = 0;
+
+		private LinkedHashSet<Long> t1 = new LinkedHashSet<Long>();
+
+		private LinkedHashSet<Long> t2 = new LinkedHashSet<Long>();
+
+		private LinkedHashSet<Long> b1 = new LinkedHashSet<Long>();
+
+		private LinkedHashSet<Long> b2 = new LinkedHashSet<Long>();
+	}
+
+	private long[] refs;
+
+	private int[] nextUse;
+}
@@ -1,5 +1,7 @@
 package nachos.vm;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import nachos.machine.*;
 import nachos.threads.*;
@@ -23,7 +25,7 @@ public class VMKernel extends UserKernel {
 	public void initialize(String[] args) {		
 		super.initialize(args);
 		int numPhysPages = Machine.processor().getNumPhysPages();
-		IPT = new PageFrame[numPhysPages]; // init IPT
+		IPT = new InvertedPageTable(numPhysPages); // init IPT
 		swapFile = this.fileSystem.open(swapFileName, true);
 		freeSwapPages = new LinkedList<Integer>();
 		swapCount = 0;
@@ -33,13 +35,241 @@ public class VMKernel extends UserKernel {
 		IPTLock = new Lock();
 		conditionLock = new Lock();
 		pinQueue = new Condition(conditionLock);
+
+		swapRefs = new HashMap<Integer, Integer>();
+		if (Config.getBoolean("VMKernel.dedupSwap", false)) {
+			swapHashes = new HashMap<ContentKey, Integer>();
+			swapContents = new HashMap<Integer, ContentKey>();
+		}
+
+		int compressedSwapBytes = Config.getInteger("VMKernel.compressedSwapBytes", 0);
+		if (compressedSwapBytes > 0)
+			swapCache = new CompressedSwapCache(compressedSwapBytes);
+
+		if (Machine.processor().hasTLB()) {
+			int numCores = Machine.processor().getNumCores();
+			int tlbSize = Machine.processor().getTLBSize();
+			tlbEntries = new TranslationEntry[numCores][tlbSize];
+			tlbHands = new int[numCores][tlbSize / Machine.processor().getTLBWays()];
+			asidOwners = new UserProcess[numCores][Config.getInteger("VMKernel.numASIDs", 64)];
+			tlbNRU = Config.getString("VMKernel.tlbReplacement", "nru").equals("nru");
+		}
+
+		String traceFileName = Machine.runFile(Config
+				.getString("VMKernel.faultTrace"));
+		if (traceFileName != null)
+			faultTrace = new PageFaultTrace(traceFileName);
 	}
 
 	/**
-	 * Test this kernel.
+	 * Test this kernel: the inverted page table, ASIDs and TLB shootdown, and
+	 * the swap dedup and compressed swap cache. Each test puts back what it
+	 * changes, so the user programs run afterwards see a fresh kernel.
 	 */
 	public void selfTest() {
 		super.selfTest();
+
+		// processes that only own pages and ASIDs in the tests
+		UserProcess first = new VMProcess();
+		UserProcess second = new VMProcess();
+		UserProcess third = new VMProcess();
+
+		InvertedPageTable.selfTest(first, second);
+		if (tlbEntries != null) {
+			UserProcess[][] owners = asidOwners;
+			// with two ASIDs, the first and third processes share one
+			asidOwners = new UserProcess[owners.length][2];
+			asidSelfTest(first, third);
+			tlbFrameSelfTest(first, second);
+			asidOwners = owners;
+			Machine.processor().setASID(0);
+		}
+		swapSelfTest();
+
+		UserKernel.ProcessIDLock.acquire();
+		UserKernel.releaseProcessIds(first.getProcessId());
+		UserKernel.ProcessIDLock.release();
+	}
+
+	/**
+	 * Test that an ASID given up by <tt>releaseAddressSpace()</tt> passes to
+	 * another process with none of the old owner's entries, and that
+	 * releasing a process that no longer owns an ASID leaves the new owner's
+	 * entries alone.
+	 */
+	private static void asidSelfTest(UserProcess first, UserProcess next) {
+		int core = Machine.processor().getCurrentCore();
+
+		switchAddressSpace(first);
+		int asid = Machine.processor().getASID();
+		refillTLB(new TranslationEntry(0, 0, true, false, false, false));
+		Lib.assertTrue(countTLBEntries(core, asid, -1) == 1);
+
+		releaseAddressSpace(first);
+		Lib.assertTrue(asidOwners[core][asid] == null
+				&& countTLBEntries(core, asid, -1) == 0);
+
+		switchAddressSpace(next);
+		Lib.assertTrue(Machine.processor().getASID() == asid
+				&& asidOwners[core][asid] == next);
+		Lib.assertTrue(countTLBEntries(core, asid, -1) == 0);
+		refillTLB(new TranslationEntry(0, 1, true, false, false, false));
+
+		releaseAddressSpace(first);
+		Lib.assertTrue(asidOwners[core][asid] == next
+				&& countTLBEntries(core, asid, 1) == 1);
+
+		releaseAddressSpace(next);
+		Lib.assertTrue(countTLBEntries(core, -1, -1) == 0);
+	}
+
+	/**
+	 * Test that evicting a frame cached in the TLB under two ASIDs shoots
+	 * down both entries, writing back the dirty bit of each first.
+	 */
+	private static void tlbFrameSelfTest(UserProcess first, UserProcess second) {
+		Processor processor = Machine.processor();
+		int core = processor.getCurrentCore();
+		int ppn = 0;
+		TranslationEntry firstEntry = new TranslationEntry(0, ppn, true, false,
+				false, false);
+		TranslationEntry secondEntry = new TranslationEntry(1, ppn, true,
+				false, false, false);
+
+		switchAddressSpace(first);
+		int firstASID = processor.getASID();
+		refillTLB(firstEntry);
+		switchAddressSpace(second);
+		refillTLB(secondEntry);
+		Lib.assertTrue(processor.getASID() != firstASID
+				&& countTLBEntries(core, -1, ppn) == 2);
+
+		// the first process stored to the page through its entry
+		for (int i = 0; i < tlbEntries[core].length; i++) {
+			TranslationEntry e = processor.readTLBEntry(core, i);
+			if (e.valid && processor.readTLBEntryASID(core, i) == firstASID) {
+				e.dirty = true;
+				processor.writeTLBEntry(core, i, e, firstASID);
+			}
+		}
+
+		invalidateTLBFrame(ppn);
+		Lib.assertTrue(countTLBEntries(core, -1, ppn) == 0);
+		Lib.assertTrue(firstEntry.dirty && !secondEntry.dirty);
+		for (int i = 0; i < tlbEntries[core].length; i++)
+			Lib.assertTrue(tlbEntries[core][i] == null);
+
+		releaseAddressSpace(first);
+		releaseAddressSpace(second);
+	}
+
+	/**
+	 * Count the valid entries in a core's TLB with the specified ASID and
+	 * ppn, where -1 matches any.
+	 */
+	private static int countTLBEntries(int core, int asid, int ppn) {
+		Processor processor = Machine.processor();
+		int count = 0;
+		for (int i = 0; i < tlbEntries[core].length; i++) {
+			TranslationEntry e = processor.readTLBEntry(core, i);
+			if (e.valid && (asid == -1 || processor.readTLBEntryASID(core, i) == asid)
+					&& (ppn == -1 || e.ppn == ppn))
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Test swapping pages out and in through frames 0 and 1: identical pages
+	 * share a swap page, and the comparison that proves them identical counts
+	 * no swap I/O; a freed swap page is no longer shared; and the compressed
+	 * swap cache keeps pages out of the swap file. Dedup and the cache are
+	 * turned on for the test whatever the configuration, and the swap
+	 * statistics are put back afterwards.
+	 */
+	private static void swapSelfTest() {
+		HashMap<ContentKey, Integer> hashes = swapHashes;
+		HashMap<Integer, ContentKey> contents = swapContents;
+		CompressedSwapCache cache = swapCache;
+		Stats stats = Machine.stats();
+		int swapReads = stats.numSwapReads, swapWrites = stats.numSwapWrites;
+		int compressedStores = stats.numCompressedStores;
+		int compressedLoads = stats.numCompressedLoads;
+		int compressedOverflows = stats.numCompressedOverflows;
+		int zeroPages = stats.numZeroPages, sharedPages = stats.numSharedPages;
+		long bytesIn = stats.compressedBytesIn;
+		long bytesStored = stats.compressedBytesStored;
+
+		PhysicalMemory memory = Machine.processor().getPhysicalMemory();
+		byte[] page = new byte[Processor.pageSize];
+		for (int i = 0; i < page.length; i++)
+			page[i] = (byte) (i * 7);
+
+		// dedup alone, then dedup with the cache
+		for (int pass = 0; pass < 2; pass++) {
+			swapHashes = new HashMap<ContentKey, Integer>();
+			swapContents = new HashMap<Integer, ContentKey>();
+			swapCache = (pass == 0) ? null
+					: new CompressedSwapCache(4 * Processor.pageSize);
+
+			int fileWrites = stats.numSwapWrites;
+			int fileReads = stats.numSwapReads;
+
+			memory.write(0, page, 0, page.length);
+			memory.write(Processor.pageSize, page, 0, page.length);
+			int writes = stats.numSwapWrites + stats.numCompressedStores;
+			int reads = stats.numSwapReads + stats.numCompressedLoads;
+			int spn = swapOut(0);
+			Lib.assertTrue(swapOut(1) == spn);
+			Lib.assertTrue(stats.numSwapWrites + stats.numCompressedStores == writes + 1
+					&& stats.numSwapReads + stats.numCompressedLoads == reads,
+					"swap dedup counted its comparison as swap I/O");
+
+			memory.write(Processor.pageSize, page, 0, page.length);
+			memory.fill(Processor.pageSize, 1, (byte) 1);
+			int different = swapOut(1);
+			Lib.assertTrue(different != spn && different >= 0);
+			memory.fill(Processor.pageSize, Processor.pageSize, (byte) 0);
+			Lib.assertTrue(swapOut(1) == zeroPage);
+
+			// both references must go before the swap page is freed
+			memory.fill(0, 2 * Processor.pageSize, (byte) 0);
+			byte[] restored = new byte[Processor.pageSize];
+			swapIn(spn, 0);
+			memory.read(0, restored, 0, restored.length);
+			Lib.assertTrue(Arrays.equals(restored, page));
+			Lib.assertTrue(swapHashes.size() == 2);
+			swapIn(spn, 1);
+			memory.read(Processor.pageSize, restored, 0, restored.length);
+			Lib.assertTrue(Arrays.equals(restored, page));
+			swapIn(different, 1);
+			Lib.assertTrue(swapHashes.isEmpty() && swapContents.isEmpty()
+					&& swapRefs.isEmpty());
+
+			if (swapCache != null) {
+				Lib.assertTrue(swapCache.getUsed() == 0);
+				Lib.assertTrue(stats.numSwapWrites == fileWrites
+						&& stats.numSwapReads == fileReads,
+						"the compressed swap cache used the swap file");
+			}
+		}
+
+		memory.fill(0, 2 * Processor.pageSize, (byte) 0);
+		freeSwapPages.clear();
+		swapCount = 0;
+
+		swapHashes = hashes;
+		swapContents = contents;
+		swapCache = cache;
+		stats.numSwapReads = swapReads;
+		stats.numSwapWrites = swapWrites;
+		stats.numCompressedStores = compressedStores;
+		stats.numCompressedLoads = compressedLoads;
+		stats.numCompressedOverflows = compressedOverflows;
+		stats.numZeroPages = zeroPages;
+		stats.numSharedPages = sharedPages;
+		stats.compressedBytesIn = bytesIn;
+		stats.compressedBytesStored = bytesStored;
 	}
 
 	/**
@@ -53,51 +283,283 @@ public class VMKernel extends UserKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		if (faultTrace != null)
+			faultTrace.close();
 		ThreadedKernel.fileSystem.remove(swapFileName);
 		super.terminate();
 	}
 	
+	/**
+	 * Record that a frame now holds the specified page, replacing whatever
+	 * page held it before. The caller must hold <tt>IPTLock</tt>.
+	 * 
+	 * @param process the process that owns the page.
+	 * @param entry the page table entry mapping the page.
+	 * @param ppn the frame.
+	 */
 	public static void addPageFrame(UserProcess process, TranslationEntry entry, int ppn) {
-		PageFrame frame = new PageFrame(process, entry);
-		IPT[ppn] = frame;
+		IPT.insert(ppn, process, entry);
+	}
+	
+	/**
+	 * Release every frame held by a process. The caller must hold
+	 * <tt>IPTLock</tt>.
+	 * 
+	 * @param process the exiting process.
+	 * @return the frames that were released.
+	 */
+	public static int[] removeProcessFrames(UserProcess process) {
+		return IPT.removeProcess(process.getProcessId());
+	}
+	
+	/**
+	 * Find the page table entry of a resident page of a process, through the
+	 * inverted page table's hash chains. A frame that is being evicted or
+	 * filled is not resident until its entry is valid again.
+	 * 
+	 * <p>
+	 * This needs no lock: it never blocks, so no other kernel thread can
+	 * change the table while it runs.
+	 * 
+	 * @param process the process.
+	 * @param vpn the virtual page number.
+	 * @return the page table entry, or <tt>null</tt> if the page is not
+	 * resident.
+	 */
+	public static TranslationEntry lookupPage(UserProcess process, int vpn) {
+		int ppn = IPT.lookup(process.getProcessId(), vpn);
+		if (ppn == -1)
+			return null;
+
+		TranslationEntry entry = IPT.getEntry(ppn);
+		return (entry.valid && entry.ppn == ppn) ? entry : null;
 	}
 	
 	public static boolean checkPin() {
-		int pinned = 0;
-		for (int i = 0; i < IPT.length; i++) {
-			if (IPT[clockPosition].entry.valid && IPT[clockPosition].pinned) {
-				pinned++;
-			}
-		}
-		return (pinned == IPT.length);
+		return IPT.allPinned();
 	}
 	
 	public static TranslationEntry findVictim() {
-		while(IPT[clockPosition].entry.used || !IPT[clockPosition].entry.valid || IPT[clockPosition].pinned) {
-			IPT[clockPosition].entry.used = false;
-			if (clockPosition < IPT.length - 1) {
+		if (tlbEntries != null)
+			syncTLB();
+
+		while (IPT.getEntry(clockPosition) == null
+				|| IPT.getEntry(clockPosition).used
+				|| !IPT.getEntry(clockPosition).valid
+				|| IPT.isPinned(clockPosition)) {
+			if (IPT.getEntry(clockPosition) != null)
+				IPT.getEntry(clockPosition).used = false;
+			if (clockPosition < IPT.getNumFrames() - 1) {
 				clockPosition++;
 			} else {
 				clockPosition = 0;
 			}
 		}
 		
-		return IPT[clockPosition].entry;
+		if (tlbEntries != null)
+			invalidateTLBFrame(clockPosition);
+
+		return IPT.getEntry(clockPosition);
+	}
+	
+	/**
+	 * Make a process's address space the current one on the current core's
+	 * TLB. Each process is given an ASID, so its TLB entries survive context
+	 * switches; the TLB is only flushed of entries for an ASID when the ASID
+	 * passes to another process.
+	 * 
+	 * @param process the process being switched to.
+	 */
+	public static void switchAddressSpace(UserProcess process) {
+		int core = Machine.processor().getCurrentCore();
+		int asid = process.getProcessId() % asidOwners[core].length;
+		if (asidOwners[core][asid] != process) {
+			flushTLB(core, asid, true);
+			asidOwners[core][asid] = process;
+		}
+		Machine.processor().setASID(asid);
+	}
+	
+	/**
+	 * Flush an exiting process's TLB entries from every core and give up its
+	 * ASIDs.
+	 * 
+	 * @param process the exiting process.
+	 */
+	public static void releaseAddressSpace(UserProcess process) {
+		for (int core = 0; core < asidOwners.length; core++) {
+			int asid = process.getProcessId() % asidOwners[core].length;
+			if (asidOwners[core][asid] == process) {
+				flushTLB(core, asid, false);
+				asidOwners[core][asid] = null;
+			}
+		}
+	}
+	
+	/**
+	 * Load a page table entry into the current core's TLB for the current
+	 * address space, replacing an invalid entry if there is one, and otherwise
+	 * a not recently used entry (or a random one, if
+	 * <tt>VMKernel.tlbReplacement</tt> is <tt>random</tt>). The used and dirty
+	 * bits of the replaced entry are written back to its page table.
+	 * 
+	 * @param entry the page table entry to load; must be valid.
+	 */
+	public static void refillTLB(TranslationEntry entry) {
+		Lib.assertTrue(entry.valid);
+
+		Processor processor = Machine.processor();
+		int core = processor.getCurrentCore();
+		int slot = chooseTLBSlot(core, processor.getTLBSet(entry.vpn));
+		writeBackTLBEntry(core, slot);
+
+		processor.writeTLBEntry(slot, entry);
+		tlbEntries[core][slot] = entry;
+	}
+	
+	private static int chooseTLBSlot(int core, int set) {
+		Processor processor = Machine.processor();
+		int ways = processor.getTLBWays();
+		int first = set * ways;
+		
+		for (int i = first; i < first + ways; i++) {
+			if (!processor.readTLBEntry(core, i).valid)
+				return i;
+		}
+		
+		if (!tlbNRU)
+			return first + Lib.random(ways);
+
+		// NRU: the first entry not used since the last sweep, preferring
+		// clean entries, searching from just past the last way replaced
+		int[] hands = tlbHands[core];
+		int best = -1;
+		for (int n = 0; n < ways; n++) {
+			int i = first + (hands[set] + n) % ways;
+			TranslationEntry e = processor.readTLBEntry(core, i);
+			if (!e.used && (best == -1 || !e.dirty)) {
+				best = i;
+				if (!e.dirty)
+					break;
+			}
+		}
+		if (best == -1) {
+			// every way was used; start a new sweep of this set
+			for (int i = first; i < first + ways; i++)
+				clearTLBUsed(core, i);
+			best = first + hands[set];
+		}
+
+		hands[set] = (best - first + 1) % ways;
+		return best;
 	}
 	
-	public static byte[] getVictimData() {
-		byte[] data = new byte[Processor.pageSize];
-		IPT[clockPosition].process.readVirtualMemory(IPT[clockPosition].entry.vpn * Processor.pageSize, data);
-		return data;
+	private static void writeBackTLBEntry(int core, int slot) {
+		TranslationEntry e = Machine.processor().readTLBEntry(core, slot);
+		TranslationEntry pte = tlbEntries[core][slot];
+		if (e.valid && pte != null) {
+			pte.used |= e.used;
+			pte.dirty |= e.dirty;
+		}
+	}
+	
+	private static void clearTLBUsed(int core, int slot) {
+		Processor processor = Machine.processor();
+		TranslationEntry e = processor.readTLBEntry(core, slot);
+		if (!e.valid)
+			return;
+		writeBackTLBEntry(core, slot);
+		e.used = false;
+		processor.writeTLBEntry(core, slot, e, processor.readTLBEntryASID(core, slot));
+	}
+	
+	private static void invalidateTLBEntry(int core, int slot) {
+		Processor processor = Machine.processor();
+		TranslationEntry e = processor.readTLBEntry(core, slot);
+		e.valid = false;
+		processor.writeTLBEntry(core, slot, e, processor.readTLBEntryASID(core, slot));
+		tlbEntries[core][slot] = null;
+	}
+	
+	/**
+	 * Write back the used and dirty bits of every TLB entry on every core, and
+	 * clear the used bits in the TLBs so that they age along with the clock.
+	 */
+	private static void syncTLB() {
+		for (int core = 0; core < tlbEntries.length; core++) {
+			for (int i = 0; i < tlbEntries[core].length; i++)
+				clearTLBUsed(core, i);
+		}
+	}
+	
+	/**
+	 * Shoot down every TLB entry, on any core, that maps the specified frame.
+	 */
+	private static void invalidateTLBFrame(int ppn) {
+		Processor processor = Machine.processor();
+		for (int core = 0; core < tlbEntries.length; core++) {
+			for (int i = 0; i < tlbEntries[core].length; i++) {
+				TranslationEntry e = processor.readTLBEntry(core, i);
+				if (e.valid && e.ppn == ppn) {
+					writeBackTLBEntry(core, i);
+					invalidateTLBEntry(core, i);
+				}
+			}
+		}
+	}
+	
+	private static void flushTLB(int core, int asid, boolean writeBack) {
+		Processor processor = Machine.processor();
+		for (int i = 0; i < tlbEntries[core].length; i++) {
+			if (processor.readTLBEntry(core, i).valid
+					&& processor.readTLBEntryASID(core, i) == asid) {
+				if (writeBack)
+					writeBackTLBEntry(core, i);
+				invalidateTLBEntry(core, i);
+			}
+		}
+	}
+	
+	/**
+	 * Return the process that owns the frame most recently chosen by
+	 * <tt>findVictim()</tt>. The caller must hold <tt>IPTLock</tt>.
+	 * 
+	 * @return the owner of the victim frame.
+	 */
+	public static UserProcess getVictimProcess() {
+		return IPT.getProcess(clockPosition);
+	}
+	
+	/**
+	 * Record a page fault in the fault trace, if <tt>VMKernel.faultTrace</tt>
+	 * names a trace file.
+	 * 
+	 * @param process the process that faulted.
+	 * @param vpn the virtual page that faulted.
+	 * @param kind one of the <tt>PageFaultTrace.fault*</tt> constants.
+	 * @param victim the entry that was evicted, or <tt>null</tt> if a free
+	 * frame was used.
+	 * @param victimProcess the process that owned <i>victim</i>.
+	 */
+	public static void recordFault(UserProcess process, int vpn, int kind,
+			TranslationEntry victim, UserProcess victimProcess) {
+		if (faultTrace == null)
+			return;
+
+		faultTrace.record(Machine.timer().getTime(), process.getProcessId(),
+				vpn, kind,
+				victim == null ? -1 : victimProcess.getProcessId(),
+				victim == null ? -1 : victim.vpn);
 	}
 	
 	public static void debugHelper() {
-		for (int i = 0; i < IPT.length; i++) {
-			if (IPT[i] != null) {
+		for (int i = 0; i < IPT.getNumFrames(); i++) {
+			TranslationEntry entry = IPT.getEntry(i);
+			if (entry != null) {
 				System.out.println("ppn is " + i);
-				System.out.println(IPT[i].process);
-				System.out.println("Entry is: vpn " + IPT[i].entry.vpn + " ppn: " + IPT[i].entry.ppn + " valid: " + IPT[i].entry.valid +
-						" dirty: " + IPT[i].entry.dirty);
+				System.out.println(IPT.getProcess(i));
+				System.out.println("Entry is: vpn " + entry.vpn + " ppn: " + entry.ppn + " valid: " + entry.valid +
+						" dirty: " + entry.dirty);
 			}
 		}
 	}
@@ -117,7 +579,32 @@ public class VMKernel extends UserKernel {
 		return result;
 	}
 	
+	/**
+	 * Drop one reference to a swap page, freeing it once no page table entry
+	 * refers to it. Values that are not swap page numbers, such as
+	 * <tt>zeroPage</tt> or -1, are ignored. The caller must hold
+	 * <tt>freeSwapPagesLock</tt>.
+	 * 
+	 * @param spn the swap page number.
+	 * @return 1 on success, -1 on failure.
+	 */
 	public static int collectSPN(int spn) {
+		if (spn < 0)
+			return 1;
+
+		Integer refs = swapRefs.remove(spn);
+		if (refs != null && refs.intValue() > 1) {
+			swapRefs.put(spn, refs.intValue() - 1);
+			return 1;
+		}
+
+		if (swapContents != null) {
+			ContentKey key = swapContents.remove(spn);
+			if (key != null)
+				swapHashes.remove(key);
+		}
+		if (swapCache != null)
+			swapCache.invalidate(spn);
 		if (freeSwapPages.add(spn)) {
 			return 1;
 		} else {
@@ -125,28 +612,176 @@ public class VMKernel extends UserKernel {
 		}
 	}
 	
-	public static void updateIPTProcess(UserProcess process, int ppn) {
-		IPT[ppn].process = process;
-	}
-	
-	public static void updateIPTEntry(TranslationEntry entry, int ppn) {
-		IPT[ppn].entry = entry;
-	}
-	
 	public static void pinPage(int ppn) {
-		IPT[ppn].pinned = true;
+		IPT.setPinned(ppn, true);
 	}
 	
 	public static void unpinPage(int ppn) {
-		IPT[ppn].pinned = false;
+		IPT.setPinned(ppn, false);
 	}
 	
-	public static int writeSwapFile(int pos, byte[] buf) {
-		return swapFile.write(pos, buf, 0, Processor.pageSize);
+	/**
+	 * Write an evicted page to swap, and return the value its page table
+	 * entry should hold in place of a ppn until it is faulted back in.
+	 * 
+	 * <p>
+	 * A page that is entirely zero is not written at all and is recorded as
+	 * <tt>zeroPage</tt>. If <tt>VMKernel.dedupSwap</tt> is set, a page whose
+	 * contents match a page already in swap shares that swap page instead of
+	 * being written again. Pages are matched by a hash of their contents, and
+	 * a match is read back and compared byte for byte before it is shared.
+	 * Otherwise a new swap page is allocated and written.
+	 * 
+	 * <p>
+	 * When physical memory is on the heap, the page is taken directly from
+	 * the frame it occupies, without copying it out first.
+	 * 
+	 * @param ppn the frame holding the evicted page.
+	 * @return <tt>zeroPage</tt> or the swap page number holding the page.
+	 */
+	public static int swapOut(int ppn) {
+		PhysicalMemory memory = Machine.processor().getPhysicalMemory();
+		int paddr = ppn * Processor.pageSize;
+
+		if (memory.isFilled(paddr, Processor.pageSize, (byte) 0)) {
+			Lib.debug(dbgVM, "\tevicting zero page");
+			Machine.stats().numZeroPages++;
+			return zeroPage;
+		}
+
+		byte[] buf = memory.hasArray() ? memory.getArray() : null;
+		int offset = paddr;
+		if (buf == null) {
+			buf = new byte[Processor.pageSize];
+			memory.read(paddr, buf, 0, Processor.pageSize);
+			offset = 0;
+		}
+
+		freeSwapPagesLock.acquire();
+
+		ContentKey key = null;
+		if (swapHashes != null) {
+			key = new ContentKey(buf, offset);
+			Integer shared = swapHashes.get(key);
+			if (shared != null) {
+				int spn = shared.intValue();
+				if (swapPageEquals(spn, buf, offset)) {
+					swapRefs.put(spn, swapRefs.get(spn).intValue() + 1);
+					freeSwapPagesLock.release();
+
+					Lib.debug(dbgVM, "\tevicted page shares spn " + spn);
+					Machine.stats().numSharedPages++;
+					return spn;
+				}
+
+				// a hash collision; the page gets its own swap page
+				Lib.debug(dbgVM, "\tevicted page collides with spn " + spn);
+				key = null;
+			}
+		}
+
+		int spn = allocateSPN();
+		swapRefs.put(spn, 1);
+		if (key != null) {
+			swapHashes.put(key, spn);
+			swapContents.put(spn, key);
+		}
+		freeSwapPagesLock.release();
+
+		Lib.debug(dbgVM, "\tevicting to spn " + spn);
+		writeSwapFile(spn * Processor.pageSize, buf, offset);
+		return spn;
+	}
+
+	/**
+	 * Test whether a swap page holds exactly the specified contents. The
+	 * caller must hold <tt>freeSwapPagesLock</tt>, so that the swap page
+	 * cannot be freed and reused while it is read. The page is read without
+	 * counting it as swap I/O, since no page is brought back in.
+	 * 
+	 * @param spn the swap page number.
+	 * @param buf the array holding the page contents.
+	 * @param offset the offset of the page in <i>buf</i>.
+	 * @return <tt>true</tt> if the swap page matches.
+	 */
+	private static boolean swapPageEquals(int spn, byte[] buf, int offset) {
+		byte[] stored = new byte[Processor.pageSize];
+		if (swapCache == null || !swapCache.load(spn, stored, 0)) {
+			int pos = spn * Processor.pageSize;
+			if (swapFile.read(pos, stored, 0, Processor.pageSize) != Processor.pageSize)
+				return false;
+		}
+
+		return Arrays.equals(stored, 0, Processor.pageSize,
+				buf, offset, offset + Processor.pageSize);
+	}
+
+	/**
+	 * Restore a page written by <tt>swapOut()</tt> directly into a frame, and
+	 * drop the page's reference to its swap page. Zero pages are restored
+	 * without any I/O.
+	 * 
+	 * @param spn the value returned by <tt>swapOut()</tt>.
+	 * @param ppn the frame to restore the page into.
+	 */
+	public static void swapIn(int spn, int ppn) {
+		PhysicalMemory memory = Machine.processor().getPhysicalMemory();
+		int paddr = ppn * Processor.pageSize;
+
+		if (spn == zeroPage) {
+			memory.fill(paddr, Processor.pageSize, (byte) 0);
+			return;
+		}
+
+		if (memory.hasArray()) {
+			readSwapFile(spn * Processor.pageSize, memory.getArray(), paddr);
+		}
+		else {
+			byte[] buf = new byte[Processor.pageSize];
+			readSwapFile(spn * Processor.pageSize, buf, 0);
+			memory.write(paddr, buf, 0, Processor.pageSize);
+		}
+
+		freeSwapPagesLock.acquire();
+		collectSPN(spn);
+		freeSwapPagesLock.release();
+	}
+
+	/**
+	 * Write an evicted page to swap. The page is kept in the compressed swap
+	 * cache if one is configured and has room, and is only written to the
+	 * swap file otherwise.
+	 * 
+	 * @param pos the byte offset of the swap page.
+	 * @param buf the array holding the page contents.
+	 * @param offset the offset of the page in <i>buf</i>.
+	 * @return the number of bytes written.
+	 */
+	public static int writeSwapFile(int pos, byte[] buf, int offset) {
+		if (swapCache != null && swapCache.store(pos / Processor.pageSize, buf, offset))
+			return Processor.pageSize;
+
+		Machine.stats().numSwapWrites++;
+		return swapFile.write(pos, buf, offset, Processor.pageSize);
 	}
 	
-	public static int readSwapFile(int pos, byte[] buf) {
-		return swapFile.read(pos, buf, 0, Processor.pageSize);
+	/**
+	 * Read a page back from swap, from the compressed swap cache if it is
+	 * there and from the swap file otherwise.
+	 * 
+	 * @param pos the byte offset of the swap page.
+	 * @param buf the array to read the page into.
+	 * @param offset the offset in <i>buf</i> to read the page to.
+	 * @return the number of bytes read.
+	 */
+	public static int readSwapFile(int pos, byte[] buf, int offset) {
+		if (swapCache != null && swapCache.load(pos / Processor.pageSize, buf, offset)) {
+			Machine.stats().numCompressedLoads++;
+			return Processor.pageSize;
+		}
+
+		Machine.stats().numSwapReads++;
+		return swapFile.read(pos, buf, offset, Processor.pageSize);
 	}
 
 	// dummy variables to make javac smarter
@@ -155,9 +790,28 @@ public class VMKernel extends UserKernel {
 	private static OpenFile swapFile;
 	private static LinkedList<Integer> freeSwapPages;
 	private static int swapCount;
-	private static PageFrame[] IPT;
+	private static InvertedPageTable IPT;
 	private static int clockPosition;
 	private static final String swapFileName = "UniqueUnique";
+	private static PageFaultTrace faultTrace = null;
+	private static CompressedSwapCache swapCache = null;
+	private static HashMap<Integer, Integer> swapRefs;
+	
+	/** The page table entry each TLB slot of each core was loaded from. */
+	private static TranslationEntry[][] tlbEntries = null;
+	/** The process each ASID is currently assigned to, on each core. */
+	private static UserProcess[][] asidOwners;
+	private static boolean tlbNRU;
+	/** The NRU hand of each TLB set of each core. */
+	private static int[][] tlbHands;
+	private static HashMap<ContentKey, Integer> swapHashes = null;
+	private static HashMap<Integer, ContentKey> swapContents = null;
+	
+	/**
+	 * Stored in a page table entry in place of a ppn for a page that was all
+	 * zeros when it was evicted.
+	 */
+	public static final int zeroPage = -2;
 	
 	public static Lock freeSwapPagesLock;
 	public static Lock IPTLock;
@@ -167,15 +821,34 @@ public class VMKernel extends UserKernel {
 	private static final char dbgVM = 'v';
 	
 	
-	private static class PageFrame {
-		public UserProcess process = new UserProcess();
-		public TranslationEntry entry = new TranslationEntry();
-		public boolean pinned;
+	/**
+	 * A 128-bit hash of a page's contents, made from two independent 64-bit
+	 * hashes, used to find candidate duplicate pages in swap. Equal keys only
+	 * suggest equal contents; <tt>swapOut()</tt> compares the pages.
+	 */
+	private static class ContentKey {
+		public ContentKey(byte[] data, int offset) {
+			long h1 = 0xcbf29ce484222325L;
+			long h2 = 0x9E3779B97F4A7C15L;
+			for (int i = offset; i < offset + Processor.pageSize; i++) {
+				h1 = (h1 ^ (data[i] & 0xFF)) * 0x100000001b3L;
+				h2 = Long.rotateLeft(h2 ^ (data[i] & 0xFF), 5) * 0xff51afd7ed558ccdL;
+			}
+			this.h1 = h1;
+			this.h2 = h2;
+		}
 		
-		public PageFrame(UserProcess process, TranslationEntry entry) {
-			this.process = process;
-			this.entry = entry;
-			this.pinned = false;
+		public boolean equals(Object o) {
+			if (!(o instanceof ContentKey))
+				return false;
+			ContentKey other = (ContentKey) o;
+			return h1 == other.h1 && h2 == other.h2;
 		}
+		
+		public int hashCode() {
+			return (int) (h1 ^ (h1 >>> 32));
+		}
+		
+		private long h1, h2;
 	}
 }
@@ -29,7 +29,10 @@ public class VMProcess extends UserProcess {
 	 * <tt>UThread.restoreState()</tt>.
 	 */
 	public void restoreState() {
-		super.restoreState();
+		if (Machine.processor().hasTLB())
+			VMKernel.switchAddressSpace(this);
+		else
+			super.restoreState();
 	}
 
 	/**
@@ -55,7 +58,16 @@ public class VMProcess extends UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
-		super.unloadSections();
+		UserKernel.freeListLock.acquire();
+		VMKernel.IPTLock.acquire();
+		if (Machine.processor().hasTLB())
+			VMKernel.releaseAddressSpace(this);
+		int[] frames = VMKernel.removeProcessFrames(this);
+		for (int i = 0; i < frames.length; i++)
+			UserKernel.collectPage(frames[i]);
+		VMKernel.IPTLock.release();
+		pageTable = null;
+		UserKernel.freeListLock.release();
 	}
 	
 	/**
@@ -75,6 +87,22 @@ public class VMProcess extends UserProcess {
 			super.handlePageFault(index);
 			break;
 
+		case Processor.exceptionTLBMiss:
+			int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+			if (vpn >= numPages) {
+				super.handleException(cause);
+				break;
+			}
+			// refill from the inverted page table; the page may be evicted
+			// again while we block in the fault handler
+			TranslationEntry entry;
+			while ((entry = VMKernel.lookupPage(this, vpn)) == null) {
+				Machine.stats().numPageFaults++;
+				super.handlePageFault(vpn);
+			}
+			VMKernel.refillTLB(entry);
+			break;
+
 		default:
 			super.handleException(cause);
 			break;